@@ -1,22 +1,29 @@
 // Holds public static void main(), the entry point to our program
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class ATM {
-    public static void main(String[] args) {
+    /**
+     * The number of transactions shown per page of history
+     */
+    private static final int HISTORY_PAGE_SIZE = 10;
+
+    public static void main(String[] args) throws IOException {
         // initialize scanner
         Scanner sc = new Scanner(System.in);
 
-        // initialize bank
-        Bank theBank = new Bank("Bank of De Luna");
+        // initialize bank from the last snapshot plus the journal written since, if we've run before
+        Bank theBank = ATM.openBank(Paths.get("atm.snapshot"), Paths.get("atm.journal"));
 
-        // add a user, which also creates a savings account
-        User aUser = theBank.addUser("John", "Doe", "1234");
-
-        // add a checking account for our user
-        Account newAccount = new Account("Checking", aUser, theBank);
-        aUser.addAccount(newAccount);
-        theBank.addAccount(newAccount); 
+        // logging happens in the background, so make sure a new user's ID shows before the login prompt
+        Log.flush();
 
         User curUser;
         while (true) {
@@ -28,6 +35,96 @@ public class ATM {
         }
     }
 
+    /**
+     * Open the bank: recover it from the last snapshot plus the journal written since, start
+     * journaling, set up the demo user the first time round, index every transaction, and start
+     * the nightly postings and statements and the regular snapshots
+     * @param snapshotFile  the snapshot file
+     * @param journalFile   the journal file
+     * @return              the bank, ready for sessions
+     * @throws IOException if the snapshot or journal can't be read or written, or another
+     *                     process already has the journal open
+     */
+    public static Bank openBank(Path snapshotFile, Path journalFile) throws IOException {
+        Bank theBank = ATM.recoverBank(snapshotFile, journalFile);
+
+        if (theBank.numUsers() == 0) {
+            // add a user, which also creates a savings account
+            User aUser = theBank.addUser("John", "Doe", "1234");
+
+            // add a checking account for our user
+            Account newAccount = new Account("Checking", aUser, theBank);
+            aUser.addAccount(newAccount);
+            theBank.addAccount(newAccount); 
+        }
+
+        // unless the history is kept in tiered storage, index every transaction, so the whole bank
+        // can be searched by time, amount, memo or other account
+        if (System.getProperty("atm.tiered") == null) {
+            theBank.enableIndex();
+        }
+
+        // with -Datm.interest.rate=<basis points> and/or -Datm.fee.monthly=<dollars>, post savings interest
+        // and checking fees every night at half past midnight, for the day that's just ended
+        String rate = System.getProperty("atm.interest.rate");
+        String fee = System.getProperty("atm.fee.monthly");
+        if (rate != null || fee != null) {
+            new PostingEngine(theBank, Runtime.getRuntime().availableProcessors(), ZoneId.systemDefault(),
+                    rate == null ? 0 : Long.parseLong(rate.trim()), fee == null ? 0 : Money.parse(fee.trim())).schedule(LocalTime.of(0, 30));
+        }
+
+        // with -Datm.statements=<directory>, write every user's statement for the day that's just ended
+        // to that directory every night, after the postings. They're written here rather than by
+        // StatementEngine.main, since a bank recovered from a snapshot no longer has the history before it
+        String statements = System.getProperty("atm.statements");
+        if (statements != null) {
+            new StatementEngine(theBank, Paths.get(statements), Runtime.getRuntime().availableProcessors(),
+                    ZoneId.systemDefault()).schedule(LocalTime.of(0, 45));
+        }
+
+        // count and time logins and transactions, readable over JMX or with the server's METRICS command
+        theBank.exposeMetrics();
+
+        // take a snapshot now and every few minutes, so the next startup only replays a short journal tail
+        Snapshot.write(theBank, snapshotFile);
+        Snapshot.schedule(theBank, snapshotFile, 5, TimeUnit.MINUTES);
+
+        return theBank;
+    }
+
+    /**
+     * Recover the bank and start journaling, like openBank, but without the demo user, the
+     * transaction index or anything that runs in the background, for one-off tools like
+     * PostingEngine, BatchIngest and StatementEngine. The journal is locked while it's open, so
+     * a tool can't run while the server has the bank open; the tool should close the journal
+     * when it's done
+     * @param snapshotFile  the snapshot file
+     * @param journalFile   the journal file
+     * @return              the bank
+     * @throws IOException if the snapshot or journal can't be read or written, or another
+     *                     process already has the journal open
+     */
+    public static Bank recoverBank(Path snapshotFile, Path journalFile) throws IOException {
+        // recover from the last snapshot plus the journal tail, and carry on writing every transaction
+        // to the journal so it isn't lost when we exit
+        Bank theBank = Snapshot.recover("Bank of De Luna", snapshotFile, journalFile, Journal.Durability.GROUP, 0);
+        if (theBank.numUsers() > 0) {
+            System.out.printf("Recovered %d users and %d accounts.\n", theBank.numUsers(), theBank.numAccounts());
+        }
+
+        // limit how much and how often money can be withdrawn, if the atm.withdraw.* properties ask for it
+        theBank.setWithdrawalLimits(WithdrawalLimits.fromProperties());
+
+        // with -Datm.tiered=<file>, keep only the most recently used history pages in memory and the
+        // rest in that file (atm.tiered.pages of them, 16384 by default)
+        String tieredFile = System.getProperty("atm.tiered");
+        if (tieredFile != null) {
+            theBank.setTieredStorage(Paths.get(tieredFile), Integer.getInteger("atm.tiered.pages", 16384));
+        }
+
+        return theBank;
+    }
+
     /**
      * Print the ATM's login menu
      * @param theBank   the bank object whose accounts to use
@@ -58,58 +155,61 @@ public class ATM {
         return authUser;
     }
 
+    /**
+     * Show the user menu and carry out what the user picks, until they quit
+     * @param theUser   the logged-in User object
+     * @param sc        the scanner object to use for user input
+     */
     public static void printUserMenu(User theUser, Scanner sc) {
-        // print a summary of the user's accounts
-        theUser.printAccountsSummary();
-
         // initialize
         int choice;
 
-        // user menu
+        // loop rather than recurse after each action, so a long session can't run out of stack
         do {
-            System.out.printf("Welcome %s, what would you like to do?\n", theUser.getFirstName());
-            System.out.println("    1) Show account transaction history");
-            System.out.println("    2) Withdraw");
-            System.out.println("    3) Desposit");
-            System.out.println("    4) Transfer");
-            System.out.println("    5) Quit");
-            System.out.println();
-            System.out.print("Enter choice: ");
-            choice = sc.nextInt();
-
-            if (choice < 1 || choice > 5) {
-                System.out.println("Invalid choice. Please choose 1-5");
+            // print a summary of the user's accounts
+            theUser.printAccountsSummary();
+
+            // user menu
+            do {
+                System.out.printf("Welcome %s, what would you like to do?\n", theUser.getFirstName());
+                System.out.println("    1) Show account transaction history");
+                System.out.println("    2) Withdraw");
+                System.out.println("    3) Desposit");
+                System.out.println("    4) Transfer");
+                System.out.println("    5) Quit");
+                System.out.println();
+                System.out.print("Enter choice: ");
+                choice = sc.nextInt();
+
+                if (choice < 1 || choice > 5) {
+                    System.out.println("Invalid choice. Please choose 1-5");
+                }
+            } while (choice < 1 || choice > 5);
+
+            // process the choice
+            switch (choice) {
+                case 1:
+                    // the following 4 methods are static, as indicated by using the class name "ATM" rather than an object name
+                    ATM.showTransHistory(theUser, sc);
+                    break;
+                case 2:
+                    ATM.withdrawFunds(theUser, sc);
+                    break;
+                case 3:
+                    ATM.depositFunds(theUser, sc);
+                    break;
+                case 4:
+                    ATM.transferFunds(theUser, sc);
+                    break;
+                // note that we don't have to handle the default (5: exit) choice
             }
-        } while (choice < 1 || choice > 5);
-
-        // process the choice
-        switch (choice) {
-            case 1:
-                // the following 4 methods are static, as indicated by using the class name "ATM" rather than an object name
-                ATM.showTransHistory(theUser, sc);
-                break;
-            case 2:
-                ATM.withdrawFunds(theUser, sc);
-                break;
-            case 3:
-                ATM.depositFunds(theUser, sc);
-                break;
-            case 4:
-                ATM.transferFunds(theUser, sc);
-                break;
-            // note that we don't have to handle the default (5: exit) choice
-        }
-
-        // redisplay this menu unless the user wants to quit
-        if (choice != 5) {
-            ATM.printUserMenu(theUser, sc); // note that this is a recursive call
-        }
+        } while (choice != 5); // redisplay this menu unless the user wants to quit
     }
 
     /**
-     * 
-     * @param theUser
-     * @param sc
+     * Show the transaction history of one of the user's accounts, newest first, a page at a time
+     * @param theUser the logged-in User object
+     * @param sc      the Scanner object used for user input
      */
     public static void showTransHistory(User theUser, Scanner sc) {
         int theAccount;
@@ -124,8 +224,26 @@ public class ATM {
 
         } while (theAccount < 0 || theAccount >= theUser.numAccounts());
 
-        // print the transaction history
-        theUser.printAcctTransHistory(theAccount);
+        // gobble up rest of previous input
+        sc.nextLine();
+
+        // print the transaction history a page at a time; only the rows we actually show get looked up
+        Iterator<Transaction> history = theUser.acctHistory(theAccount).iterator();
+        System.out.printf("\nTransaction history for account %s\n", theUser.getAccountUUID(theAccount));
+        while (true) {
+            for (int shown = 0; shown < HISTORY_PAGE_SIZE && history.hasNext(); shown++) {
+                System.out.println(history.next().getSummaryLine());
+            }
+            if (!history.hasNext()) {
+                break;
+            }
+
+            System.out.print("Press Enter for more, or q to go back: ");
+            if (sc.nextLine().trim().equalsIgnoreCase("q")) {
+                break;
+            }
+        }
+        System.out.println();
     }
 
     /**
@@ -137,8 +255,8 @@ public class ATM {
         // initialize
         int fromAccount;
         int toAccount;
-        double amount;
-        double accountBalance;
+        long amount;
+        long accountBalance;
 
         // get the account to transfer from
         do {
@@ -162,18 +280,24 @@ public class ATM {
 
         // get the amount to transfer
         do {
-            System.out.printf("Enter the amount to transfer (max $%.02f): ", accountBalance);
-            amount = sc.nextDouble();
+            System.out.printf("Enter the amount to transfer (max $%s): ", Money.toPlainString(accountBalance));
+            amount = ATM.readAmount(sc);
             if (amount < 0) {
                 System.out.println("Amount must be greater than zero.");
             } else if (amount > accountBalance) {
-                System.out.printf("Amount must not be greater than balance of $%.02f.\n", accountBalance);
+                System.out.printf("Amount must not be greater than balance of $%s.\n", Money.toPlainString(accountBalance));
             }
         } while (amount < 0 || amount > accountBalance);
 
-        // finally, do the transfer
-        theUser.addAcctTransaction(fromAccount, -1*amount, String.format("Transfer to account %s", theUser.getAccountUUID(toAccount)));
-        theUser.addAcctTransaction(toAccount, amount, String.format("Transfer to account %s", theUser.getAccountUUID(toAccount)));
+        // finally, do the transfer; both legs happen together, and the balance is checked again in case another session spent it
+        try {
+            if (!theUser.transferBetweenAccts(fromAccount, toAccount, amount)) {
+                System.out.println("Transfer failed: the balance changed and there are no longer enough funds.");
+            }
+        } catch (ArithmeticException e) {
+            // neither account has been touched
+            System.out.println("Transfer failed: the balance of the account to transfer to would overflow.");
+        }
     }
 
     /**
@@ -184,8 +308,8 @@ public class ATM {
     public static void withdrawFunds(User theUser, Scanner sc) {
         // initialize
         int fromAccount;
-        double amount;
-        double accountBalance;
+        long amount;
+        long accountBalance;
         String memo;
 
         // get the account to transfer from
@@ -201,12 +325,12 @@ public class ATM {
 
         // get the amount to transfer
         do {
-            System.out.printf("Enter the amount to transfer (max $%.02f): ", accountBalance);
-            amount = sc.nextDouble();
+            System.out.printf("Enter the amount to transfer (max $%s): ", Money.toPlainString(accountBalance));
+            amount = ATM.readAmount(sc);
             if (amount < 0) {
                 System.out.println("Amount must be greater than zero.");
             } else if (amount > accountBalance) {
-                System.out.printf("Amount must not be greater than balance of $%.02f.\n", accountBalance);
+                System.out.printf("Amount must not be greater than balance of $%s.\n", Money.toPlainString(accountBalance));
             }
         } while (amount < 0 || amount > accountBalance);
 
@@ -217,8 +341,14 @@ public class ATM {
         System.out.println("Enter a memo: " );
         memo = sc.nextLine();
 
-        // do the withdraw
-        theUser.addAcctTransaction(fromAccount, -1*amount, memo);
+        // do the withdraw; the balance and the account's withdrawal limits are checked under the account's
+        // lock, in case another session spent it
+        Account.WithdrawResult result = theUser.withdrawFromAcct(fromAccount, amount, memo);
+        if (result == Account.WithdrawResult.INSUFFICIENT_FUNDS) {
+            System.out.println("Withdrawal failed: the balance changed and there are no longer enough funds.");
+        } else if (result != Account.WithdrawResult.OK) {
+            System.out.printf("Withdrawal failed: %s.\n", result.getMessage());
+        }
     }
 
     /**
@@ -229,8 +359,8 @@ public class ATM {
     public static void depositFunds(User theUser, Scanner sc) {
         // initialize
         int toAccount;
-        double amount;
-        double accountBalance;
+        long amount;
+        long accountBalance;
         String memo;
 
         // get the account to transfer from
@@ -247,7 +377,7 @@ public class ATM {
         // get the amount to transfer
         do {
             System.out.printf("Enter the amount to deposit (min $0.00): ");
-            amount = sc.nextDouble();
+            amount = ATM.readAmount(sc);
             if (amount < 0) {
                 System.out.println("Amount must be greater than zero.");
             }
@@ -261,8 +391,30 @@ public class ATM {
         memo = sc.nextLine();
 
         // do the deposit
-        System.out.printf("\n=====DEBUGGING START WITHIN ATM.JAVA=====\ntoAccount: %s\namount: %f\nmemo: %s\n====DEBUGGING END=====\n", toAccount, amount, memo); // for debugging
-        theUser.addAcctTransaction(toAccount, amount, memo);
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("ATM deposit of {} to account index {}: \"{}\"", Money.format(amount), toAccount, memo);
+        }
+        try {
+            theUser.addAcctTransaction(toAccount, amount, memo);
+        } catch (ArithmeticException e) {
+            // the account is left untouched, and the session carries on
+            System.out.println("Deposit failed: the balance would overflow.");
+        }
+    }
+
+    /**
+     * Read a dollar amount typed in by the user, asking again until it's a valid amount
+     * @param sc    the Scanner object used for user input
+     * @return      the amount, in cents
+     */
+    public static long readAmount(Scanner sc) {
+        while (true) {
+            try {
+                return Money.parse(sc.next());
+            } catch (NumberFormatException e) {
+                System.out.print("Invalid amount. Please enter a dollar amount like 12.50: ");
+            }
+        }
     }
 }
 
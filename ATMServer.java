@@ -0,0 +1,611 @@
+// Serves the ATM menu to many terminals at once over a line-based TCP protocol on localhost
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One selector thread does all the network I/O for every connected terminal, and a pool of worker
+ * threads runs the commands, since a command can wait on the journal. Each command is one line, and
+ * each response is zero or more lines of data followed by a line starting with "OK" or "ERR":
+ * <pre>
+ *   LOGIN &lt;user ID&gt; &lt;pin&gt;
+ *   SUMMARY
+ *   HISTORY &lt;account&gt; [page]
+ *   WITHDRAW &lt;account&gt; &lt;amount&gt; [memo]
+ *   DEPOSIT &lt;account&gt; &lt;amount&gt; [memo]
+ *   TRANSFER &lt;from account&gt; &lt;to account&gt; &lt;amount&gt;
+ *   LOGOUT
+ *   QUIT
+ *   METRICS
+ *   HELP
+ * </pre>
+ * Accounts are numbered from 1 like in the ATM menu, and amounts are dollars like "12.50".
+ */
+public class ATMServer implements Closeable {
+    /**
+     * The port to listen on if none is given
+     */
+    public static final int DEFAULT_PORT = 4242;
+
+    /**
+     * The longest command line accepted, in bytes; a terminal sending a longer one is disconnected
+     */
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    /**
+     * The most commands a terminal can send ahead of their responses before we stop reading from it
+     */
+    private static final int MAX_PIPELINED = 64;
+
+    /**
+     * We stop reading from a terminal while it has this many bytes of responses it hasn't taken yet
+     */
+    private static final int OUTPUT_HIGH_WATER = 64 << 10;
+
+    /**
+     * The most response bytes a terminal can leave unsent; one that gets this far behind is disconnected
+     */
+    private static final int MAX_OUTPUT_BYTES = 1 << 20;
+
+    /**
+     * The number of transactions shown per page of history
+     */
+    private static final int HISTORY_PAGE_SIZE = 10;
+
+    /**
+     * The bank the terminals use
+     */
+    private final Bank bank;
+
+    /**
+     * Watches the listening socket and every terminal's socket
+     */
+    private final Selector selector;
+
+    /**
+     * The listening socket
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * Runs the commands, so the selector thread never waits on a lock or the journal
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Sessions with responses for the selector thread to start sending
+     */
+    private final ConcurrentLinkedQueue<Session> pendingWrites = new ConcurrentLinkedQueue<Session>();
+
+    /**
+     * Whether the server should keep running
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Create a server listening on localhost
+     * @param theBank       the bank the terminals use
+     * @param port          the port to listen on, or 0 for any free port
+     * @param numWorkers    the number of threads running commands
+     * @throws IOException if the port can't be listened on
+     */
+    public ATMServer(Bank theBank, int port, int numWorkers) throws IOException {
+        this.bank = theBank;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread t = new Thread(r, "atm-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Get the port the server is listening on
+     * @return the port
+     */
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Serve terminals on this thread until close() is called
+     * @throws IOException if the selector fails
+     */
+    public void run() throws IOException {
+        try {
+            while (this.running) {
+                this.selector.select();
+
+                // start sending the responses the workers have finished
+                Session ready;
+                while ((ready = this.pendingWrites.poll()) != null) {
+                    ready.flush();
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    if (key.isReadable()) {
+                        session.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.flush();
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : this.selector.keys()) {
+                ATMServer.closeQuietly(key.channel());
+            }
+            this.selector.close();
+            this.workers.shutdown();
+        }
+    }
+
+    /**
+     * Stop serving and disconnect every terminal
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Accept a new terminal and greet it
+     */
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = this.serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true); // responses are small and a terminal waits for each one
+            Session session = new Session(channel);
+            session.key = channel.register(this.selector, SelectionKey.OP_READ, session);
+            session.respond("OK Welcome to " + this.bank.getName() + "\n");
+            session.flush();
+        } catch (IOException e) {
+            // just this terminal is lost; keep serving the others
+            Log.warn("Couldn't accept terminal: {}", e.getMessage());
+            ATMServer.closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException e) {
+            // nothing more we can do with it
+        }
+    }
+
+    /**
+     * One connected terminal. Only the selector thread touches the socket, and only one worker at a
+     * time runs the session's commands, in the order they arrived
+     */
+    private class Session {
+        /**
+         * The terminal's socket
+         */
+        private final SocketChannel channel;
+
+        /**
+         * The socket's registration with the selector
+         */
+        private SelectionKey key;
+
+        /**
+         * Bytes read but not yet split into lines; only used by the selector thread
+         */
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE_LENGTH);
+
+        /**
+         * Command lines waiting for a worker (guarded by this)
+         */
+        private final ArrayDeque<String> lines = new ArrayDeque<String>();
+
+        /**
+         * Response bytes waiting to be sent, in write mode (guarded by this)
+         */
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+
+        /**
+         * Whether a worker is running this session's commands (guarded by this)
+         */
+        private boolean busy;
+
+        /**
+         * Whether to disconnect once the pending responses are sent (guarded by this)
+         */
+        private boolean closing;
+
+        /**
+         * The logged-in user, or null; only used by the worker running the commands
+         */
+        private User user;
+
+        private Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read what the terminal sent and hand any complete lines to a worker
+         */
+        private void read() {
+            boolean dispatch = false;
+            try {
+                if (this.channel.read(this.in) < 0) {
+                    this.close();
+                    return;
+                }
+            } catch (IOException e) {
+                this.close();
+                return;
+            }
+
+            synchronized (this) {
+                // split off the complete lines, leaving any partial one in the buffer
+                this.in.flip();
+                int start = 0;
+                for (int i = 0; i < this.in.limit(); i++) {
+                    if (this.in.get(i) == '\n') {
+                        int end = i > start && this.in.get(i - 1) == '\r' ? i - 1 : i;
+                        this.lines.add(new String(this.in.array(), start, end - start, StandardCharsets.UTF_8));
+                        start = i + 1;
+                    }
+                }
+                this.in.position(start);
+                this.in.compact();
+
+                if (!this.in.hasRemaining()) {
+                    this.close(); // a line this long isn't a command
+                    return;
+                }
+                // if it's too far ahead, let the terminal wait for its responses before it sends more
+                this.updateInterest();
+                if (!this.busy && !this.lines.isEmpty()) {
+                    this.busy = true;
+                    dispatch = true;
+                }
+            }
+
+            if (dispatch) {
+                ATMServer.this.workers.execute(this::runCommands);
+            }
+        }
+
+        /**
+         * Run the waiting commands one after another on a worker thread
+         */
+        private void runCommands() {
+            while (true) {
+                String line;
+                synchronized (this) {
+                    line = this.lines.poll();
+                    if (line == null || this.closing) {
+                        this.busy = false;
+                        return;
+                    }
+                }
+
+                String response;
+                try {
+                    response = this.handle(line);
+                } catch (RuntimeException e) {
+                    // a bug in one command shouldn't take the worker or the terminal down with it
+                    response = "ERR Internal error: " + e + "\n";
+                }
+                this.respond(response);
+
+                // the selector thread does the sending
+                ATMServer.this.pendingWrites.add(this);
+                ATMServer.this.selector.wakeup();
+            }
+        }
+
+        /**
+         * Queue response text to be sent
+         */
+        private synchronized void respond(String response) {
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            if (this.ensureRoom(bytes.length)) {
+                this.out.put(bytes);
+            }
+        }
+
+        /**
+         * Queue a numbered line, like "2) ...", from bytes that are already encoded
+         */
+        private synchronized void respondLine(int number, ByteBuffer line) {
+            if (!this.ensureRoom(line.remaining() + 14)) { // room for any int, ") " and the newline
+                return;
+            }
+            if (number >= 10) {
+                this.out.put(Integer.toString(number).getBytes(StandardCharsets.US_ASCII));
+            } else {
+                this.out.put((byte) ('0' + number));
+            }
+            this.out.put((byte) ')').put((byte) ' ').put(line).put((byte) '\n');
+        }
+
+        /**
+         * Grow the output buffer if it hasn't got room for some more bytes, up to MAX_OUTPUT_BYTES.
+         * A terminal that's left that much unread is disconnected instead. The caller must hold this
+         * @return whether there's room
+         */
+        private boolean ensureRoom(int length) {
+            if (this.out.position() + length > MAX_OUTPUT_BYTES) {
+                Log.warn("Disconnecting a terminal that left {} bytes of responses unread", this.out.position());
+                this.closing = true;
+                this.lines.clear();
+                this.close();
+                return false;
+            }
+            if (this.out.remaining() < length) {
+                int capacity = Math.min(MAX_OUTPUT_BYTES, Math.max(this.out.capacity() * 2, this.out.position() + length));
+                ByteBuffer bigger = ByteBuffer.allocate(capacity);
+                this.out.flip();
+                bigger.put(this.out);
+                this.out = bigger;
+            }
+            return true;
+        }
+
+        /**
+         * Only read more commands while the terminal has room for them in the pipeline and is
+         * taking its responses, and only watch for the socket becoming writable while there's
+         * something to send. Called whenever either changes. The caller must hold this
+         */
+        private void updateInterest() {
+            if (!this.key.isValid()) {
+                return;
+            }
+            boolean read = !this.closing && this.lines.size() < MAX_PIPELINED && this.out.position() < OUTPUT_HIGH_WATER;
+            boolean write = this.out.position() > 0;
+            this.key.interestOps((read ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0));
+        }
+
+        /**
+         * Send as much of the pending response as the socket takes, then start or stop watching the
+         * socket. The selector thread calls this after every response a worker finishes, so reading
+         * starts again once the worker has drained the queued commands
+         */
+        private void flush() {
+            if (!this.key.isValid()) {
+                return;
+            }
+            synchronized (this) {
+                try {
+                    this.out.flip();
+                    this.channel.write(this.out);
+                    this.out.compact();
+                } catch (IOException e) {
+                    this.close();
+                    return;
+                }
+
+                if (this.out.position() == 0 && this.closing) {
+                    this.close();
+                    return;
+                }
+                this.updateInterest();
+            }
+        }
+
+        private void close() {
+            this.key.cancel();
+            ATMServer.closeQuietly(this.channel);
+        }
+
+        /**
+         * Run one command line
+         * @param line  the command line
+         * @return      the response, ending with an OK or ERR line
+         */
+        private String handle(String line) {
+            // the memo of a withdrawal or deposit is the rest of the line, spaces and all
+            String[] args = line.trim().split("\\s+", 4);
+            String command = args[0].toUpperCase();
+            StringBuilder sb = new StringBuilder(128);
+
+            try {
+                switch (command) {
+                    case "HELP":
+                        sb.append("LOGIN <user ID> <pin>\n");
+                        sb.append("SUMMARY\n");
+                        sb.append("HISTORY <account> [page]\n");
+                        sb.append("WITHDRAW <account> <amount> [memo]\n");
+                        sb.append("DEPOSIT <account> <amount> [memo]\n");
+                        sb.append("TRANSFER <from account> <to account> <amount>\n");
+                        sb.append("LOGOUT\n");
+                        sb.append("QUIT\n");
+                        sb.append("METRICS\n");
+                        return sb.append("OK\n").toString();
+                    case "LOGIN":
+                        ATMServer.requireArgs(args, 3, "LOGIN <user ID> <pin>");
+                        this.user = ATMServer.this.bank.userLogin(args[1], args[2]);
+                        if (this.user == null) {
+                            return "ERR Incorrect user ID/pin combination\n";
+                        }
+                        return "OK Welcome " + this.user.getFirstName() + "\n";
+                    case "LOGOUT":
+                        this.user = null;
+                        return "OK\n";
+                    case "METRICS":
+                        // operation counts, latency percentiles and gauges, for finding latency spikes without a profiler
+                        return sb.append(Metrics.dump()).append("OK\n").toString();
+                    case "QUIT":
+                        synchronized (this) {
+                            this.closing = true;
+                        }
+                        return "OK Goodbye\n";
+                    case "SUMMARY":
+                    case "HISTORY":
+                    case "WITHDRAW":
+                    case "DEPOSIT":
+                    case "TRANSFER":
+                        if (this.user == null) {
+                            return "ERR Please LOGIN first\n";
+                        }
+                        this.handleMenuCommand(command, args, sb);
+                        return sb.toString();
+                    default:
+                        return "ERR Unknown command, try HELP\n";
+                }
+            } catch (IllegalArgumentException e) {
+                // bad account numbers and amounts, including NumberFormatException
+                return "ERR " + e.getMessage() + "\n";
+            } catch (ArithmeticException e) {
+                // a deposit or transfer that would overflow a balance, which is left untouched
+                return "ERR Balance would overflow\n";
+            }
+        }
+
+        /**
+         * Run one of the ATM menu's operations for the logged-in user
+         */
+        private void handleMenuCommand(String command, String[] args, StringBuilder sb) {
+            User theUser = this.user;
+            switch (command) {
+                case "SUMMARY":
+                    // the accounts cache their summary lines as bytes, so they go straight into the output buffer
+                    for (int a = 0; a < theUser.numAccounts(); a++) {
+                        this.respondLine(a + 1, theUser.getAccountSummaryBytes(a));
+                    }
+                    sb.append("OK\n");
+                    break;
+                case "HISTORY": {
+                    ATMServer.requireArgs(args, 2, "HISTORY <account> [page]");
+                    int theAccount = ATMServer.parseAccount(theUser, args[1]);
+                    int page = args.length > 2 ? ATMServer.parsePage(args[2]) : 1;
+                    List<Transaction> rows = theUser.acctHistory(theAccount).page(page - 1, HISTORY_PAGE_SIZE);
+                    for (Transaction t : rows) {
+                        sb.append(t.getSummaryLine()).append('\n');
+                    }
+                    sb.append("OK\n");
+                    break;
+                }
+                case "WITHDRAW": {
+                    ATMServer.requireArgs(args, 3, "WITHDRAW <account> <amount> [memo]");
+                    int fromAccount = ATMServer.parseAccount(theUser, args[1]);
+                    long amount = ATMServer.parseAmount(args[2]);
+                    // the balance and limits are checked under the account's lock, so two terminals can't both spend it
+                    Account.WithdrawResult result = theUser.withdrawFromAcct(fromAccount, amount, args.length > 3 ? args[3] : "");
+                    if (result != Account.WithdrawResult.OK) {
+                        sb.append("ERR ").append(result.getMessage()).append('\n');
+                        break;
+                    }
+                    Money.appendTo(sb.append("OK "), theUser.getAccountBalance(fromAccount)).append('\n');
+                    break;
+                }
+                case "DEPOSIT": {
+                    ATMServer.requireArgs(args, 3, "DEPOSIT <account> <amount> [memo]");
+                    int toAccount = ATMServer.parseAccount(theUser, args[1]);
+                    long amount = ATMServer.parseAmount(args[2]);
+                    theUser.addAcctTransaction(toAccount, amount, args.length > 3 ? args[3] : "");
+                    Money.appendTo(sb.append("OK "), theUser.getAccountBalance(toAccount)).append('\n');
+                    break;
+                }
+                case "TRANSFER": {
+                    ATMServer.requireArgs(args, 4, "TRANSFER <from account> <to account> <amount>");
+                    int fromAccount = ATMServer.parseAccount(theUser, args[1]);
+                    int toAccount = ATMServer.parseAccount(theUser, args[2]);
+                    long amount = ATMServer.parseAmount(args[3]);
+                    if (!theUser.transferBetweenAccts(fromAccount, toAccount, amount)) {
+                        sb.append("ERR Insufficient funds\n");
+                        break;
+                    }
+                    Money.appendTo(sb.append("OK "), theUser.getAccountBalance(fromAccount)).append('\n');
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void requireArgs(String[] args, int count, String usage) {
+        if (args.length < count) {
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
+    }
+
+    /**
+     * Turn an account number typed at a terminal, starting from 1, into an account index
+     */
+    private static int parseAccount(User theUser, String arg) {
+        int theAccount;
+        try {
+            theAccount = Integer.parseInt(arg) - 1;
+        } catch (NumberFormatException e) {
+            theAccount = -1;
+        }
+        if (theAccount < 0 || theAccount >= theUser.numAccounts()) {
+            throw new IllegalArgumentException("Invalid account. Please choose 1-" + theUser.numAccounts());
+        }
+        return theAccount;
+    }
+
+    private static int parsePage(String arg) {
+        int page = Integer.parseInt(arg);
+        if (page < 1) {
+            throw new IllegalArgumentException("Page must be 1 or more");
+        }
+        return page;
+    }
+
+    private static long parseAmount(String arg) {
+        long amount = Money.parse(arg);
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must be greater than zero.");
+        }
+        return amount;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        // commands mostly wait on the journal's group commit, so plenty of workers means bigger, fewer flushes
+        int numWorkers = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        Bank theBank = ATM.openBank(Paths.get("atm.snapshot"), Paths.get("atm.journal"));
+        ATMServer server = new ATMServer(theBank, port, numWorkers);
+        System.out.printf("%s is serving terminals on localhost:%d\n", theBank.getName(), server.getPort());
+        server.run();
+    }
+}
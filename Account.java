@@ -1,4 +1,8 @@
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Account {
     /**
@@ -17,9 +21,90 @@ public class Account {
     private User holder;
 
     /**
-     * The list of transactions for this account
+     * The bank that issued this account
      */
-    private ArrayList<Transaction> transactions;
+    private Bank bank;
+
+    /**
+     * The list of transactions for this account (guarded by lock)
+     */
+    private TransactionHistory transactions;
+
+    /**
+     * The running balance of this account in cents, kept up to date by addTransaction.
+     * It's only written while holding the lock, but volatile so it can be read without it
+     */
+    private volatile long balance;
+
+    /**
+     * The sequence number of the last journal record applied to this account (guarded by lock)
+     */
+    private long lastJournalSeq;
+
+    /**
+     * The lock every change to this account goes through, so concurrent sessions can't lose updates
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * This account's own withdrawal limits, or null to use the bank's (guarded by lock)
+     */
+    private WithdrawalLimits withdrawalLimits;
+
+    /**
+     * What's been withdrawn recently, counted against whichever limits apply; created on the first
+     * withdrawal, and started over if the limits change (guarded by lock)
+     */
+    private WithdrawalLimits.Usage withdrawalUsage;
+
+    /**
+     * The version, time and balance after each transaction, for reading past balances without the lock
+     */
+    private final VersionLog versions;
+
+    /**
+     * The bank-wide index this account's transactions are added to, or null if the bank has none (guarded by lock)
+     */
+    private TransactionIndex index;
+
+    /**
+     * This account's number in the index, or -1 until it's indexed its first transaction (guarded by lock)
+     */
+    private int indexNumber = -1;
+
+    /**
+     * The summary line, rendered for the balance it shows, or null until it's next asked for;
+     * dropped whenever a transaction is added
+     */
+    private volatile Summary summary;
+
+    /**
+     * The last day interest and fees were posted for, as an epoch day, or PostingEngine.NEVER (guarded by lock)
+     */
+    private long lastPostingDay = PostingEngine.NEVER;
+
+    /**
+     * Interest accrued but too small to post yet, in PostingEngine.INTEREST_DIVISOR ths of a cent (guarded by lock)
+     */
+    private long interestCarry;
+
+    /**
+     * The number of transactions at the start of the history that carry forward the balance from
+     * a snapshot, 0 or 1; the history from before the snapshot isn't kept (guarded by lock)
+     */
+    private int broughtForward;
+
+    /**
+     * Whether balance reads should be double-checked by replaying the transactions (for audits)
+     */
+    private static volatile boolean auditMode = false;
+
+    /**
+     * How often and how fast money moves in and out of accounts
+     */
+    private static final Metrics.Operation ADD_TRANSACTION_METRICS = Metrics.operation("addTransaction");
+    private static final Metrics.Operation WITHDRAW_METRICS = Metrics.operation("withdraw");
+    private static final Metrics.Operation TRANSFER_METRICS = Metrics.operation("transfer");
 
     /**
      * Create a new account
@@ -31,12 +116,35 @@ public class Account {
         // set the account name and holder
         this.name = name;
         this.holder = holder;
+        this.bank = theBank;
 
         // get new account UUID
         this.uuid = theBank.getNewAccountUUID();
 
-        // initialize transactions
-        this.transactions = new ArrayList<Transaction>();
+        // initialize transactions, in whichever kind of history store the bank uses
+        this.transactions = theBank.newHistory(this);
+        this.versions = theBank.newVersionLog();
+        this.index = theBank.getIndex();
+    }
+
+    /**
+     * Recreate an account saved in a snapshot or journal, keeping its old ID
+     * @param uuid      the account ID
+     * @param name      the name of the account
+     * @param holder    the User object that holds this account
+     * @param theBank   the bank that issued the account
+     */
+    Account(String uuid, String name, User holder, Bank theBank) {
+        this.uuid = uuid;
+        this.name = name;
+        this.holder = holder;
+        this.bank = theBank;
+        this.transactions = theBank.newHistory(this);
+        this.versions = theBank.newVersionLog();
+        this.index = theBank.getIndex();
+
+        // make sure the bank never hands this ID out again
+        theBank.claimAccountUUID(uuid);
     }
 
     /**
@@ -48,51 +156,1037 @@ public class Account {
     }
 
     /**
-     * Get summary line for the account
+     * Get the name of the account
+     * @return the name, like Checking or Savings
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the User object that owns this account
+     * @return the holder
+     */
+    public User getHolder() {
+        return this.holder;
+    }
+
+    /**
+     * Read the balance together with the last journal record it includes and the state of its
+     * nightly postings, for taking a snapshot
+     * @return the balance in cents, the journal sequence number, the last day posted for and the
+     *         interest carried forward, in that order
+     */
+    long[] getSnapshotState() {
+        this.lock.lock();
+        try {
+            return new long[] {this.balance, this.lastJournalSeq, this.lastPostingDay, this.interestCarry};
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Set the balance of a recovered account from a snapshot. The history before the snapshot
+     * isn't kept, so it's carried forward as a single transaction
+     * @param balance       the balance in the snapshot, in cents
+     * @param seq           the last journal record the balance includes
+     * @param postingDay    the last day interest and fees were posted for, or PostingEngine.NEVER
+     * @param carry         the interest carried forward, in PostingEngine.INTEREST_DIVISOR ths of a cent
+     * @param asOf          when the snapshot was taken
+     */
+    void restoreBalance(long balance, long seq, long postingDay, long carry, Date asOf) {
+        this.lock.lock();
+        try {
+            if (balance != 0) {
+                this.appendTransaction(new Transaction(balance, "Balance brought forward", asOf, this), balance, 0, this.bank.nextVersion());
+                this.broughtForward = 1;
+            }
+            this.balance = balance;
+            this.lastJournalSeq = seq;
+            this.lastPostingDay = postingDay;
+            this.interestCarry = carry;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Apply a transaction read back from the journal, unless this account already includes it
+     * @param seq       the sequence number of the journal record
+     * @param time      the time of the transaction, in epoch milliseconds
+     * @param amount    the amount of the transaction, in cents
+     * @param memo      the memo of the transaction
+     * @return          the recreated transaction, or null if the account already included it
+     */
+    Transaction replayTransaction(long seq, long time, long amount, String memo) {
+        return this.replayTransaction(seq, time, amount, memo, this.bank.nextVersion(), null);
+    }
+
+    /**
+     * @param index if not null, gets the index the transaction was appended at in its first element
+     */
+    private Transaction replayTransaction(long seq, long time, long amount, String memo, long version, int[] index) {
+        this.lock.lock();
+        try {
+            if (seq <= this.lastJournalSeq) {
+                return null;
+            }
+            Transaction t = new Transaction(amount, memo, new Date(time), this);
+            int i = this.appendTransaction(t, Money.add(this.balance, amount), seq, version);
+            if (index != null) {
+                index[0] = i;
+            }
+            return t;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get summary line for the account. It's only rendered again once the balance has changed
      * @return the string summary
      */
     public String getSummaryLine() {
+        return this.summary().line;
+    }
+
+    /**
+     * Get the summary line as UTF-8 bytes, for a network or terminal front end to put straight into
+     * its output buffer. Like the line itself, it's only encoded again once the balance has changed
+     * @return a read-only buffer of the bytes, from its position to its limit
+     */
+    public ByteBuffer getSummaryBytes() {
+        return this.summary().bytes.duplicate();
+    }
+
+    /**
+     * Get the summary for the current balance, rendering it if the cached one is missing or out of date.
+     * The line only depends on the balance (the ID and name never change), so a summary rendered for
+     * the same balance is always right, even if it was put in the cache after a change had dropped it
+     */
+    private Summary summary() {
         // get the account's balance
-        double balance = this.getBalance();
+        long balance = this.getBalance();
 
-        // format the summary line, depending on whether the balance is negative
-        if (balance >= 0) {
-            return String.format("%s : $%.02f : %s", this.uuid, balance, this.name); // String.format is kind of like System.out.printf
-        } else {
-            return String.format("%s : $(%.02f) : %s", this.uuid, balance, this.name); // parenthesis will surround a negative balance value
+        Summary s = this.summary;
+        if (s == null || s.balance != balance) {
+            // format the summary line; Money puts the parenthesis around a negative balance value
+            StringBuilder sb = new StringBuilder(48);
+            sb.append(this.uuid).append(" : ");
+            Money.appendTo(sb, balance);
+            s = new Summary(balance, sb.append(" : ").append(this.name).toString());
+            this.summary = s;
+        }
+        return s;
+    }
+
+    /**
+     * A rendered summary line, with the balance it shows
+     */
+    private static final class Summary {
+        private final long balance;
+        private final String line;
+        private final ByteBuffer bytes;
+
+        private Summary(long balance, String line) {
+            this.balance = balance;
+            this.line = line;
+            this.bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Get the balance of this account
+     * @return the balance value, in cents
+     */
+    public long getBalance() {
+        if (!Account.auditMode) {
+            return this.balance;
+        }
+
+        // in audit mode, make sure the running balance still agrees with the full history
+        this.lock.lock();
+        try {
+            if (this.replayBalance() != this.balance) {
+                throw new IllegalStateException(String.format("Balance of account %s does not match its transactions", this.uuid));
+            }
+            return this.balance;
+        } finally {
+            this.lock.unlock();
         }
     }
 
     /**
-     * Get the balance of this account by adding the amounts of the transactions
-     * @return the balance value
+     * Recompute the balance of this account by adding the amounts of the transactions
+     * @return the replayed balance value, in cents
      */
-    public double getBalance() {
-        double balance = 0;
+    public long replayBalance() {
+        long balance = 0;
 
-        for (Transaction t : this.transactions) {
-            balance += t.getAmount();
+        this.lock.lock();
+        try {
+            balance = this.transactions.sumAmounts();
+        } finally {
+            this.lock.unlock();
         }
 
         return balance;
     }
 
+    /**
+     * Turn the verify-by-replay audit mode on or off for all accounts
+     * @param on    whether getBalance should replay the transactions on every read
+     */
+    public static void setAuditMode(boolean on) {
+        Account.auditMode = on;
+    }
+
+    /**
+     * Get the number of transactions in the account's history
+     * @return the number of transactions
+     */
+    public int numTransactions() {
+        this.lock.lock();
+        try {
+            return this.transactions.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Start a query over the account's transaction history, newest first
+     * @return the query, which matches every transaction until it's narrowed down
+     */
+    public HistoryQuery history() {
+        return new HistoryQuery(this);
+    }
+
+    /**
+     * Walk the history newest first, collecting the transactions a query matches. Only the
+     * collected transactions are built as Transaction objects; the rest are checked from
+     * their time and amount alone
+     * @param start the index to start at, going down towards 0 (past the end starts at the newest)
+     * @param query the query to match
+     * @param skip  how many matching transactions to pass over before collecting
+     * @param max   the most transactions to collect
+     * @param out   the list to collect into
+     * @return      the index to carry on from next time, or -1 once the whole history has been walked
+     */
+    int scanHistory(int start, HistoryQuery query, long skip, int max, List<Transaction> out) {
+        this.lock.lock();
+        try {
+            int collected = 0;
+            int i = Math.min(start, this.transactions.size() - 1);
+            for (; i >= 0 && collected < max; i--) {
+                if (query.matches(this.transactions.getTime(i), this.transactions.getAmount(i))) {
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        out.add(this.transactions.get(i));
+                        collected++;
+                    }
+                }
+            }
+            return i;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Something that looks at transactions one at a time, without Transaction objects being built for it
+     */
+    public interface HistoryVisitor {
+        /**
+         * Called once before any transactions, with the balance from before the first of them
+         * @param balance   the opening balance, in cents
+         */
+        default void opening(long balance) {
+        }
+
+        /**
+         * Look at one transaction
+         * @param time      the time of the transaction, in epoch milliseconds
+         * @param amount    the amount of the transaction, in cents
+         * @param memo      the memo of the transaction
+         */
+        void visit(long time, long amount, String memo);
+    }
+
+    /**
+     * Visit the transactions in a time range, oldest first, and work out the balances at the start
+     * and end of the range, all under one hold of the lock so they agree. Transactions are added in
+     * time order, so only the range and the transactions after it are looked at
+     * @param from      the start of the range, in epoch milliseconds (inclusive)
+     * @param to        the end of the range, in epoch milliseconds (exclusive)
+     * @param visitor   called with each transaction in the range
+     * @return          the balance at the end of the range, in cents
+     */
+    public long visitHistory(long from, long to, HistoryVisitor visitor) {
+        this.lock.lock();
+        try {
+            // walk back over anything newer than the range to get the balance as it was at the end of it
+            long balanceAtEnd = this.balance;
+            int end = this.transactions.size();
+            while (end > 0 && this.transactions.getTime(end - 1) >= to) {
+                end--;
+                balanceAtEnd -= this.transactions.getAmount(end);
+            }
+
+            long balanceAtStart = balanceAtEnd;
+            int start = end;
+            while (start > 0 && this.transactions.getTime(start - 1) >= from) {
+                start--;
+                balanceAtStart -= this.transactions.getAmount(start);
+            }
+
+            visitor.opening(balanceAtStart);
+            for (int i = start; i < end; i++) {
+                visitor.visit(this.transactions.getTime(i), this.transactions.getAmount(i), this.transactions.getMemo(i));
+            }
+            return balanceAtEnd;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the entries of the version log published so far, for a BankView. The lock is only taken
+     * if someone holds it right now, since they may be publishing a change at or before the view's
+     * version; otherwise everything committed at or before it is already published
+     * @return the entries
+     */
+    VersionLog.Window versionWindow() {
+        int size;
+        if (this.lock.isLocked()) {
+            this.lock.lock();
+            try {
+                size = this.versions.size();
+            } finally {
+                this.lock.unlock();
+            }
+        } else {
+            size = this.versions.size();
+        }
+        return this.versions.window(size);
+    }
+
+    /**
+     * Work out the balance before a time from the history, for a BankView whose version log no
+     * longer goes back that far
+     * @param time          the time, in epoch milliseconds (exclusive)
+     * @param count         the number of transactions the view includes
+     * @param balanceAfter  the balance after them, in cents
+     * @return              the balance after the ones before the time, in cents
+     */
+    long balanceBefore(long time, int count, long balanceAfter) {
+        this.lock.lock();
+        try {
+            long balance = balanceAfter;
+            int i = count;
+            while (i > 0 && this.transactions.getTime(i - 1) >= time) {
+                i--;
+                balance -= this.transactions.getAmount(i);
+            }
+            return balance;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Add up the money in or the money out of a range of the history, for a BankView whose
+     * version log no longer goes back that far
+     * @param from  the index of the first transaction
+     * @param to    the index after the last transaction
+     * @param in    true for the money in, false for the money out (as a positive number)
+     * @return      the total, in cents
+     */
+    long sumAmounts(int from, int to, boolean in) {
+        this.lock.lock();
+        try {
+            long total = 0;
+            for (int i = from; i < to; i++) {
+                long amount = this.transactions.getAmount(i);
+                if (in ? amount > 0 : amount < 0) {
+                    total = Money.add(total, in ? amount : -amount);
+                }
+            }
+            return total;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Move the history into the kind of store the bank now uses for new accounts, after it's
+     * switched to tiered storage
+     */
+    void moveHistory() {
+        this.lock.lock();
+        try {
+            TransactionHistory moved = this.bank.newHistory(this);
+            for (int i = 0; i < this.transactions.size(); i++) {
+                Transaction t = this.transactions.get(i);
+                int index = moved.add(t);
+                if (t.getLinkedTransaction() != null) {
+                    moved.link(index, t.getLinkedTransaction());
+                }
+            }
+            this.transactions = moved;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Bring the newest part of the history back into memory if it's been written out to disk,
+     * so a user who's just logged in doesn't wait for it
+     */
+    void prefetch() {
+        this.lock.lock();
+        try {
+            this.transactions.prefetch();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the log of this account's committed balances, for reading without the lock
+     * @return the version log
+     */
+    VersionLog getVersionLog() {
+        return this.versions;
+    }
+
+    /**
+     * Get one transaction from the history, for a TransactionSearch
+     * @param index the index of the transaction, oldest first
+     * @return      the transaction
+     */
+    Transaction getTransaction(int index) {
+        this.lock.lock();
+        try {
+            return this.transactions.get(index);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Start adding this account's transactions to a bank-wide index, beginning with the ones it already has
+     * @param index the index
+     */
+    void attachIndex(TransactionIndex index) {
+        this.lock.lock();
+        try {
+            if (this.index == index) {
+                return; // created after the bank's index, so it's been indexing all along
+            }
+            for (int i = 0; i < this.transactions.size(); i++) {
+                index.add(this, i, this.transactions.get(i));
+            }
+            this.index = index;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get this account's number in the bank's TransactionIndex. The caller must hold the lock
+     * @return the number, or -1 if it hasn't got one yet
+     */
+    int getIndexNumber() {
+        return this.indexNumber;
+    }
+
+    /**
+     * Set this account's number in the bank's TransactionIndex. The caller must hold the lock
+     * @param number    the number
+     */
+    void setIndexNumber(int number) {
+        this.indexNumber = number;
+    }
+
     /**
      * Print the transaction history of the account
      */
     public void printTransHistory() {
         System.out.printf("\nTransaction history for account %s\n", this.uuid);
-        for (int t = this.transactions.size()-1; t >= 0; t--) {
-            System.out.printf("%s\n", this.transactions.get(t).getSummaryLine());
+        this.lock.lock();
+        try {
+            for (int t = this.transactions.size()-1; t >= 0; t--) {
+                System.out.printf("%s\n", this.transactions.get(t).getSummaryLine());
+            }
+        } finally {
+            this.lock.unlock();
         }
         System.out.println();
     }
 
-    public void addTransaction(double amount, String memo)
+    /**
+     * Add a new transaction to this account
+     * @param amount    the amount of the transaction, in cents
+     * @param memo      the memo of the transaction
+     * @return          the new transaction
+     * @throws ArithmeticException if the new balance would overflow
+     */
+    public Transaction addTransaction(long amount, String memo)
     {
-        // create new transaction object and add it to our list
-        Transaction newTrans = new Transaction(amount, memo, this);
+        return this.addTransaction(amount, memo, true);
+    }
+
+    /**
+     * Add a new transaction to this account, optionally leaving the wait for the journal to the
+     * caller, like a ShardedBank shard that waits once for a whole batch of transactions
+     * @param amount        the amount of the transaction, in cents
+     * @param memo          the memo of the transaction
+     * @param awaitJournal  whether to wait until the transaction's journal record is durable
+     * @return              the new transaction
+     * @throws ArithmeticException if the new balance would overflow
+     */
+    Transaction addTransaction(long amount, String memo, boolean awaitJournal) {
+        long start = System.nanoTime();
+        Transaction newTrans;
+        long seq;
+
+        this.lock.lock();
+        try {
+            // work out the new balance first, so an overflow leaves the account untouched
+            long newBalance = Money.add(this.balance, amount);
+
+            // create new transaction object, journal it and add it to our list
+            newTrans = new Transaction(amount, memo, this);
+            seq = this.journal(newTrans);
+            this.appendTransaction(newTrans, newBalance, seq, this.bank.nextVersion());
+        } catch (ArithmeticException e) {
+            ADD_TRANSACTION_METRICS.record(start, false);
+            throw e;
+        } finally {
+            this.lock.unlock();
+        }
+
+        // wait for the journal outside the lock, so other sessions can use the account meanwhile
+        if (awaitJournal) {
+            this.awaitJournal(seq);
+        }
+        ADD_TRANSACTION_METRICS.record(start, true);
+        return newTrans;
+    }
+
+    /**
+     * Add a transaction to our list, once the caller has already checked the new balance.
+     * The caller must hold the lock
+     * @param newTrans      the transaction
+     * @param newBalance    the balance after the transaction
+     * @param seq           the sequence number of its journal record, or 0 if it wasn't journaled
+     * @param version       the bank version it's committed at, from Bank.nextVersion; both legs of a transfer share one
+     * @return              the index of the transaction in the history
+     */
+    private int appendTransaction(Transaction newTrans, long newBalance, long seq, long version) {
+        int index = this.transactions.add(newTrans);
+        this.balance = newBalance;
+        this.summary = null;
+        if (seq > 0) {
+            this.lastJournalSeq = seq;
+        }
+        this.versions.append(version, newTrans.getTimestamp().getTime(), newBalance);
+        if (this.index != null) {
+            this.index.add(this, index, newTrans);
+        }
+        return index;
+    }
+
+    /**
+     * Write a transaction to the bank's journal, if it has one. The caller must hold the lock, and
+     * must call this before applying the transaction, so a journal failure leaves the account untouched
+     * @param t the transaction
+     * @return  the sequence number of the journal record, or 0 if the bank has no journal
+     */
+    private long journal(Transaction t) {
+        Journal journal = this.bank.getJournal();
+        return journal == null ? 0 : journal.append(t);
+    }
+
+    /**
+     * Wait until a journal record is durable
+     * @param seq   the sequence number of the record, or 0 if nothing was journaled
+     */
+    private void awaitJournal(long seq) {
+        Journal journal = this.bank.getJournal();
+        if (seq > 0 && journal != null) {
+            journal.awaitDurable(seq);
+        }
+    }
+
+    /**
+     * Why a withdrawal was or wasn't allowed
+     */
+    public enum WithdrawResult {
+        OK("Withdrawal complete"),
+        INSUFFICIENT_FUNDS("Insufficient funds"),
+        DAILY_LIMIT("Daily withdrawal limit reached"),
+        WINDOW_LIMIT("Withdrawal limit for this period reached"),
+        TOO_MANY_WITHDRAWALS("Too many withdrawals in a short time, try again later");
+
+        private final String message;
+
+        WithdrawResult(String message) {
+            this.message = message;
+        }
+
+        /**
+         * Get a message to show the user
+         * @return the message
+         */
+        public String getMessage() {
+            return this.message;
+        }
+    }
+
+    /**
+     * Get the withdrawal limits that apply to this account
+     * @return this account's own limits if it has any, otherwise the bank's
+     */
+    public WithdrawalLimits getWithdrawalLimits() {
+        this.lock.lock();
+        try {
+            return this.withdrawalLimits != null ? this.withdrawalLimits : this.bank.getWithdrawalLimits();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Give this account its own withdrawal limits, instead of the bank's. What's been withdrawn
+     * so far isn't counted against the new limits
+     * @param limits    the limits, or null to go back to the bank's
+     */
+    public void setWithdrawalLimits(WithdrawalLimits limits) {
+        this.lock.lock();
+        try {
+            this.withdrawalLimits = limits;
+            this.withdrawalUsage = null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Withdraw money from this account. The balance and the withdrawal limits are checked and the
+     * money taken under the same lock, so concurrent sessions can't get past a limit together.
+     * Each check is O(1), using the counters kept in withdrawalUsage rather than the history
+     * @param amount    the amount to withdraw, in cents (must not be negative)
+     * @param memo      the memo of the transaction
+     * @return          OK if the withdrawal went through, otherwise why it was refused
+     */
+    public WithdrawResult withdraw(long amount, String memo) {
+        return this.withdraw(amount, memo, true);
+    }
+
+    /**
+     * Withdraw money from this account, optionally leaving the wait for the journal to the caller
+     * @param amount        the amount to withdraw, in cents (must not be negative)
+     * @param memo          the memo of the transaction
+     * @param awaitJournal  whether to wait until the withdrawal's journal record is durable
+     * @return              OK if the withdrawal went through, otherwise why it was refused
+     */
+    WithdrawResult withdraw(long amount, String memo, boolean awaitJournal) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative");
+        }
+
+        long start = System.nanoTime();
+        long seq = 0;
+        WithdrawResult result;
 
-        transactions.add(newTrans);
+        this.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            WithdrawalLimits.Usage usage = this.withdrawalUsage();
+            if (amount > this.balance) {
+                result = WithdrawResult.INSUFFICIENT_FUNDS;
+            } else {
+                result = usage == null ? WithdrawResult.OK : usage.check(now, amount);
+            }
+
+            if (result == WithdrawResult.OK) {
+                Transaction newTrans = new Transaction(-amount, memo, new Date(now), this);
+                seq = this.journal(newTrans);
+                this.appendTransaction(newTrans, this.balance - amount, seq, this.bank.nextVersion());
+                if (usage != null) {
+                    usage.record(now, amount);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        // wait for the journal and record the metrics outside the lock, so they don't hold up other sessions
+        if (awaitJournal) {
+            this.awaitJournal(seq);
+        }
+        WITHDRAW_METRICS.record(start, result == WithdrawResult.OK);
+        return result;
+    }
+
+    /**
+     * Get the usage to count withdrawals in, matching the limits that apply now. The caller must hold the lock
+     * @return the usage, or null if there are no limits
+     */
+    private WithdrawalLimits.Usage withdrawalUsage() {
+        WithdrawalLimits limits = this.withdrawalLimits != null ? this.withdrawalLimits : this.bank.getWithdrawalLimits();
+        if (limits == WithdrawalLimits.NONE) {
+            return null;
+        }
+        if (this.withdrawalUsage == null || this.withdrawalUsage.getLimits() != limits) {
+            this.withdrawalUsage = limits.newUsage();
+        }
+        return this.withdrawalUsage;
+    }
+
+    /**
+     * Apply a batch of transactions under one lock, checking each against the running balance
+     * as it goes, and each withdrawal against the withdrawal limits. Transactions that would
+     * overdraw the account, go past a limit (or overflow the balance) are skipped and the rest
+     * are applied in order. Doesn't wait for the journal; the caller waits once for the whole
+     * batch instead
+     * @param amounts   the amounts, in cents, in the order to apply them
+     * @param memos     the memo of each transaction
+     * @param count     how many of the amounts to apply
+     * @param time      the time to give every transaction, in epoch milliseconds
+     * @param reasons   set to why each skipped transaction was skipped, and left null for the rest
+     * @return          the sequence number of the last journal record written, or 0 if none was
+     */
+    long applyBatch(long[] amounts, String[] memos, int count, long time, String[] reasons) {
+        long seq = 0;
+
+        this.lock.lock();
+        try {
+            // the whole batch is committed at one version, so views see all of it or none of it
+            long version = this.bank.nextVersion();
+            long newBalance = this.balance;
+            WithdrawalLimits.Usage usage = this.withdrawalUsage();
+            for (int i = 0; i < count; i++) {
+                long amount = amounts[i];
+                long next;
+                try {
+                    next = Money.add(newBalance, amount);
+                } catch (ArithmeticException e) {
+                    reasons[i] = "Balance would overflow";
+                    continue;
+                }
+                if (amount < 0 && next < 0) {
+                    reasons[i] = "Insufficient funds";
+                    continue;
+                }
+                if (amount < 0 && usage != null) {
+                    WithdrawResult limit = usage.check(time, -amount);
+                    if (limit != WithdrawResult.OK) {
+                        reasons[i] = limit.getMessage();
+                        continue;
+                    }
+                }
+
+                Transaction newTrans = new Transaction(amount, memos[i], new Date(time), this);
+                long s = this.journal(newTrans);
+                this.appendTransaction(newTrans, next, s, version);
+                if (amount < 0 && usage != null) {
+                    usage.record(time, -amount);
+                }
+                newBalance = next;
+                seq = Math.max(seq, s);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        return seq;
+    }
+
+    /**
+     * Post a night's interest and fees, as worked out by a posting run, under one lock and at one
+     * version. Does nothing if the account already has a posting for the run's day (or a later
+     * one), so running a day again after a crash never posts twice. Every day since the last
+     * posting is covered, so a missed night is caught up by the next. Interest too small to post
+     * yet is carried forward, and fees never overdraw the account: only what the balance covers
+     * is taken. Doesn't wait for the journal; the caller waits once for many accounts instead
+     * @param run       the run
+     * @param posted    set to the interest and the fee posted, in cents
+     * @return          the sequence number of the journal record written, 0 if none was, or -1
+     *                  if the account already had a posting for the day
+     * @throws ArithmeticException if the interest would overflow
+     */
+    long postAccruals(PostingEngine.Run run, long[] posted) {
+        posted[0] = 0;
+        posted[1] = 0;
+
+        this.lock.lock();
+        try {
+            long day = run.getDay();
+            if (this.lastPostingDay >= day) {
+                return -1;
+            }
+
+            // the days since the last posting, up to and including the run's day
+            int from = run.firstDay(this.lastPostingDay);
+            long interest = 0;
+            long carry = this.interestCarry;
+            if (run.paysInterest(this.name)) {
+                long accrued = run.accrue(this.sumClosingBalances(run, from), carry);
+                interest = accrued / PostingEngine.INTEREST_DIVISOR;
+                carry = accrued % PostingEngine.INTEREST_DIVISOR;
+            }
+            long feeDue = run.chargesFee(this.name) ? run.feesFrom(from) : 0;
+            long withInterest = Money.add(this.balance, interest);
+            long fee = Math.min(feeDue, Math.max(0, withInterest));
+
+            if (interest == 0 && feeDue == 0 && carry == this.interestCarry) {
+                // nothing was due, so there's nothing to journal; running the day again would find the same nothing
+                this.lastPostingDay = day;
+                return 0;
+            }
+
+            long time = System.currentTimeMillis();
+            Journal journal = this.bank.getJournal();
+            long seq = journal == null ? 0 : journal.appendPosting(this, time, interest, fee, day, carry, run.getInterestMemo(), run.getFeeMemo());
+            this.applyPosting(seq, time, interest, fee, day, carry, run.getInterestMemo(), run.getFeeMemo());
+            posted[0] = interest;
+            posted[1] = fee;
+            return seq;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Apply a nightly posting read back from the journal, unless this account already includes it
+     * @param seq           the sequence number of the journal record
+     * @param time          the time of the posting, in epoch milliseconds
+     * @param interest      the interest posted, in cents
+     * @param fee           the fee taken, as a positive number of cents
+     * @param day           the day the posting was for, as an epoch day
+     * @param carry         the interest carried forward afterwards
+     * @param interestMemo  the memo of the interest transaction
+     * @param feeMemo       the memo of the fee transaction
+     */
+    void replayPosting(long seq, long time, long interest, long fee, long day, long carry, String interestMemo, String feeMemo) {
+        this.lock.lock();
+        try {
+            if (seq <= this.lastJournalSeq) {
+                return;
+            }
+            this.applyPosting(seq, time, interest, fee, day, carry, interestMemo, feeMemo);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Add the interest and fee transactions of a posting, both at one version, and remember the
+     * day it was for. The caller must hold the lock
+     */
+    private void applyPosting(long seq, long time, long interest, long fee, long day, long carry, String interestMemo, String feeMemo) {
+        long version = this.bank.nextVersion();
+        Date when = new Date(time);
+        if (interest != 0) {
+            this.appendTransaction(new Transaction(interest, interestMemo, when, this), Money.add(this.balance, interest), seq, version);
+        }
+        if (fee != 0) {
+            this.appendTransaction(new Transaction(-fee, feeMemo, when, this), Money.add(this.balance, -fee), seq, version);
+        }
+        if (seq > 0) {
+            this.lastJournalSeq = seq;
+        }
+        this.lastPostingDay = day;
+        this.interestCarry = carry;
+    }
+
+    /**
+     * Add up the balance at the end of each of a run's days, from the given one to the run's
+     * day, by walking back through the history from the current balance. Days that ended
+     * overdrawn count as nothing. A balance brought forward from a snapshot is the opening
+     * balance of every day before the snapshot, since that's all that's known of them, so days
+     * the snapshot was taken before posting them still earn interest. The caller must hold the lock
+     */
+    private long sumClosingBalances(PostingEngine.Run run, int from) {
+        long total = 0;
+        long balance = this.balance;
+        int i = this.transactions.size();
+        for (int d = run.numDays() - 1; d >= from; d--) {
+            long end = run.dayEnd(d);
+            while (i > this.broughtForward && this.transactions.getTime(i - 1) >= end) {
+                i--;
+                balance -= this.transactions.getAmount(i);
+            }
+            if (balance > 0) {
+                total = Money.add(total, balance);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Move money from one account to another. Both accounts are locked for the whole
+     * transfer, always in account ID order, so two opposite transfers can't deadlock.
+     * Everything is checked once up front and then both legs are recorded together as
+     * a linked pair of transactions, so either both legs happen or neither does. Money sent
+     * to another customer's account counts as a withdrawal against the from account's
+     * withdrawal limits; moving it between a customer's own accounts doesn't
+     * @param from      the account to take the money from
+     * @param to        the account to put the money in
+     * @param amount    the amount to transfer, in cents (must not be negative)
+     * @return          the withdrawal leg of the transfer (its linked transaction is the deposit leg),
+     *                  or null if it would overdraw the from account or go past its withdrawal limits
+     */
+    public static Transaction transfer(Account from, Account to, long amount) {
+        return Account.transfer(from, to, amount, true, new WithdrawResult[1]);
+    }
+
+    /**
+     * Move money from one account to another, like transfer, saying why if it's refused
+     * @param from      the account to take the money from
+     * @param to        the account to put the money in
+     * @param amount    the amount to transfer, in cents (must not be negative)
+     * @return          OK if the transfer went through, otherwise why it was refused
+     */
+    public static WithdrawResult transferFunds(Account from, Account to, long amount) {
+        WithdrawResult[] result = new WithdrawResult[1];
+        Account.transfer(from, to, amount, true, result);
+        return result[0];
+    }
+
+    /**
+     * Move money from one account to another, optionally leaving the wait for the journal to the caller
+     * @param from          the account to take the money from
+     * @param to            the account to put the money in
+     * @param amount        the amount to transfer, in cents (must not be negative)
+     * @param awaitJournal  whether to wait until the transfer's journal record is durable
+     * @param result        set to OK if the transfer went through, otherwise why it was refused
+     * @return              the withdrawal leg of the transfer, or null if it was refused
+     */
+    static Transaction transfer(Account from, Account to, long amount, boolean awaitJournal, WithdrawResult[] result) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative");
+        }
+        long start = System.nanoTime();
+        String fromMemo = String.format("Transfer to account %s", to.uuid);
+        String toMemo = String.format("Transfer from account %s", from.uuid);
+
+        Transaction debit = null;
+        long seq = 0;
+
+        Account.lockBoth(from, to);
+        try {
+            // validate both legs before touching either account; money leaving the customer is limited like a withdrawal
+            long now = System.currentTimeMillis();
+            WithdrawalLimits.Usage usage = from.holder != to.holder ? from.withdrawalUsage() : null;
+            if (amount > from.balance) {
+                result[0] = WithdrawResult.INSUFFICIENT_FUNDS;
+            } else {
+                result[0] = usage == null ? WithdrawResult.OK : usage.check(now, amount);
+            }
+
+            if (result[0] == WithdrawResult.OK) {
+                long newFromBalance = from.balance - amount; // can't overflow, since 0 <= amount <= balance
+                long newToBalance = Money.add(from == to ? newFromBalance : to.balance, amount);
+
+                debit = new Transaction(-amount, fromMemo, from);
+                Transaction credit = new Transaction(amount, toMemo, to);
+                Transaction.link(debit, credit);
+
+                // both legs go into the journal as a single record, then get applied
+                Journal journal = from.bank.getJournal();
+                seq = journal == null ? 0 : journal.appendTransfer(debit, credit);
+                long version = from.bank.nextVersion();
+                int debitIndex = from.appendTransaction(debit, newFromBalance, seq, version);
+                int creditIndex = to.appendTransaction(credit, newToBalance, seq, version);
+                from.transactions.link(debitIndex, credit);
+                to.transactions.link(creditIndex, debit);
+                if (usage != null) {
+                    usage.record(now, amount);
+                }
+            }
+        } finally {
+            Account.unlockBoth(from, to);
+        }
+
+        if (awaitJournal) {
+            from.awaitJournal(seq); // nothing to wait for if the transfer was refused
+        }
+        TRANSFER_METRICS.record(start, debit != null);
+        return debit;
+    }
+
+    /**
+     * Apply a transfer read back from the journal, skipping any leg whose account already includes it
+     * @param from      the account the money was taken from
+     * @param to        the account the money was put in
+     * @param seq       the sequence number of the journal record
+     * @param time      the time of the transfer, in epoch milliseconds
+     * @param amount    the amount transferred, in cents
+     * @param fromMemo  the memo for the withdrawal side
+     * @param toMemo    the memo for the deposit side
+     */
+    static void replayTransfer(Account from, Account to, long seq, long time, long amount, String fromMemo, String toMemo) {
+        Account.lockBoth(from, to);
+        try {
+            long version = from.bank.nextVersion();
+            int[] debitIndex = new int[1];
+            int[] creditIndex = new int[1];
+            Transaction debit = from.replayTransaction(seq, time, -amount, fromMemo, version, debitIndex);
+            Transaction credit;
+            if (from == to) {
+                // a transfer to the same account: the debit leg has just marked the account as
+                // including this record, so the credit leg has to follow it or be skipped with it
+                credit = null;
+                if (debit != null) {
+                    credit = new Transaction(amount, toMemo, new Date(time), to);
+                    creditIndex[0] = to.appendTransaction(credit, Money.add(to.balance, amount), seq, version);
+                }
+            } else {
+                credit = to.replayTransaction(seq, time, amount, toMemo, version, creditIndex);
+            }
+            if (debit != null && credit != null) {
+                // link each leg where it was appended, as transfer does; with both in one account
+                // the debit isn't the last transaction any more
+                Transaction.link(debit, credit);
+                from.transactions.link(debitIndex[0], credit);
+                to.transactions.link(creditIndex[0], debit);
+            }
+        } finally {
+            Account.unlockBoth(from, to);
+        }
+    }
+
+    /**
+     * Lock two accounts in a fixed (account ID) order
+     * @param a the first account
+     * @param b the second account, which may be the same as the first
+     */
+    public static void lockBoth(Account a, Account b) {
+        // account IDs are unique, so comparing them gives every pair of accounts the same lock order
+        Account first = a.uuid.compareTo(b.uuid) <= 0 ? a : b;
+        Account second = first == a ? b : a;
+
+        first.lock.lock();
+        if (second != first) {
+            second.lock.lock();
+        }
+    }
+
+    /**
+     * Unlock two accounts locked by lockBoth
+     * @param a the first account
+     * @param b the second account, which may be the same as the first
+     */
+    public static void unlockBoth(Account a, Account b) {
+        a.lock.unlock();
+        if (b != a) {
+            b.lock.unlock();
+        }
     }
 }
\ No newline at end of file
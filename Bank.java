@@ -1,10 +1,116 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Bank {
+    /**
+     * The number of digits in a user ID
+     */
+    public static final int USER_ID_LENGTH = 6;
+
+    /**
+     * The number of digits in an account ID
+     */
+    public static final int ACCOUNT_ID_LENGTH = 10; // since there will likely be more accounts than users, this UUID length is 10
+
+    /**
+     * How long accounts keep their version logs, and so how long a BankView can be read for
+     */
+    public static final long VIEW_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     private String name;
-    private ArrayList<User> users;
-    private ArrayList<Account> accounts; // each user object already has its own list of accounts, but this will be a big list of all the accounts
+    private List<User> users; // synchronized, since many sessions may share one bank
+    private List<Account> accounts; // each user object already has its own list of accounts, but this will be a big list of all the accounts
+
+    /**
+     * Index of the users by their user ID, so lookups don't have to walk the users list
+     */
+    private ConcurrentHashMap<String, User> usersByID;
+
+    /**
+     * Index of the accounts by their account ID
+     */
+    private ConcurrentHashMap<String, Account> accountsByID;
+
+    /**
+     * Every user ID handed out so far. IDs are claimed here as soon as they're generated,
+     * so two sessions creating users at the same time can't both get the same ID
+     */
+    private Set<String> takenUserIDs;
+
+    /**
+     * Every account ID handed out so far
+     */
+    private Set<String> takenAccountIDs;
+
+    /**
+     * Hashes and checks pins, and keeps track of wrong pins for lockouts
+     */
+    private volatile PinVerifier pinVerifier = new PinVerifier();
+
+    /**
+     * Where new user IDs come from
+     */
+    private volatile IdGenerator userIDs;
+
+    /**
+     * Where new account IDs come from
+     */
+    private volatile IdGenerator accountIDs;
+
+    /**
+     * The journal every transaction is written to, or null to keep everything in memory only
+     */
+    private volatile Journal journal;
+
+    /**
+     * Whether new accounts keep their history in a compact ColumnarHistory instead of a list of Transaction objects
+     */
+    private volatile boolean columnarHistory;
+
+    /**
+     * The pool of memos shared by every ColumnarHistory in the bank
+     */
+    private final MemoPool memoPool = new MemoPool();
+
+    /**
+     * The cache of history pages in memory, with the rest on disk, or null to keep every history in memory
+     */
+    private volatile PageCache pageCache;
+
+    /**
+     * The withdrawal limits for every account that doesn't have its own
+     */
+    private volatile WithdrawalLimits withdrawalLimits = WithdrawalLimits.NONE;
+
+    /**
+     * The last version handed out; every change to an account is committed at a new version, and
+     * BankViews read the bank as of one
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The index of every account's transactions, for searching the whole bank, or null until enableIndex
+     */
+    private volatile TransactionIndex index;
+
+    /**
+     * When the history kept in memory begins, in epoch milliseconds: a bank recovered from a
+     * snapshot only has each account's balance as of the snapshot, carried forward as one
+     * transaction, and what happened after it
+     */
+    private volatile long historyStart = Long.MIN_VALUE;
+
+    /**
+     * How often and how fast logins happen, and how many are refused
+     */
+    private static final Metrics.Operation LOGIN_METRICS = Metrics.operation("login");
 
     /**
      * Create a new bank object with empty lists of users and accounts
@@ -12,38 +118,30 @@ public class Bank {
      */
     public Bank(String name) {
         this.name = name;
-        this.users = new ArrayList<User>();
-        this.accounts = new ArrayList<Account>();
+        this.users = Collections.synchronizedList(new ArrayList<User>());
+        this.accounts = Collections.synchronizedList(new ArrayList<Account>());
+        this.usersByID = new ConcurrentHashMap<String, User>();
+        this.accountsByID = new ConcurrentHashMap<String, Account>();
+        this.takenUserIDs = ConcurrentHashMap.newKeySet();
+        this.takenAccountIDs = ConcurrentHashMap.newKeySet();
+
+        // seeding with the name means a bank recovered from disk shuffles its IDs the same way as before
+        this.userIDs = new SequenceIdGenerator(USER_ID_LENGTH, name.hashCode());
+        this.accountIDs = new SequenceIdGenerator(ACCOUNT_ID_LENGTH, ~name.hashCode());
     }
 
     /**
      * Generate a new universal unique identifier for a user
      * @return the UUID
+     * @throws IllegalStateException if every possible user ID has been handed out
      */
     public String getNewUserUUID() {
-        // initialize
         String uuid;
-        Random rng = new Random();  
-        int len = 6;
-        boolean nonUnique;
 
-        // continue looping until we get a unique ID
+        // a generator never repeats itself, so this only loops past IDs claimed some other way (like users recovered from a snapshot)
         do {
-            // generate the number
-            uuid = "";
-            for (int c = 0; c < len; c++) {                
-                uuid += ((Integer)rng.nextInt(10)).toString(); // the Integer class is wrapping around the primitive integer, allowing us to call methods like toString()
-            }
-
-            // check to make sure it's unique
-            nonUnique = false;
-            for (User u : this.users) { // for each user, do the following:
-                if (uuid.compareTo(u.getUUID()) == 0) {
-                    nonUnique = true;
-                    break;
-                }
-            }
-        } while (nonUnique == true);
+            uuid = this.userIDs.nextId();
+        } while (!this.takenUserIDs.add(uuid)); // add() only succeeds for the one caller that claims a free ID
 
         return uuid;
     }
@@ -51,34 +149,91 @@ public class Bank {
     /**
      * Generate a new universal unique identifier for an account
      * @return the UUID
+     * @throws IllegalStateException if every possible account ID has been handed out
      */
     public String getNewAccountUUID() {
-        // initialize
         String uuid;
-        Random rng = new Random();
-        int len = 10; // since there will likely be more accounts than users, this UUID length is 10
-        boolean nonUnique;
 
-        // continue looping until we get a unique ID
         do {
-            // generate the number
-            uuid = "";
-            for (int c = 0; c < len; c++) {
-                uuid += ((Integer)rng.nextInt(10)).toString(); // the Integer class is wrapping around the primitive integer, allowing us to call methods like toString()
-            }
-
-            // check to make sure it's unique
-            nonUnique = false;
-            for (Account a : this.accounts) { // for each account, do the following:
-                if (uuid.compareTo(a.getUUID()) == 0) {
-                    nonUnique = true;
-                    break;
-                }
-            }
-        } while (nonUnique == true);
+            uuid = this.accountIDs.nextId();
+        } while (!this.takenAccountIDs.add(uuid));
 
         return uuid;
+    }
+
+    /**
+     * Get the generator new user IDs come from
+     * @return the generator
+     */
+    public IdGenerator getUserIdGenerator() {
+        return this.userIDs;
+    }
+
+    /**
+     * Use a different generator for new user IDs
+     * @param generator the generator, which must hand out USER_ID_LENGTH-digit IDs
+     */
+    public void setUserIdGenerator(IdGenerator generator) {
+        this.userIDs = generator;
+    }
+
+    /**
+     * Get the generator new account IDs come from
+     * @return the generator
+     */
+    public IdGenerator getAccountIdGenerator() {
+        return this.accountIDs;
+    }
+
+    /**
+     * Use a different generator for new account IDs
+     * @param generator the generator, which must hand out ACCOUNT_ID_LENGTH-digit IDs
+     */
+    public void setAccountIdGenerator(IdGenerator generator) {
+        this.accountIDs = generator;
+    }
+
+    /**
+     * Turn a user ID stored as a number (in the journal) back into its string form, leading zeros and all
+     * @param id    the numeric user ID
+     * @return      the user ID
+     */
+    public static String formatUserUUID(long id) {
+        return Bank.padDigits(id, USER_ID_LENGTH);
+    }
+
+    /**
+     * Turn an account ID stored as a number (in the journal) back into its string form, leading zeros and all
+     * @param id    the numeric account ID
+     * @return      the account ID
+     */
+    public static String formatAccountUUID(long id) {
+        return Bank.padDigits(id, ACCOUNT_ID_LENGTH);
+    }
+
+    private static String padDigits(long id, int len) {
+        char[] digits = new char[len];
+        for (int c = len - 1; c >= 0; c--) {
+            digits[c] = (char) ('0' + id % 10);
+            id /= 10;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Make sure a user ID from a snapshot or journal is never handed out again
+     * @param uuid  the user ID
+     */
+    void claimUserUUID(String uuid) {
+        this.takenUserIDs.add(uuid);
+    }
 
+    /**
+     * Make sure an account ID from a snapshot or journal is never handed out again
+     * @param uuid  the account ID
+     */
+    void claimAccountUUID(String uuid) {
+        this.takenAccountIDs.add(uuid);
     }
 
     /**
@@ -87,7 +242,51 @@ public class Bank {
      */
     public void addAccount(Account anAccount)
     {
+        this.registerAccount(anAccount);
+
+        // journal the account after it's visible, so a snapshot taken in between can't miss it
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.awaitDurable(journal.appendAccount(anAccount));
+        }
+    }
+
+    /**
+     * Add an account to the bank's list and index, without journaling it (used directly when recovering)
+     * @param anAccount the account to add
+     */
+    void registerAccount(Account anAccount) {
         accounts.add(anAccount);
+        accountsByID.put(anAccount.getUUID(), anAccount);
+    }
+
+    /**
+     * Add a user to the bank's list and index, without journaling it (used directly when recovering)
+     * @param aUser the user to add
+     */
+    void registerUser(User aUser) {
+        this.users.add(aUser);
+        this.usersByID.put(aUser.getUUID(), aUser);
+    }
+
+    /**
+     * Get a copy of the list of users, safe to walk while other sessions add users
+     * @return the users
+     */
+    public List<User> getUsers() {
+        synchronized (this.users) {
+            return new ArrayList<User>(this.users);
+        }
+    }
+
+    /**
+     * Get a copy of the list of accounts, safe to walk while other sessions open accounts
+     * @return the accounts
+     */
+    public List<Account> getAccounts() {
+        synchronized (this.accounts) {
+            return new ArrayList<Account>(this.accounts);
+        }
     }
 
     /**
@@ -99,7 +298,11 @@ public class Bank {
     public User addUser(String firstName, String lastName, String pin) {
         // create a new User object and add it to our list
         User newUser = new User(firstName, lastName, pin, this);
-        this.users.add(newUser);
+        this.registerUser(newUser);
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.awaitDurable(journal.appendUser(newUser));
+        }
 
         // create a savings account for the user and add to User and Bank accounts lists
         Account newAccount = new Account("Savings", newUser, this);
@@ -109,21 +312,351 @@ public class Bank {
         return newUser;
     }
 
+    /**
+     * Find a user by their user ID
+     * @param userID    the ID of the user
+     * @return          the User object, or null if there's no such user
+     */
+    public User findUser(String userID) {
+        return this.usersByID.get(userID);
+    }
+
+    /**
+     * Find an account by its account ID
+     * @param accountID the ID of the account
+     * @return          the Account object, or null if there's no such account
+     */
+    public Account findAccount(String accountID) {
+        return this.accountsByID.get(accountID);
+    }
+
+    /**
+     * Get the number of users of the bank
+     * @return the number of users
+     */
+    public int numUsers() {
+        return this.users.size();
+    }
+
+    /**
+     * Get the number of accounts in the bank
+     * @return the number of accounts
+     */
+    public int numAccounts() {
+        return this.accounts.size();
+    }
+
+    /**
+     * Transfer money between any two accounts of the bank, recording both legs as one linked pair
+     * @param fromAccountID the ID of the account to transfer from
+     * @param toAccountID   the ID of the account to transfer to
+     * @param amount        the amount to transfer, in cents
+     * @return              the withdrawal leg of the transfer, or null if it would overdraw the from
+     *                      account or, for another customer's account, go past its withdrawal limits
+     * @throws IllegalArgumentException if either account doesn't exist or the amount is negative
+     */
+    public Transaction transfer(String fromAccountID, String toAccountID, long amount) {
+        return Account.transfer(this.accountForTransfer(fromAccountID), this.accountForTransfer(toAccountID), amount);
+    }
+
+    /**
+     * Transfer money between any two accounts of the bank, like transfer, saying why if it's refused
+     * @param fromAccountID the ID of the account to transfer from
+     * @param toAccountID   the ID of the account to transfer to
+     * @param amount        the amount to transfer, in cents
+     * @return              OK if the transfer went through, otherwise why it was refused
+     * @throws IllegalArgumentException if either account doesn't exist or the amount is negative
+     */
+    public Account.WithdrawResult transferFunds(String fromAccountID, String toAccountID, long amount) {
+        return Account.transferFunds(this.accountForTransfer(fromAccountID), this.accountForTransfer(toAccountID), amount);
+    }
+
+    private Account accountForTransfer(String accountID) {
+        Account acct = this.findAccount(accountID);
+        if (acct == null) {
+            throw new IllegalArgumentException(String.format("No such account: %s", accountID));
+        }
+        return acct;
+    }
+
+    /**
+     * Load a batch file of deposits and withdrawals, like a payroll run. Rows are grouped by
+     * account and each account's rows are applied together; rows that would overdraw their
+     * account, or name an account that doesn't exist, are rejected one by one
+     * @param file      the batch file
+     * @param format    whether the file is CSV or binary
+     * @param parallel  whether to apply different accounts' rows on several threads at once
+     * @return          the report of applied and rejected rows
+     * @throws IOException if the file can't be read
+     */
+    public BatchIngest.Report ingest(Path file, BatchIngest.Format format, boolean parallel) throws IOException {
+        return new BatchIngest(this, parallel).load(file, format);
+    }
+
+    /**
+     * Get the total number of transactions in all the accounts of the bank
+     * @return the number of transactions
+     */
+    public long numTransactions() {
+        long total = 0;
+        for (Account acct : this.getAccounts()) {
+            total += acct.numTransactions();
+        }
+        return total;
+    }
+
+    /**
+     * Publish this bank's user, account and transaction counts as gauges in Metrics, and make
+     * all the metrics readable over JMX
+     */
+    public void exposeMetrics() {
+        Metrics.gauge("users", this::numUsers);
+        Metrics.gauge("accounts", this::numAccounts);
+        Metrics.gauge("transactions", this::numTransactions);
+        Metrics.gauge("totalBalanceCents", () -> this.openView().getTotalBalance());
+        PageCache cache = this.pageCache;
+        if (cache != null) {
+            Metrics.gauge("pages.resident", cache::residentPages);
+            Metrics.gauge("pages.faults", cache::getFaults);
+            Metrics.gauge("pages.evictions", cache::getEvictions);
+            Metrics.gauge("pages.storeBytes", () -> cache.getStore().size());
+        }
+        Metrics.exposeJMX();
+    }
+
+    /**
+     * Get the User object for a given user ID/pin combination
+     * @param userID    the ID of the user
+     * @param pin       the pin of the user
+     * @return          the User object, or null if the combination is wrong
+     */
     public User userLogin(String userID, String pin) {
-        // search through list of users
-        for (User u : this.users) {
+        long start = System.nanoTime();
+
+        // look the user up directly; an unknown ID has no pin to guess, so it isn't tracked either,
+        // and guessing at IDs can't fill up the verifier's table of failed attempts
+        User u = this.findUser(userID);
+        if (u == null) {
+            LOGIN_METRICS.record(start, false);
+            return null;
+        }
+
+        // refuse a user ID that's had too many wrong pins lately, without even checking the pin,
+        // and otherwise count this attempt as a failure until the pin turns out to be right
+        PinVerifier verifier = this.pinVerifier;
+        if (!verifier.tryAttempt(userID)) {
+            LOGIN_METRICS.record(start, false);
+            return null;
+        }
+
+        // check the pin for that one user only
+        if (u.validatePIN(pin)) {
+            verifier.recordSuccess(userID);
 
-            // check user ID is correct
-            if (u.getUUID().compareTo(userID) == 0 && u.validatePIN(pin)) {
-                return u;
+            // with tiered storage, bring the newest history of the user's accounts back from disk while they look at the menu
+            if (this.pageCache != null) {
+                u.prefetchAccounts();
             }
+            LOGIN_METRICS.record(start, true);
+            return u;
         }
 
+        LOGIN_METRICS.record(start, false);
         return null;
     }
 
+    /**
+     * Get the verifier that hashes and checks pins
+     * @return the pin verifier
+     */
+    public PinVerifier getPinVerifier() {
+        return this.pinVerifier;
+    }
+
+    /**
+     * Use different pin hashing or lockout settings. Users created before keep their old
+     * pin hashes, which still work, since each hash records how it was made
+     * @param verifier  the pin verifier
+     */
+    public void setPinVerifier(PinVerifier verifier) {
+        this.pinVerifier = verifier;
+    }
+
     public String getName()
     {
         return this.name;
     }
+
+    /**
+     * Get the journal transactions are written to
+     * @return the journal, or null if the bank doesn't have one
+     */
+    public Journal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Get when the history kept in memory begins. Nothing before it is known except the balances
+     * brought forward at it
+     * @return the time, in epoch milliseconds, or Long.MIN_VALUE if the bank has its whole history
+     */
+    public long getHistoryStart() {
+        return this.historyStart;
+    }
+
+    /**
+     * Say when the history kept in memory begins, for a bank recovered from a snapshot
+     * @param time  the time the snapshot was taken, in epoch milliseconds
+     */
+    void setHistoryStart(long time) {
+        this.historyStart = time;
+    }
+
+    /**
+     * Choose the kind of history store accounts opened from now on will use
+     * @param columnar  true for the compact ColumnarHistory, false for a plain list of Transaction objects
+     */
+    public void setColumnarHistory(boolean columnar) {
+        this.columnarHistory = columnar;
+    }
+
+    /**
+     * Create an empty transaction history for a new account
+     * @param anAccount the account the history is for
+     * @return          the history
+     */
+    TransactionHistory newHistory(Account anAccount) {
+        PageCache cache = this.pageCache;
+        if (cache != null) {
+            return new PagedHistory(anAccount, this, this.memoPool, cache);
+        }
+        if (this.columnarHistory) {
+            return new ColumnarHistory(anAccount, this.memoPool);
+        }
+        return new ListHistory();
+    }
+
+    /**
+     * Create an empty version log for a new account
+     * @return the version log, which only keeps a few minutes of entries
+     */
+    VersionLog newVersionLog() {
+        return new VersionLog(VIEW_RETENTION_MILLIS);
+    }
+
+    /**
+     * Switch to tiered storage: only a bounded number of history pages stay in memory, the ones
+     * used least recently are written out to a local file, and they're read back in when they're
+     * next used. Balances are always kept in memory, so reading them never waits for the disk.
+     * Every existing account's history is moved over now, so call it once the bank is recovered
+     * and before sessions start
+     * @param file      the file to write pages out to; it's emptied now and deleted when the bank's done with it
+     * @param maxPages  the most pages to keep in memory, each holding up to PagedHistory.PAGE_SIZE transactions
+     * @throws IOException if the file can't be created
+     * @throws IllegalStateException if the bank already uses tiered storage, or indexes its transactions
+     */
+    public synchronized void setTieredStorage(Path file, int maxPages) throws IOException {
+        if (this.pageCache != null) {
+            throw new IllegalStateException("The bank already uses tiered storage");
+        }
+        if (this.index != null) {
+            throw new IllegalStateException("Tiered storage can't be used with the transaction index, which keeps every transaction in memory");
+        }
+        this.pageCache = new PageCache(new PageStore(file, PagedHistory.PAGE_SIZE * PagedHistory.ENTRY_BYTES), maxPages);
+        for (Account acct : this.getAccounts()) {
+            acct.moveHistory();
+        }
+    }
+
+    /**
+     * Get the cache of history pages in memory
+     * @return the cache, or null if the bank doesn't use tiered storage
+     */
+    public PageCache getPageCache() {
+        return this.pageCache;
+    }
+
+    /**
+     * Get the withdrawal limits for accounts that don't have their own
+     * @return the limits, WithdrawalLimits.NONE if there aren't any
+     */
+    public WithdrawalLimits getWithdrawalLimits() {
+        return this.withdrawalLimits;
+    }
+
+    /**
+     * Set the withdrawal limits for every account that doesn't have its own
+     * @param limits    the limits, or WithdrawalLimits.NONE for no limits
+     */
+    public void setWithdrawalLimits(WithdrawalLimits limits) {
+        this.withdrawalLimits = limits;
+    }
+
+    /**
+     * Get a new version to commit a change at. The caller must hold the lock of every account it
+     * changes from before it gets the version until the change is applied
+     * @return the version
+     */
+    long nextVersion() {
+        return this.version.incrementAndGet();
+    }
+
+    /**
+     * Open a read-only view of every account as of now. Reading it never blocks tellers, and it
+     * doesn't change as they keep working
+     * @return the view
+     */
+    public BankView openView() {
+        return new BankView(this, this.version.get());
+    }
+
+    /**
+     * Start indexing every account's transactions by time, amount, memo words and the other account
+     * of a transfer, so searches of the whole bank don't have to look at every transaction. The
+     * accounts' existing transactions get indexed now, so call it once the bank is recovered and
+     * before sessions start
+     * @throws IllegalStateException if the bank uses tiered storage
+     */
+    public synchronized void enableIndex() {
+        if (this.index != null) {
+            return;
+        }
+        if (this.pageCache != null) {
+            throw new IllegalStateException("The transaction index can't be used with tiered storage, since it keeps every transaction in memory");
+        }
+        TransactionIndex newIndex = new TransactionIndex();
+        this.index = newIndex; // accounts opened from now on start out indexed
+        for (Account acct : this.getAccounts()) {
+            acct.attachIndex(newIndex);
+        }
+    }
+
+    /**
+     * Get the index of every account's transactions
+     * @return the index, or null if enableIndex hasn't been called
+     */
+    public TransactionIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Start a search of every account's transactions
+     * @return the search, which matches everything until it's narrowed down
+     * @throws IllegalStateException if the bank isn't indexing its transactions
+     */
+    public TransactionSearch search() {
+        TransactionIndex theIndex = this.index;
+        if (theIndex == null) {
+            throw new IllegalStateException("Transactions aren't indexed; call enableIndex first");
+        }
+        return theIndex.search();
+    }
+
+    /**
+     * Start writing every transaction to a journal
+     * @param journal   the journal to use, or null to stop journaling
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+// A read-only, point-in-time view of every account in a bank, for reports that run while tellers keep working
+
+import java.util.List;
+
+/**
+ * Every change to an account is committed at a bank version, with both legs of a transfer at the
+ * same one, and each account logs the version, time and balance of its changes in a VersionLog.
+ * A view just remembers the version it was opened at and ignores anything committed later, so
+ * every question it answers agrees with every other, however long it takes to answer them and
+ * however many threads do it. Reading it takes no locks unless an account is being changed right
+ * that moment, and even then only for as long as the change takes.
+ * <p>
+ * Accounts only keep a few minutes of their version logs, so a view has to be read within that
+ * time; reading an older one throws IllegalStateException. Questions about times the logs no
+ * longer cover are answered from the histories, which does take locks. A bank recovered from a
+ * snapshot has no history from before it, only the balances brought forward at it, so asking
+ * for the balance at an earlier time throws IllegalStateException too.
+ */
+public class BankView {
+    private final long version;
+
+    /**
+     * The accounts when the view was opened; any opened since have nothing at the view's version
+     */
+    private final List<Account> accounts;
+
+    /**
+     * When the bank's history begins; balances before it aren't known
+     */
+    private final long historyStart;
+
+    /**
+     * Open a view, through Bank.openView
+     * @param theBank   the bank
+     * @param version   the version to read it as of
+     */
+    BankView(Bank theBank, long version) {
+        this.version = version;
+        this.accounts = theBank.getAccounts();
+        this.historyStart = theBank.getHistoryStart();
+    }
+
+    /**
+     * Get the version the view reads the bank as of
+     * @return the version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Get the balance of an account as of the view
+     * @param acct  the account
+     * @return      the balance, in cents
+     */
+    public long getBalance(Account acct) {
+        VersionLog.Window log = acct.versionWindow();
+        return log.balanceAfter(log.countAsOf(this.version));
+    }
+
+    /**
+     * Get the balance an account had at a time, as far as the view knows
+     * @param acct  the account
+     * @param time  the time, in epoch milliseconds; transactions at that exact time count
+     * @return      the balance, in cents
+     * @throws IllegalStateException if the time is before the bank's history begins
+     */
+    public long getBalanceAt(Account acct, long time) {
+        this.checkHistoryCovers(time);
+        long end = time == Long.MAX_VALUE ? time : time + 1;
+        VersionLog.Window log = acct.versionWindow();
+        int count = log.countAsOf(this.version);
+        int before = log.countBefore(end, count);
+        if (before < 0) {
+            // the log's dropped the entries around that time, so work back through the history instead
+            return acct.balanceBefore(end, count, log.balanceAfter(count));
+        }
+        return log.balanceAfter(before);
+    }
+
+    /**
+     * Add up the balances of every account, on all cores
+     * @return the total, in cents
+     */
+    public long getTotalBalance() {
+        return this.accounts.parallelStream().mapToLong(this::getBalance).reduce(0, Money::add);
+    }
+
+    /**
+     * Add up the balances every account had at a time, on all cores
+     * @param time  the time, in epoch milliseconds
+     * @return      the total, in cents
+     * @throws IllegalStateException if the time is before the bank's history begins
+     */
+    public long getTotalBalanceAt(long time) {
+        this.checkHistoryCovers(time);
+        return this.accounts.parallelStream().mapToLong(a -> this.getBalanceAt(a, time)).reduce(0, Money::add);
+    }
+
+    /**
+     * Add up every transaction that put money into an account, transfers in included, on all cores
+     * @return the total, in cents
+     */
+    public long getTotalDeposits() {
+        return this.accounts.parallelStream().mapToLong(a -> this.sumAmounts(a, true)).reduce(0, Money::add);
+    }
+
+    /**
+     * Add up every transaction that took money out of an account, transfers out included, on all cores
+     * @return the total, as a positive number of cents
+     */
+    public long getTotalWithdrawals() {
+        return this.accounts.parallelStream().mapToLong(a -> this.sumAmounts(a, false)).reduce(0, Money::add);
+    }
+
+    /**
+     * Count the transactions in every account as of the view
+     * @return the number of transactions
+     */
+    public long numTransactions() {
+        return this.accounts.parallelStream().mapToLong(a -> a.versionWindow().countAsOf(this.version)).sum();
+    }
+
+    /**
+     * Refuse a time from before the bank's history begins
+     */
+    private void checkHistoryCovers(long time) {
+        if (time < this.historyStart) {
+            throw new IllegalStateException("Time " + time + " is before the bank's history begins at " + this.historyStart);
+        }
+    }
+
+    /**
+     * Add up the money in or the money out of one account
+     */
+    private long sumAmounts(Account acct, boolean in) {
+        VersionLog.Window log = acct.versionWindow();
+        int count = log.countAsOf(this.version);
+
+        // anything the log has dropped comes from the history instead
+        long total = log.first() > 0 ? acct.sumAmounts(0, log.first(), in) : 0;
+        for (int i = log.first(); i < count; i++) {
+            long amount = log.amountAt(i);
+            if (in ? amount > 0 : amount < 0) {
+                total = Money.add(total, in ? amount : -amount);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,498 @@
+// Loads a file of deposits and withdrawals into the bank in bulk, like a payroll run
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A batch file has one row per transaction: an account ID, an amount (positive to deposit,
+ * negative to withdraw) and a memo. Rows are read a chunk at a time and grouped by account,
+ * then each group is applied under a single lock of its account, checking the balance as it
+ * goes. Rows within an account are applied in file order; a row that would overdraw its
+ * account, or that can't be read, is rejected on its own without stopping the rest.
+ *
+ * <p>Two file formats are understood:
+ * <ul>
+ *   <li>CSV: {@code accountID,amount,memo} per line, the amount in dollars like "-12.50". The
+ *       memo is the rest of the line and may be wrapped in double quotes. Blank lines, lines
+ *       starting with # and a first line reading {@code accountID,amount,memo} (in any case) are
+ *       skipped.</li>
+ *   <li>Binary: the 4 bytes "ATMB", then per row the account ID as a long, the amount in cents
+ *       as a long, a u16 memo length and the memo in UTF-8.</li>
+ * </ul>
+ */
+public class BatchIngest {
+    /**
+     * The kinds of batch file
+     */
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    /**
+     * The first 4 bytes of every binary batch file, "ATMB"
+     */
+    public static final int MAGIC = 0x41544D42;
+
+    /**
+     * The columns of a CSV batch file, which may also be its first line
+     */
+    public static final String CSV_HEADER = "accountID,amount,memo";
+
+    /**
+     * The number of rows grouped and applied at a time, which bounds the memory a huge file needs
+     */
+    private static final int CHUNK_ROWS = 1 << 20;
+
+    /**
+     * Groups smaller than this many rows in total aren't worth splitting across threads
+     */
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private static final int READ_BUFFER_SIZE = 256 << 10;
+
+    /**
+     * The bank to load into
+     */
+    private final Bank bank;
+
+    /**
+     * Whether to apply the groups of a chunk on several threads at once
+     */
+    private final boolean parallel;
+
+    /**
+     * The rows read but not yet applied, by account ID, in the order each account first appeared
+     */
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<String, Group>();
+
+    /**
+     * The number of rows in the groups
+     */
+    private int pendingRows;
+
+    /**
+     * What happened so far
+     */
+    private final Report report = new Report();
+
+    /**
+     * Create a loader
+     * @param theBank   the bank to load into
+     * @param parallel  whether to apply the rows of different accounts on several threads at once
+     */
+    public BatchIngest(Bank theBank, boolean parallel) {
+        this.bank = theBank;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Load a batch file into the bank
+     * @param file      the batch file
+     * @param format    the format of the file
+     * @return          how many rows were applied, and why each of the rest was rejected
+     * @throws IOException if the file can't be read, or isn't a batch file of that format
+     */
+    public Report load(Path file, Format format) throws IOException {
+        if (format == Format.CSV) {
+            this.readCSV(file);
+        } else {
+            this.readBinary(file);
+        }
+        this.applyPending();
+
+        Collections.sort(this.report.rejections, Comparator.comparingLong(Rejection::getRow));
+        return this.report;
+    }
+
+    /**
+     * Stream a CSV batch file, a line at a time
+     */
+    private void readCSV(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            long row = 0;
+            while ((line = in.readLine()) != null) {
+                row++;
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                int comma1 = line.indexOf(',');
+                int comma2 = comma1 < 0 ? -1 : line.indexOf(',', comma1 + 1);
+                String accountID = (comma1 < 0 ? line : line.substring(0, comma1)).trim();
+                if (row == 1 && BatchIngest.isHeader(line)) {
+                    continue;
+                }
+                if (comma1 < 0) {
+                    this.reject(row, accountID, 0, "Expected " + CSV_HEADER);
+                    continue;
+                }
+
+                long amount;
+                try {
+                    amount = Money.parse(line.substring(comma1 + 1, comma2 < 0 ? line.length() : comma2).trim());
+                } catch (NumberFormatException e) {
+                    this.reject(row, accountID, 0, e.getMessage());
+                    continue;
+                }
+                String memo = comma2 < 0 ? "" : BatchIngest.unquote(line.substring(comma2 + 1).trim());
+
+                this.add(row, accountID, amount, memo);
+            }
+        }
+    }
+
+    /**
+     * Stream a binary batch file through one reusable buffer
+     */
+    private void readBinary(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE); // always big enough for the largest possible row
+            buf.limit(0);
+            if (!BatchIngest.fill(in, buf, 4) || buf.getInt() != MAGIC) {
+                throw new IOException(file + " is not a binary batch file");
+            }
+
+            long row = 0;
+            while (BatchIngest.fill(in, buf, 18)) {
+                row++;
+                long accountID = buf.getLong();
+                long amount = buf.getLong();
+                int memoLength = buf.getShort() & 0xFFFF;
+                if (!BatchIngest.fill(in, buf, memoLength)) {
+                    throw new IOException(file + " ends part way through row " + row);
+                }
+                String memo = new String(buf.array(), buf.position(), memoLength, StandardCharsets.UTF_8);
+                buf.position(buf.position() + memoLength);
+
+                this.add(row, Bank.formatAccountUUID(accountID), amount, memo);
+            }
+            if (buf.hasRemaining()) {
+                throw new IOException(file + " ends part way through row " + (row + 1));
+            }
+        }
+    }
+
+    /**
+     * Add a row to its account's group, applying everything read so far once the chunk is full
+     */
+    private void add(long row, String accountID, long amount, String memo) {
+        Group g = this.groups.get(accountID);
+        if (g == null) {
+            g = new Group(accountID);
+            this.groups.put(accountID, g);
+        }
+        g.add(row, amount, memo);
+        this.report.rowsRead++;
+
+        if (++this.pendingRows >= CHUNK_ROWS) {
+            this.applyPending();
+        }
+    }
+
+    /**
+     * Apply every group read so far, then wait once for the journal to have all of it
+     */
+    private void applyPending() {
+        Group[] pending = this.groups.values().toArray(new Group[0]);
+        this.groups.clear();
+        this.pendingRows = 0;
+        long now = System.currentTimeMillis();
+
+        // each group only touches its own account, so the groups can go in any order on any thread
+        if (this.parallel && pending.length > 1) {
+            ForkJoinPool.commonPool().invoke(new ApplyTask(pending, 0, pending.length, now));
+        } else {
+            for (Group g : pending) {
+                g.apply(now);
+            }
+        }
+
+        long lastSeq = 0;
+        for (Group g : pending) {
+            lastSeq = Math.max(lastSeq, g.lastSeq);
+            this.report.collect(g);
+        }
+        Journal journal = this.bank.getJournal();
+        if (lastSeq > 0 && journal != null) {
+            journal.awaitDurable(lastSeq);
+        }
+    }
+
+    private void reject(long row, String accountID, long amount, String reason) {
+        this.report.rowsRead++;
+        this.report.rejections.add(new Rejection(row, accountID, amount, reason));
+    }
+
+    /**
+     * Read from a channel until a buffer has at least a given number of bytes remaining
+     * @return whether there were enough bytes left in the file
+     */
+    private static boolean fill(FileChannel in, ByteBuffer buf, int needed) throws IOException {
+        while (buf.remaining() < needed) {
+            buf.compact();
+            int n = in.read(buf);
+            buf.flip();
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a line is the CSV header, {@code accountID,amount,memo}, ignoring case and
+     * spaces, so that a first row with a mistyped account ID is rejected like any other
+     */
+    private static boolean isHeader(String line) {
+        return line.replace(" ", "").equalsIgnoreCase(CSV_HEADER);
+    }
+
+    /**
+     * Take the double quotes off a quoted CSV field, turning "" back into "
+     */
+    private static String unquote(String s) {
+        if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+            return s.substring(1, s.length() - 1).replace("\"\"", "\"");
+        }
+        return s;
+    }
+
+    /**
+     * The rows of one account, in file order
+     */
+    private class Group {
+        private final String accountID;
+        private long[] rows = new long[4];
+        private long[] amounts = new long[4];
+        private String[] memos = new String[4];
+        private int size;
+
+        /**
+         * Why each row was rejected, or null where it was applied; filled in by apply
+         */
+        private String[] reasons;
+
+        /**
+         * The last journal record written for the group
+         */
+        private long lastSeq;
+
+        private Group(String accountID) {
+            this.accountID = accountID;
+        }
+
+        private void add(long row, long amount, String memo) {
+            if (this.size == this.rows.length) {
+                int capacity = this.size * 2;
+                this.rows = Arrays.copyOf(this.rows, capacity);
+                this.amounts = Arrays.copyOf(this.amounts, capacity);
+                this.memos = Arrays.copyOf(this.memos, capacity);
+            }
+            this.rows[this.size] = row;
+            this.amounts[this.size] = amount;
+            this.memos[this.size] = memo;
+            this.size++;
+        }
+
+        /**
+         * Look the account up once and apply all of its rows under one lock
+         */
+        private void apply(long time) {
+            this.reasons = new String[this.size];
+            Account acct = BatchIngest.this.bank.findAccount(this.accountID);
+            if (acct == null) {
+                Arrays.fill(this.reasons, "No such account");
+                return;
+            }
+            this.lastSeq = acct.applyBatch(this.amounts, this.memos, this.size, time, this.reasons);
+        }
+    }
+
+    /**
+     * Applies a range of groups, splitting it in half across threads while it's big enough to be worth it
+     */
+    private static class ApplyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Group[] groups;
+        private final int from;
+        private final int to;
+        private final long time;
+
+        private ApplyTask(Group[] groups, int from, int to, long time) {
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+            this.time = time;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = 0;
+            for (int i = this.from; i < this.to && rows < PARALLEL_THRESHOLD; i++) {
+                rows += this.groups[i].size;
+            }
+
+            if (rows < PARALLEL_THRESHOLD || this.to - this.from < 2) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.groups[i].apply(this.time);
+                }
+                return;
+            }
+
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new ApplyTask(this.groups, this.from, mid, this.time), new ApplyTask(this.groups, mid, this.to, this.time));
+        }
+    }
+
+    /**
+     * One rejected row
+     */
+    public static class Rejection {
+        private final long row;
+        private final String accountID;
+        private final long amount;
+        private final String reason;
+
+        public Rejection(long row, String accountID, long amount, String reason) {
+            this.row = row;
+            this.accountID = accountID;
+            this.amount = amount;
+            this.reason = reason;
+        }
+
+        /**
+         * Get the line number (for CSV) or row number (for binary) of the row, starting at 1
+         * @return the row number
+         */
+        public long getRow() {
+            return this.row;
+        }
+
+        public String getAccountID() {
+            return this.accountID;
+        }
+
+        /**
+         * Get the amount of the row
+         * @return the amount, in cents, or 0 if it couldn't be read
+         */
+        public long getAmount() {
+            return this.amount;
+        }
+
+        public String getReason() {
+            return this.reason;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append("row ").append(this.row).append(" : ").append(this.accountID).append(" : ");
+            Money.appendTo(sb, this.amount);
+            return sb.append(" : ").append(this.reason).toString();
+        }
+    }
+
+    /**
+     * The result of loading a batch file
+     */
+    public static class Report {
+        private long rowsRead;
+        private long rowsApplied;
+        private long netAmount;
+        private final List<Rejection> rejections = new ArrayList<Rejection>();
+
+        /**
+         * Record the outcome of an applied group
+         */
+        private void collect(Group g) {
+            for (int i = 0; i < g.size; i++) {
+                if (g.reasons[i] == null) {
+                    this.rowsApplied++;
+                    this.netAmount = Money.add(this.netAmount, g.amounts[i]);
+                } else {
+                    this.rejections.add(new Rejection(g.rows[i], g.accountID, g.amounts[i], g.reasons[i]));
+                }
+            }
+        }
+
+        /**
+         * Get the number of rows in the file, applied or not
+         * @return the number of rows
+         */
+        public long getRowsRead() {
+            return this.rowsRead;
+        }
+
+        public long getRowsApplied() {
+            return this.rowsApplied;
+        }
+
+        /**
+         * Get the total of the applied rows, deposits less withdrawals
+         * @return the total, in cents
+         */
+        public long getNetAmount() {
+            return this.netAmount;
+        }
+
+        /**
+         * Get the rejected rows
+         * @return the rejected rows, in file order
+         */
+        public List<Rejection> getRejections() {
+            return Collections.unmodifiableList(this.rejections);
+        }
+
+        /**
+         * Print a summary, followed by every rejected row
+         * @param out   where to print it
+         */
+        public void print(PrintStream out) {
+            out.printf("Read %d rows: %d applied (net %s), %d rejected\n", this.rowsRead, this.rowsApplied,
+                    Money.format(this.netAmount), this.rejections.size());
+            for (Rejection r : this.rejections) {
+                out.println(r);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java BatchIngest <file> [csv|binary] [parallel]");
+            System.exit(1);
+        }
+        Path file = Paths.get(args[0]);
+        Format format = args.length > 1 ? Format.valueOf(args[1].toUpperCase()) : Format.CSV;
+        boolean parallel = args.length > 2 && args[2].equalsIgnoreCase("parallel");
+
+        Bank theBank = ATM.recoverBank(Paths.get("atm.snapshot"), Paths.get("atm.journal"));
+        long start = System.nanoTime();
+        Report report = theBank.ingest(file, format, parallel);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        report.print(System.out);
+        System.out.printf("%,.0f rows/s\n", report.getRowsRead() / seconds);
+        Snapshot.write(theBank, Paths.get("atm.snapshot"));
+        theBank.getJournal().close();
+    }
+}
@@ -0,0 +1,138 @@
+// A compact transaction history that keeps each field in its own primitive array and builds Transaction objects only when asked
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+
+public class ColumnarHistory implements TransactionHistory {
+    /**
+     * The account this history belongs to
+     */
+    private final Account account;
+
+    /**
+     * The pool the memos are stored in
+     */
+    private final MemoPool memos;
+
+    /**
+     * The amount of each transaction, in cents
+     */
+    private long[] amounts;
+
+    /**
+     * The time of each transaction, in epoch milliseconds
+     */
+    private long[] times;
+
+    /**
+     * The number of each transaction's memo in the memo pool
+     */
+    private int[] memoIDs;
+
+    /**
+     * For transfers, the account holding the other leg; null until the first transfer
+     */
+    private Account[] counterparties;
+
+    /**
+     * For transfers, the number of the other leg's memo in the memo pool. The other leg always has the
+     * same time and the opposite amount, so this is all it takes to rebuild it without touching the
+     * other account (and its lock)
+     */
+    private int[] counterpartyMemoIDs;
+
+    /**
+     * The number of transactions
+     */
+    private int size;
+
+    /**
+     * Create an empty history
+     * @param account   the account it belongs to
+     * @param memos     the pool to keep memos in
+     */
+    public ColumnarHistory(Account account, MemoPool memos) {
+        this.account = account;
+        this.memos = memos;
+        this.amounts = new long[8];
+        this.times = new long[8];
+        this.memoIDs = new int[8];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Transaction get(int index) {
+        Objects.checkIndex(index, this.size);
+        Date timestamp = new Date(this.times[index]);
+        Transaction t = new Transaction(this.amounts[index], this.memos.get(this.memoIDs[index]), timestamp, this.account);
+
+        // rebuild the other leg of a transfer too
+        if (this.counterparties != null && this.counterparties[index] != null) {
+            Transaction other = new Transaction(-this.amounts[index], this.memos.get(this.counterpartyMemoIDs[index]), timestamp, this.counterparties[index]);
+            Transaction.link(t, other);
+        }
+
+        return t;
+    }
+
+    @Override
+    public long getAmount(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.amounts[index];
+    }
+
+    @Override
+    public long getTime(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.times[index];
+    }
+
+    @Override
+    public String getMemo(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.memos.get(this.memoIDs[index]);
+    }
+
+    @Override
+    public int add(Transaction t) {
+        if (this.size == this.amounts.length) {
+            int capacity = this.size + (this.size >> 1); // grow by half, like ArrayList does
+            this.amounts = Arrays.copyOf(this.amounts, capacity);
+            this.times = Arrays.copyOf(this.times, capacity);
+            this.memoIDs = Arrays.copyOf(this.memoIDs, capacity);
+            if (this.counterparties != null) {
+                this.counterparties = Arrays.copyOf(this.counterparties, capacity);
+                this.counterpartyMemoIDs = Arrays.copyOf(this.counterpartyMemoIDs, capacity);
+            }
+        }
+
+        this.amounts[this.size] = t.getAmount();
+        this.times[this.size] = t.getTimestamp().getTime();
+        this.memoIDs[this.size] = this.memos.intern(t.getMemo());
+        return this.size++;
+    }
+
+    @Override
+    public void link(int index, Transaction other) {
+        if (this.counterparties == null) {
+            this.counterparties = new Account[this.amounts.length];
+            this.counterpartyMemoIDs = new int[this.amounts.length];
+        }
+        this.counterparties[index] = other.getAccount();
+        this.counterpartyMemoIDs[index] = this.memos.intern(other.getMemo());
+    }
+
+    @Override
+    public long sumAmounts() {
+        long total = 0;
+        for (int i = 0; i < this.size; i++) {
+            total = Money.add(total, this.amounts[i]);
+        }
+        return total;
+    }
+}
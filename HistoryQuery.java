@@ -0,0 +1,138 @@
+// A newest-first query over an account's transaction history, which only builds the transactions it returns
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class HistoryQuery implements Iterable<Transaction> {
+    /**
+     * How many transactions the iterator fetches from the account at a time
+     */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * The account whose history to read
+     */
+    private final Account account;
+
+    /**
+     * Only transactions at or after this time (epoch milliseconds) match
+     */
+    private long fromTime = Long.MIN_VALUE;
+
+    /**
+     * Only transactions before this time (epoch milliseconds) match
+     */
+    private long toTime = Long.MAX_VALUE;
+
+    /**
+     * Only transactions with at least this amount (in cents) match
+     */
+    private long minAmount = Long.MIN_VALUE;
+
+    /**
+     * Only transactions with at most this amount (in cents) match
+     */
+    private long maxAmount = Long.MAX_VALUE;
+
+    /**
+     * Create a query matching every transaction of an account
+     * @param account   the account whose history to read
+     */
+    HistoryQuery(Account account) {
+        this.account = account;
+    }
+
+    /**
+     * Only match transactions in a time range
+     * @param from  the start of the range (inclusive), or null for no start
+     * @param to    the end of the range (exclusive), or null for no end
+     * @return      this query, for chaining
+     */
+    public HistoryQuery between(Date from, Date to) {
+        this.fromTime = from == null ? Long.MIN_VALUE : from.getTime();
+        this.toTime = to == null ? Long.MAX_VALUE : to.getTime();
+        return this;
+    }
+
+    /**
+     * Only match transactions in an amount range. Withdrawals have negative amounts
+     * @param min   the smallest amount to match (inclusive), in cents
+     * @param max   the largest amount to match (inclusive), in cents
+     * @return      this query, for chaining
+     */
+    public HistoryQuery amountBetween(long min, long max) {
+        this.minAmount = min;
+        this.maxAmount = max;
+        return this;
+    }
+
+    /**
+     * Check whether a transaction matches the query, from just its time and amount
+     * @param time      the time of the transaction, in epoch milliseconds
+     * @param amount    the amount of the transaction, in cents
+     * @return          whether it matches
+     */
+    boolean matches(long time, long amount) {
+        return time >= this.fromTime && time < this.toTime && amount >= this.minAmount && amount <= this.maxAmount;
+    }
+
+    /**
+     * Get one page of matching transactions, newest first
+     * @param page      the page number, starting at 0
+     * @param pageSize  the number of transactions per page
+     * @return          the transactions on that page (fewer than pageSize, or none, past the end)
+     */
+    public List<Transaction> page(int page, int pageSize) {
+        List<Transaction> out = new ArrayList<Transaction>(pageSize);
+        this.account.scanHistory(Integer.MAX_VALUE, this, (long) page * pageSize, pageSize, out);
+        return out;
+    }
+
+    /**
+     * Walk the matching transactions newest first. Transactions added after the
+     * iterator is created aren't included
+     * @return the iterator
+     */
+    @Override
+    public Iterator<Transaction> iterator() {
+        return new Iterator<Transaction>() {
+            private final ArrayList<Transaction> batch = new ArrayList<Transaction>(BATCH_SIZE);
+            private int batchPos = 0;
+            private int nextIndex = HistoryQuery.this.account.numTransactions() - 1;
+
+            @Override
+            public boolean hasNext() {
+                // fetch the next batch only once the last one has been used up
+                while (this.batchPos == this.batch.size() && this.nextIndex >= 0) {
+                    this.batch.clear();
+                    this.batchPos = 0;
+                    this.nextIndex = HistoryQuery.this.account.scanHistory(this.nextIndex, HistoryQuery.this, 0, BATCH_SIZE, this.batch);
+                }
+                return this.batchPos < this.batch.size();
+            }
+
+            @Override
+            public Transaction next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.batch.get(this.batchPos++);
+            }
+        };
+    }
+
+    /**
+     * Get the matching transactions, newest first, as a lazy stream
+     * @return the stream
+     */
+    public Stream<Transaction> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this.iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+}
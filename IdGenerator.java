@@ -0,0 +1,23 @@
+// Something that hands out unique IDs for users or accounts
+
+public interface IdGenerator {
+    /**
+     * Get a new ID. Safe to call from many threads at once
+     * @return the ID
+     * @throws IllegalStateException if every possible ID has been handed out
+     */
+    String nextId();
+
+    /**
+     * Get a number describing how far the generator has got, so a restarted bank can carry on
+     * from there instead of handing out IDs it already used
+     * @return the generator's state
+     */
+    long getState();
+
+    /**
+     * Carry on from a state saved by getState. Never moves the generator backwards
+     * @param state the saved state
+     */
+    void restoreState(long state);
+}
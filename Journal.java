@@ -0,0 +1,1115 @@
+// An append-only write-ahead log of every transaction, so the bank's books survive a restart
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+public class Journal implements Closeable {
+    /**
+     * How hard the journal tries to get records onto the disk before an append returns
+     */
+    public enum Durability {
+        /** records are written to the file but never fsynced; a power cut can lose anything the OS hasn't written yet */
+        NONE,
+        /** records are fsynced in the background every flush interval; appends don't wait, so a crash can lose the last interval */
+        ASYNC,
+        /** appends wait until their record is fsynced; records that arrive together share one fsync (group commit) */
+        GROUP
+    }
+
+    /**
+     * Record type of a single transaction on one account
+     */
+    public static final byte TRANSACTION = 1;
+
+    /**
+     * Record type of both legs of a transfer, kept in one record so they're replayed together
+     */
+    public static final byte TRANSFER = 2;
+
+    /**
+     * Record type of a new user
+     */
+    public static final byte USER = 3;
+
+    /**
+     * Record type of a newly opened account
+     */
+    public static final byte ACCOUNT = 4;
+
+    /**
+     * Record type of a nightly posting of interest and fees to one account, with the day it was
+     * for, kept in one record so a rerun of the same day knows the account already has it
+     */
+    public static final byte POSTING = 5;
+
+    /**
+     * For each record type, how many longs and how many length-prefixed byte strings its body holds:
+     *   TRANSACTION: account ID, amount; memo
+     *   TRANSFER:    from account ID, amount, to account ID; from memo, to memo
+     *   USER:        user ID; first name, last name, pin hash
+     *   ACCOUNT:     account ID, holder's user ID; account name
+     *   POSTING:     account ID, interest, fee, epoch day, interest carried forward; interest memo, fee memo
+     */
+    private static final int[] LONG_COUNT = {0, 2, 3, 1, 2, 5};
+    private static final int[] FIELD_COUNT = {0, 1, 2, 3, 1, 2};
+
+    /**
+     * The first 4 bytes of a journal file, "ATMJ"
+     */
+    private static final int FILE_MAGIC = 0x41544D4A;
+
+    /**
+     * Size of the file header: the magic number, the position of the file's first record, and the
+     * sequence number of the last record before it, which were dropped once a snapshot covered them
+     */
+    private static final int FILE_HEADER_SIZE = 4 + 8 + 8;
+
+    /**
+     * Size of the record length, type, sequence number and timestamp at the front of each record
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 8;
+
+    /**
+     * Size of the CRC32C checksum at the end of each record
+     */
+    private static final int CHECKSUM_SIZE = 4;
+
+    /**
+     * Appends block once this many bytes are waiting to be written, so a slow disk can't eat all the heap
+     */
+    private static final int MAX_PENDING_BYTES = 4 << 20;
+
+    /**
+     * Size of the buffer records are read back through, which fits even a transfer with two maximum-length memos
+     */
+    private static final int READ_BUFFER_SIZE = 256 << 10;
+
+    /**
+     * The journal files open in this process. Locks are held by the whole process, and on some
+     * platforms closing any channel to a file drops them, so a second open here is refused by
+     * this set before it can touch the lock file
+     */
+    private static final Set<Path> OPEN_FILES = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The file the journal is written to
+     */
+    private final Path path;
+
+    /**
+     * The channel holding the exclusive lock on the journal's lock file (the journal file with
+     * ".lock" on the end), so no other process can append to the journal while it's open here. A
+     * file of its own, since the journal file itself is replaced when its start is dropped, and
+     * reading it through another channel could release a lock held on it
+     */
+    private final FileChannel lockChannel;
+
+    /**
+     * The channel the journal is written through, replaced when the start of the file is dropped (guarded by lock)
+     */
+    private FileChannel channel;
+
+    /**
+     * Positions are counted from the start of the journal as if nothing had ever been dropped, so
+     * a snapshot's position stays good after the records before it are: this is the position of
+     * the file's first record (guarded by lock)
+     */
+    private long base;
+
+    /**
+     * The durability mode of the journal
+     */
+    private final Durability durability;
+
+    /**
+     * How long the writer waits for more records to join a batch before writing it out
+     */
+    private final long flushIntervalNanos;
+
+    /**
+     * Guards everything below that's shared between appenders and the writer thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when there are records waiting to be written
+     */
+    private final Condition hasWork = this.lock.newCondition();
+
+    /**
+     * Signalled when a batch has been written (and fsynced, unless the durability is NONE)
+     */
+    private final Condition flushed = this.lock.newCondition();
+
+    /**
+     * Records appended but not yet handed to the writer
+     */
+    private ByteBuffer pending;
+
+    /**
+     * The batch the writer thread is currently writing out
+     */
+    private ByteBuffer writing;
+
+    /**
+     * The sequence number the next record will get
+     */
+    private long nextSeq;
+
+    /**
+     * The sequence number of the last record that has been written out
+     */
+    private long flushedSeq;
+
+    /**
+     * The file position the next record will be written at
+     */
+    private long appendPosition;
+
+    /**
+     * The error that stopped the writer thread, if any
+     */
+    private IOException failure;
+
+    /**
+     * Whether close() has been called
+     */
+    private boolean closed;
+
+    /**
+     * Whether flush() is waiting, so the next batch goes out without waiting for more records to join it
+     */
+    private boolean flushRequested;
+
+    /**
+     * Whether the writer must leave the file alone while its start is being dropped, and whether
+     * it's in the middle of writing a batch
+     */
+    private boolean paused;
+    private boolean writingBatch;
+
+    /**
+     * Statistics: the number of records, batches and bytes written
+     */
+    private long recordCount;
+    private long batchCount;
+    private long byteCount;
+
+    /**
+     * The background thread that writes and fsyncs batches of records
+     */
+    private final Thread writer;
+
+    /**
+     * Open a journal file, creating it if needed, reading every record in it to find where it ends.
+     * Any torn record left at the end by a crash is cut off, and sequence numbers carry on from the
+     * last good record
+     * @param path                  the journal file
+     * @param durability            the durability mode
+     * @param flushIntervalMillis   how long to gather records into one batch before writing it out
+     *                              (0 to write as soon as the writer is free)
+     * @throws IOException if the file can't be opened
+     */
+    public Journal(Path path, Durability durability, long flushIntervalMillis) throws IOException {
+        this(path, durability, flushIntervalMillis, -1, 0);
+    }
+
+    /**
+     * Open a journal file, creating it if needed, only reading the records from a known position
+     * on, such as the end of what a snapshot's recovery has already replayed. Any torn record left
+     * at the end by a crash is cut off, and sequence numbers carry on from the last good record
+     * @param path                  the journal file
+     * @param durability            the durability mode
+     * @param flushIntervalMillis   how long to gather records into one batch before writing it out
+     *                              (0 to write as soon as the writer is free)
+     * @param position              the position of a record known to be good, or -1 to read from the start of the file
+     * @param seq                   the sequence number of the last record before that position
+     * @throws IOException if the file can't be opened, doesn't go back as far as the position, or
+     *                     is already open for appending, in this process or another
+     */
+    public Journal(Path path, Durability durability, long flushIntervalMillis, long position, long seq) throws IOException {
+        this.path = path;
+        this.durability = durability;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+        // only one journal may append to a file, or their records would overwrite each other
+        this.lockChannel = Journal.lock(path);
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            Journal.unlock(path, this.lockChannel);
+            throw e;
+        }
+        try {
+            // a new (or never written) file gets a header, so the start of it can be dropped later
+            if (this.channel.size() < FILE_HEADER_SIZE) {
+                Journal.writeHeader(this.channel, Math.max(position, 0), seq);
+            }
+
+            // find the end of the good records, and continue numbering after the last one
+            long[] lastSeq = {seq};
+            long validLength = Journal.read(path, position, entry -> lastSeq[0] = entry.getSeq());
+
+            long[] header = Journal.readHeader(path);
+            this.base = header[0];
+            lastSeq[0] = Math.max(lastSeq[0], header[1]);
+            this.nextSeq = lastSeq[0] + 1;
+            this.flushedSeq = lastSeq[0];
+
+            long end = FILE_HEADER_SIZE + validLength - this.base;
+            this.channel.truncate(end);
+            this.channel.position(end);
+            this.appendPosition = validLength;
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            Journal.unlock(path, this.lockChannel);
+            throw e;
+        }
+
+        this.pending = ByteBuffer.allocate(64 << 10);
+        this.writing = ByteBuffer.allocate(64 << 10);
+
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Get the journal file
+     * @return the path of the journal file
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Append a transaction to the journal
+     * @param t the transaction
+     * @return  the sequence number of its record
+     * @throws UncheckedIOException if the journal has failed
+     */
+    public long append(Transaction t) {
+        return this.append(TRANSACTION, t.getTimestamp().getTime(),
+                new long[] {Long.parseLong(t.getAccount().getUUID()), t.getAmount()},
+                Journal.utf8(t.getMemo()));
+    }
+
+    /**
+     * Append both legs of a transfer to the journal as a single record
+     * @param debit     the withdrawal leg
+     * @param credit    the deposit leg
+     * @return          the sequence number of the record
+     * @throws UncheckedIOException if the journal has failed
+     */
+    public long appendTransfer(Transaction debit, Transaction credit) {
+        return this.append(TRANSFER, debit.getTimestamp().getTime(),
+                new long[] {Long.parseLong(debit.getAccount().getUUID()), credit.getAmount(), Long.parseLong(credit.getAccount().getUUID())},
+                Journal.utf8(debit.getMemo()), Journal.utf8(credit.getMemo()));
+    }
+
+    /**
+     * Append a new user to the journal
+     * @param u the user
+     * @return  the sequence number of the record
+     * @throws UncheckedIOException if the journal has failed
+     */
+    public long appendUser(User u) {
+        return this.append(USER, System.currentTimeMillis(), new long[] {Long.parseLong(u.getUUID())},
+                Journal.utf8(u.getFirstName()), Journal.utf8(u.getLastName()), u.getPinHash());
+    }
+
+    /**
+     * Append a newly opened account to the journal
+     * @param a the account
+     * @return  the sequence number of the record
+     * @throws UncheckedIOException if the journal has failed
+     */
+    public long appendAccount(Account a) {
+        return this.append(ACCOUNT, System.currentTimeMillis(),
+                new long[] {Long.parseLong(a.getUUID()), Long.parseLong(a.getHolder().getUUID())},
+                Journal.utf8(a.getName()));
+    }
+
+    /**
+     * Append a nightly posting of interest and fees to the journal as a single record
+     * @param a             the account
+     * @param time          the time of the posting, in epoch milliseconds
+     * @param interest      the interest posted, in cents (0 if none)
+     * @param fee           the fee taken, as a positive number of cents (0 if none)
+     * @param day           the day the posting was for, as an epoch day
+     * @param carry         the interest accrued but not yet posted afterwards, in PostingEngine.INTEREST_DIVISOR ths of a cent
+     * @param interestMemo  the memo of the interest transaction
+     * @param feeMemo       the memo of the fee transaction
+     * @return              the sequence number of the record
+     * @throws UncheckedIOException if the journal has failed
+     */
+    public long appendPosting(Account a, long time, long interest, long fee, long day, long carry, String interestMemo, String feeMemo) {
+        return this.append(POSTING, time, new long[] {Long.parseLong(a.getUUID()), interest, fee, day, carry},
+                Journal.utf8(interestMemo), Journal.utf8(feeMemo));
+    }
+
+    /**
+     * Get the file position the next record will be written at. Every record appended before
+     * this call is before this position, and every record appended after it is at or after it
+     * @return the file position
+     */
+    public long getAppendPosition() {
+        this.lock.lock();
+        try {
+            return this.appendPosition;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the file position the next record will be written at together with the sequence number
+     * of the last record before it, for a snapshot to say exactly which records it includes
+     * @return the file position and the sequence number (0 if nothing's been appended yet), in that order
+     */
+    public long[] getAppendMark() {
+        this.lock.lock();
+        try {
+            return new long[] {this.appendPosition, this.nextSeq - 1};
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the sequence number of the last record appended so far, so a caller that appended many
+     * records can wait for all of them at once
+     * @return the sequence number, or 0 if nothing has been appended yet
+     */
+    public long getLastSeq() {
+        this.lock.lock();
+        try {
+            return this.nextSeq - 1;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a record is as durable as the journal's mode promises. Only GROUP mode actually waits
+     * @param seq   the sequence number of the record
+     * @throws UncheckedIOException if the journal failed before the record was written
+     */
+    public void awaitDurable(long seq) {
+        if (this.durability != Durability.GROUP) {
+            return;
+        }
+
+        this.lock.lock();
+        try {
+            while (this.flushedSeq < seq && this.failure == null) {
+                this.flushed.awaitUninterruptibly();
+            }
+            if (this.flushedSeq < seq) {
+                throw new UncheckedIOException("Journal write failed", this.failure);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Write out everything appended so far and fsync it, whatever the durability mode
+     * @throws IOException if the journal has failed
+     */
+    public void flush() throws IOException {
+        FileChannel ch;
+        this.lock.lock();
+        try {
+            long seq = this.nextSeq - 1;
+            if (this.flushedSeq < seq) {
+                this.flushRequested = true;
+                this.hasWork.signal();
+            }
+            while (this.flushedSeq < seq && this.failure == null) {
+                this.flushed.awaitUninterruptibly();
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            ch = this.channel;
+        } finally {
+            this.lock.unlock();
+        }
+        try {
+            ch.force(false);
+        } catch (ClosedChannelException e) {
+            // the start of the file was dropped meanwhile, and the new file was forced with our records in it
+            if (ch == this.currentChannel()) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Drop every record before a position from the file, once a snapshot includes them all, so
+     * the journal only ever holds what's been written since the last snapshot. The records after
+     * the position are copied into a new file, which then replaces the old one in one atomic
+     * rename. Appends carry on meanwhile; the writer only stops while the last few records are
+     * copied over. Positions don't change: the new file's header says where it starts
+     * @param position  the position of the first record to keep, from getAppendMark
+     * @param seq       the sequence number of the last record before it, from getAppendMark
+     * @throws IOException if the new file can't be written, in which case the old one is kept
+     */
+    public synchronized void dropBefore(long position, long seq) throws IOException {
+        FileChannel old;
+        long from;
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            if (position <= this.base) {
+                return; // nothing to drop
+            }
+            old = this.channel;
+            from = FILE_HEADER_SIZE + position - this.base;
+        } finally {
+            this.lock.unlock();
+        }
+
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean swapped = false;
+        try {
+            Journal.writeHeader(out, position, seq);
+
+            // copy what's been written so far while the writer carries on, since none of it changes again
+            long copied = Journal.copy(old, from, old.size(), out);
+
+            // then stop the writer and copy the rest of it
+            this.lock.lock();
+            try {
+                this.paused = true;
+                while (this.writingBatch) {
+                    this.flushed.awaitUninterruptibly();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                Journal.copy(old, copied, old.size(), out);
+                out.force(true);
+                Files.move(tmp, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Journal.forceDirectory(this.path);
+
+                this.lock.lock();
+                try {
+                    this.channel = out;
+                    this.base = position;
+                    swapped = true;
+                } finally {
+                    this.lock.unlock();
+                }
+            } finally {
+                this.lock.lock();
+                try {
+                    this.paused = false;
+                    this.hasWork.signal();
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        } finally {
+            if (swapped) {
+                old.close();
+            } else {
+                out.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Get the channel being written to now
+     */
+    private FileChannel currentChannel() {
+        this.lock.lock();
+        try {
+            return this.channel;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Write out everything appended so far, stop the writer thread and close the file
+     * @throws IOException if the journal has failed
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.hasWork.signal();
+        } finally {
+            this.lock.unlock();
+        }
+
+        boolean interrupted = false;
+        while (this.writer.isAlive()) {
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true; // finish closing first, then pass the interrupt on
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        FileChannel ch = this.currentChannel();
+        try {
+            if (this.failure == null) {
+                ch.force(false);
+            }
+        } finally {
+            try {
+                ch.close();
+            } finally {
+                // only once, in case close is called again after another journal has opened the file
+                if (this.lockChannel.isOpen()) {
+                    Journal.unlock(this.path, this.lockChannel);
+                }
+            }
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Get a one-line summary of what the journal has written so far
+     * @return the summary
+     */
+    public String getStats() {
+        this.lock.lock();
+        try {
+            return String.format("%s journal %s: %d records in %d batches (%.1f records/batch), %d bytes",
+                    this.durability, this.path, this.recordCount, this.batchCount,
+                    this.batchCount == 0 ? 0.0 : (double) this.recordCount / this.batchCount, this.byteCount);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Encode a record into the pending batch
+     * @return the sequence number of the record
+     */
+    private long append(byte type, long time, long[] longs, byte[]... fields) {
+        int size = HEADER_SIZE + 8 * longs.length + CHECKSUM_SIZE;
+        for (byte[] f : fields) {
+            if (f.length > 0xFFFF) {
+                throw new IllegalArgumentException("Field is too long to journal");
+            }
+            size += 2 + f.length;
+        }
+
+        this.lock.lock();
+        try {
+            // don't let the pending batch grow without bound if the disk can't keep up
+            while (this.pending.position() > MAX_PENDING_BYTES && this.failure == null) {
+                this.flushed.awaitUninterruptibly();
+            }
+            if (this.failure != null) {
+                throw new UncheckedIOException("Journal write failed", this.failure);
+            }
+            if (this.closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+
+            if (this.pending.remaining() < size) {
+                this.pending = Journal.grow(this.pending, size);
+            }
+
+            long seq = this.nextSeq++;
+            ByteBuffer buf = this.pending;
+            int start = buf.position();
+            buf.putInt(size);
+            buf.put(type);
+            buf.putLong(seq);
+            buf.putLong(time);
+            for (long l : longs) {
+                buf.putLong(l);
+            }
+            for (byte[] f : fields) {
+                buf.putShort((short) f.length);
+                buf.put(f);
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(buf.array(), start, size - CHECKSUM_SIZE);
+            buf.putInt((int) crc.getValue());
+            this.appendPosition += size;
+
+            this.hasWork.signal();
+            return seq;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The body of the writer thread: take whatever is pending, write it out and fsync it, repeat
+     */
+    private void writeLoop() {
+        while (true) {
+            long batchSeq;
+            int batchRecords;
+            FileChannel ch;
+
+            this.lock.lock();
+            try {
+                while (this.paused || (this.pending.position() == 0 && !this.closed)) {
+                    this.hasWork.awaitUninterruptibly();
+                }
+                if (this.pending.position() == 0) {
+                    return; // closed and nothing left to write
+                }
+
+                // give other records a chance to join this batch
+                long deadline = System.nanoTime() + this.flushIntervalNanos;
+                long left;
+                while (!this.closed && !this.flushRequested && (left = deadline - System.nanoTime()) > 0) {
+                    try {
+                        this.hasWork.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                // swap buffers, so appends can carry on while we write
+                ByteBuffer batch = this.pending;
+                this.pending = this.writing;
+                this.pending.clear();
+                this.writing = batch;
+                batchSeq = this.nextSeq - 1;
+                this.flushRequested = false;
+                batchRecords = (int) (batchSeq - this.flushedSeq);
+                ch = this.channel;
+                this.writingBatch = true;
+            } finally {
+                this.lock.unlock();
+            }
+
+            int batchBytes = this.writing.position();
+            try {
+                this.writing.flip();
+                while (this.writing.hasRemaining()) {
+                    ch.write(this.writing);
+                }
+                if (this.durability != Durability.NONE) {
+                    ch.force(false);
+                }
+            } catch (IOException e) {
+                this.lock.lock();
+                try {
+                    this.failure = e;
+                    this.writingBatch = false;
+                    this.flushed.signalAll();
+                } finally {
+                    this.lock.unlock();
+                }
+                return;
+            }
+
+            this.lock.lock();
+            try {
+                this.flushedSeq = batchSeq;
+                this.writingBatch = false;
+                this.recordCount += batchRecords;
+                this.batchCount++;
+                this.byteCount += batchBytes;
+                this.flushed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read every good record of a journal file, stopping at the first torn or corrupt one
+     * @param path      the journal file
+     * @param visitor   called with each record in order
+     * @return          the position just after the last good record
+     * @throws IOException if the file can't be read
+     */
+    public static long read(Path path, Consumer<Entry> visitor) throws IOException {
+        return Journal.read(path, -1, visitor);
+    }
+
+    /**
+     * Read every good record of a journal file from a given position, stopping at the first torn or corrupt one
+     * @param path      the journal file
+     * @param position  the position to start at, which must be the start of a record, or -1 for the start of the file
+     * @param visitor   called with each record in order
+     * @return          the position just after the last good record
+     * @throws IOException if the file can't be read, or its start has been dropped past the position
+     */
+    public static long read(Path path, long position, Consumer<Entry> visitor) throws IOException {
+        long[] header = Files.exists(path) ? Journal.readHeader(path) : null;
+        if (header == null) {
+            return Math.max(position, 0);
+        }
+
+        long base = header[0];
+        if (position < 0) {
+            position = base;
+        } else if (position < base) {
+            throw new IOException("Journal " + path + " starts at position " + base + ", after " + position + " where it needs to be read from");
+        }
+
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            // positions count from the journal's first record ever, so the file's own offsets are shifted by what's been dropped
+            long shift = FILE_HEADER_SIZE - base;
+            long fileSize = in.size() - shift;
+            if (position > fileSize) {
+                throw new IOException("Journal " + path + " ends at position " + fileSize + ", before " + position + " where it needs to be read from");
+            }
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE); // always big enough for the largest possible record
+            CRC32C crc = new CRC32C();
+            in.position(position + shift);
+            buf.limit(0);
+
+            while (true) {
+                // get the record's length, then the whole record, into the buffer
+                if (!Journal.fill(in, buf, 4)) {
+                    return position; // clean end of file, or a torn length
+                }
+                int start = buf.position();
+                int size = buf.getInt(start);
+                if (size < HEADER_SIZE + CHECKSUM_SIZE || size > READ_BUFFER_SIZE || position + size > fileSize) {
+                    return position; // torn or corrupt record
+                }
+                if (!Journal.fill(in, buf, size)) {
+                    return position;
+                }
+                start = buf.position();
+
+                crc.reset();
+                crc.update(buf.array(), start, size - CHECKSUM_SIZE);
+                if ((int) crc.getValue() != buf.getInt(start + size - CHECKSUM_SIZE)) {
+                    return position; // corrupt record
+                }
+
+                buf.getInt();
+                byte type = buf.get();
+                if (type < TRANSACTION || type > POSTING) {
+                    return position; // not a record we know how to read
+                }
+                long seq = buf.getLong();
+                long time = buf.getLong();
+                long[] longs = new long[LONG_COUNT[type]];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = buf.getLong();
+                }
+                byte[][] fields = new byte[FIELD_COUNT[type]][];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(fields[i]);
+                }
+                buf.position(start + size);
+                position += size;
+
+                visitor.accept(new Entry(type, seq, time, longs, fields));
+            }
+        }
+    }
+
+    /**
+     * Read a journal file's header
+     * @return the position of the first record and the sequence number of the last record before
+     *         it, or null if the file is too short to have a header yet, so has no records either
+     * @throws IOException if the file can't be read or isn't a journal
+     */
+    private static long[] readHeader(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            while (buf.hasRemaining() && in.read(buf) >= 0) {
+                // keep reading
+            }
+            buf.flip();
+            if (buf.remaining() < FILE_HEADER_SIZE) {
+                return null;
+            }
+            if (buf.getInt(0) != FILE_MAGIC) {
+                throw new IOException("Journal " + path + " is not a journal file");
+            }
+            return new long[] {buf.getLong(4), buf.getLong(12)};
+        }
+    }
+
+    /**
+     * Replace whatever's in a journal file with just a header, and leave the channel at the end of it
+     */
+    private static void writeHeader(FileChannel out, long position, long seq) throws IOException {
+        out.truncate(0);
+        out.position(0);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(FILE_MAGIC).putLong(position).putLong(seq).flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        out.force(true);
+    }
+
+    /**
+     * Take the exclusive lock on a journal's lock file
+     * @param path  the journal file
+     * @return      the channel holding the lock, which keeps it until unlock
+     * @throws IOException if the journal is already open, in this process or another, such as a running server
+     */
+    private static FileChannel lock(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        if (!OPEN_FILES.add(key)) {
+            throw new IOException(String.format("Journal %s is already open", path));
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(key.resolveSibling(key.getFileName() + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.tryLock() == null) {
+                throw new IOException(String.format("Journal %s is already open in another process", path));
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            OPEN_FILES.remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Release the lock taken by lock
+     * @param path      the journal file
+     * @param channel   the channel holding the lock
+     */
+    private static void unlock(Path path, FileChannel channel) throws IOException {
+        try {
+            channel.close();
+        } finally {
+            OPEN_FILES.remove(path.toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * Copy part of one file to the end of another
+     * @return the offset in the source the copy got up to
+     */
+    private static long copy(FileChannel from, long start, long end, FileChannel to) throws IOException {
+        long at = start;
+        while (at < end) {
+            at += from.transferTo(at, end - at, to);
+        }
+        return at;
+    }
+
+    /**
+     * Make a rename in a directory durable, where the platform allows it (Linux does, Windows doesn't)
+     * @param file  a file in the directory
+     */
+    static void forceDirectory(Path file) {
+        Path dir = file.toAbsolutePath().getParent();
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // directories can't be opened or forced everywhere; the rename is still atomic, just not yet durable
+        }
+    }
+
+    /**
+     * Read from a channel until a buffer has at least a given number of bytes remaining
+     * @return whether there were enough bytes left in the file
+     */
+    private static boolean fill(FileChannel in, ByteBuffer buf, int needed) throws IOException {
+        while (buf.remaining() < needed) {
+            buf.compact();
+            int n = in.read(buf);
+            buf.flip();
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy a buffer's contents into a bigger one
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + needed));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * One record read back from a journal file
+     */
+    public static class Entry {
+        private final byte type;
+        private final long seq;
+        private final long time;
+        private final long[] longs;
+        private final byte[][] fields;
+
+        private Entry(byte type, long seq, long time, long[] longs, byte[][] fields) {
+            this.type = type;
+            this.seq = seq;
+            this.time = time;
+            this.longs = longs;
+            this.fields = fields;
+        }
+
+        /**
+         * @return the record type, TRANSACTION, TRANSFER, USER, ACCOUNT or POSTING
+         */
+        public byte getType() {
+            return this.type;
+        }
+
+        /**
+         * @return the sequence number of the record
+         */
+        public long getSeq() {
+            return this.seq;
+        }
+
+        /**
+         * @return the time the record was written, in epoch milliseconds
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * @param i the index of the long in the record body (see LONG_COUNT for what each record type holds)
+         * @return  the long
+         */
+        public long getLong(int i) {
+            return this.longs[i];
+        }
+
+        /**
+         * @param i the index of the byte string in the record body (see FIELD_COUNT for what each record type holds)
+         * @return  the byte string
+         */
+        public byte[] getBytes(int i) {
+            return this.fields[i];
+        }
+
+        /**
+         * @param i the index of the byte string in the record body
+         * @return  the byte string, decoded as UTF-8
+         */
+        public String getString(int i) {
+            return new String(this.fields[i], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the account of a transaction or posting, or the from account of a transfer
+         */
+        public long getAccount() {
+            return this.longs[0];
+        }
+
+        /**
+         * @return the amount in cents; for a transfer, the amount moved from the from account to the to account
+         */
+        public long getAmount() {
+            return this.longs[1];
+        }
+
+        /**
+         * @return the memo of a transaction, or the withdrawal-side memo of a transfer
+         */
+        public String getMemo() {
+            return this.getString(0);
+        }
+
+        /**
+         * @return the to account of a transfer
+         */
+        public long getToAccount() {
+            return this.longs[2];
+        }
+
+        /**
+         * @return the deposit-side memo of a transfer
+         */
+        public String getToMemo() {
+            return this.getString(1);
+        }
+    }
+
+    /**
+     * Measure how many transactions per second the journal can sustain in each durability mode
+     * @param args  optionally, the number of records to write, the number of appending threads,
+     *              and the directory to put the test journals in
+     */
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        Path dir = args.length > 2 ? Paths.get(args[2]) : Paths.get(System.getProperty("java.io.tmpdir"));
+
+        System.out.printf("Journal throughput, %d records from %d threads\n", records, threads);
+        for (Durability d : Durability.values()) {
+            for (long interval : new long[] {0, 2}) {
+                Path file = Files.createTempFile(dir, "journal-bench", ".journal");
+                Files.delete(file);
+                Journal journal = new Journal(file, d, interval);
+
+                Thread[] workers = new Thread[threads];
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    int perThread = records / threads;
+                    byte[] memo = Journal.utf8("Benchmark deposit");
+                    workers[t] = new Thread(() -> {
+                        for (int i = 0; i < perThread; i++) {
+                            long seq = journal.append(TRANSACTION, System.currentTimeMillis(), new long[] {1234567890L, 1050}, memo);
+                            journal.awaitDurable(seq);
+                        }
+                    });
+                    workers[t].start();
+                }
+                for (Thread w : workers) {
+                    w.join();
+                }
+                journal.close();
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.printf("  %-5s flush interval %dms: %,12.0f tx/s  (%s)\n", d, interval,
+                        (records / threads * threads) / seconds, journal.getStats());
+                Files.delete(file);
+            }
+        }
+    }
+}
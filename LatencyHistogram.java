@@ -0,0 +1,139 @@
+// A lock-free histogram of latencies with log-linear buckets, so percentiles stay within a few percent at any scale
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Values are counted in buckets the way HdrHistogram does it: exact below 2^SUB_BITS, and above
+ * that every power of 2 is split into 2^SUB_BITS equal buckets, so a bucket is never wider than
+ * about 3% of the values in it. Recording is one array index computation and one atomic increment,
+ * so any number of threads can record at once without locking.
+ */
+public class LatencyHistogram {
+    /**
+     * log2 of the number of buckets per power of 2
+     */
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Enough buckets for any non-negative long
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one value
+     * @param value the value, like a latency in nanoseconds; negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(LatencyHistogram.bucketOf(value));
+        this.total.increment();
+        this.sum.add(value);
+
+        // only contend on the max when there's a new one
+        long m;
+        while (value > (m = this.max.get()) && !this.max.compareAndSet(m, value)) {
+            // someone else raised it first; try again against theirs
+        }
+    }
+
+    /**
+     * Get the number of values recorded
+     * @return the count
+     */
+    public long getCount() {
+        return this.total.sum();
+    }
+
+    /**
+     * Get the mean of the values recorded
+     * @return the mean, or 0 if there are none
+     */
+    public double getMean() {
+        long n = this.total.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * Get the largest value recorded
+     * @return the largest value, or 0 if there are none
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Get the value at a percentile, to within the width of its bucket. The buckets are read one
+     * by one while others may still be recording, so this is approximate under load
+     * @param percentile    the percentile, from 0 to 100
+     * @return              the highest value in the bucket the percentile falls in, or 0 if there are no values
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueIn(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Forget every value recorded so far
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.total.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+    /**
+     * Find the bucket a value goes in
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // how far the top SUB_BITS + 1 bits are from the bottom
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Find the highest value that goes in a bucket
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long sub = bucket % SUB_COUNT;
+        long lowest = (SUB_COUNT + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,55 @@
+// The original transaction history: a plain list of Transaction objects
+
+import java.util.ArrayList;
+
+public class ListHistory implements TransactionHistory {
+    /**
+     * The list of transactions
+     */
+    private ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+
+    @Override
+    public int size() {
+        return this.transactions.size();
+    }
+
+    @Override
+    public Transaction get(int index) {
+        return this.transactions.get(index);
+    }
+
+    @Override
+    public long getAmount(int index) {
+        return this.transactions.get(index).getAmount();
+    }
+
+    @Override
+    public long getTime(int index) {
+        return this.transactions.get(index).getTimestamp().getTime();
+    }
+
+    @Override
+    public String getMemo(int index) {
+        return this.transactions.get(index).getMemo();
+    }
+
+    @Override
+    public int add(Transaction t) {
+        this.transactions.add(t);
+        return this.transactions.size() - 1;
+    }
+
+    @Override
+    public void link(int index, Transaction other) {
+        // nothing to do, the Transaction objects already point at each other
+    }
+
+    @Override
+    public long sumAmounts() {
+        long total = 0;
+        for (Transaction t : this.transactions) {
+            total = Money.add(total, t.getAmount());
+        }
+        return total;
+    }
+}
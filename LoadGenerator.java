@@ -0,0 +1,377 @@
+// Simulates many ATM customers at once, to find out how much load the bank can take before it's deployed
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Each simulated customer session logs in with Bank.userLogin and then does a few operations picked
+ * at random by weight: deposits, withdrawals, transfers to other customers, and account summaries
+ * like a menu redraw. Many threads run sessions at once, optionally held to a total rate of
+ * operations per second. When they're paced, each operation's latency is counted from when it was
+ * due, not when it started, so a backlog shows up in the percentiles instead of hiding in them.
+ * <p>
+ * At the end the report has the throughput, the latency percentiles of each kind of operation, and
+ * a check that the money in the bank is exactly the opening balances plus the deposits less the
+ * withdrawals that went through, since transfers only move money around.
+ */
+public class LoadGenerator {
+    /**
+     * The kinds of operation a session does
+     */
+    public enum Op {
+        LOGIN, DEPOSIT, WITHDRAW, TRANSFER, SUMMARY
+    }
+
+    /**
+     * The number of operations each session does after logging in
+     */
+    private static final int OPS_PER_SESSION = 5;
+
+    private final Bank bank;
+    private final int threads;
+
+    /**
+     * The time between operations when paced, across all threads, or 0 to go as fast as possible
+     */
+    private final long intervalNanos;
+
+    /**
+     * The weights of DEPOSIT, WITHDRAW, TRANSFER and SUMMARY, and their sum
+     */
+    private final int[] weights;
+    private final int totalWeight;
+
+    /**
+     * The customers: each one's user ID, pin and account ID
+     */
+    private String[] userIDs = new String[0];
+    private String[] pins = new String[0];
+    private String[] accountIDs = new String[0];
+
+    /**
+     * Create a load generator
+     * @param theBank   the bank to load
+     * @param threads   the number of sessions to run at once
+     * @param rate      the total operations per second to aim for, or 0 for as many as possible
+     * @param weights   the relative weights of deposits, withdrawals, transfers and summaries
+     */
+    public LoadGenerator(Bank theBank, int threads, double rate, int[] weights) {
+        if (weights.length != 4) {
+            throw new IllegalArgumentException("There must be a weight for each of deposit, withdraw, transfer and summary");
+        }
+        this.bank = theBank;
+        this.threads = threads;
+        this.intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+        this.weights = weights.clone();
+        int total = 0;
+        for (int w : weights) {
+            if (w < 0) {
+                throw new IllegalArgumentException("Weights must not be negative");
+            }
+            total += w;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("At least one weight must be positive");
+        }
+        this.totalWeight = total;
+    }
+
+    /**
+     * Create the customers, each with the savings account Bank.addUser opens and some money in it
+     * @param count             the number of customers
+     * @param openingBalance    the money to put in each one's account, in cents
+     */
+    public void createUsers(int count, long openingBalance) {
+        this.userIDs = new String[count];
+        this.pins = new String[count];
+        this.accountIDs = new String[count];
+        Random rnd = new Random(42);
+
+        for (int i = 0; i < count; i++) {
+            String pin = String.format("%04d", rnd.nextInt(10000));
+            User u = this.bank.addUser("Load", "Customer" + i, pin);
+            Account acct = u.getAccount(0);
+            if (openingBalance != 0) {
+                acct.addTransaction(openingBalance, "Opening deposit");
+            }
+            this.userIDs[i] = u.getUUID();
+            this.pins[i] = pin;
+            this.accountIDs[i] = acct.getUUID();
+        }
+    }
+
+    /**
+     * Run sessions for a while, then check the books
+     * @param durationMillis    how long to run, in milliseconds
+     * @return                  the report
+     * @throws InterruptedException if interrupted while waiting for the sessions to finish
+     * @throws IllegalStateException if the sessions are still running a minute after the end of the
+     *                               run, since the books can't be checked while they might change
+     */
+    public Report run(long durationMillis) throws InterruptedException {
+        if (this.userIDs.length < 2) {
+            throw new IllegalStateException("Create at least two users first");
+        }
+
+        Report report = new Report();
+        long before = this.bank.openView().getTotalBalance();
+        AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "load-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int t = 0; t < this.threads; t++) {
+            pool.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    this.runSession(report, nextSlot, deadline);
+                }
+            });
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(durationMillis + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS)) {
+            // something's stuck, like a journal that stopped syncing; interrupt it, and don't report
+            // numbers from sessions that never finished
+            pool.shutdownNow();
+            boolean stopped = pool.awaitTermination(10, TimeUnit.SECONDS);
+            throw new IllegalStateException(String.format("Load sessions were still running a minute after the end of the run%s",
+                    stopped ? "" : ", and didn't stop when interrupted"));
+        }
+
+        report.nanos = System.nanoTime() - start;
+        report.expectedTotal = Money.add(before, report.netDeposits.sum());
+        report.actualTotal = this.bank.openView().getTotalBalance();
+        return report;
+    }
+
+    /**
+     * Log in as a random customer and do a few operations
+     */
+    private void runSession(Report report, AtomicLong nextSlot, long deadline) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int customer = rnd.nextInt(this.userIDs.length);
+
+        long due = this.awaitSlot(nextSlot);
+        User u = this.bank.userLogin(this.userIDs[customer], this.pins[customer]);
+        report.record(Op.LOGIN, due, u != null);
+        if (u == null) {
+            return;
+        }
+
+        for (int i = 0; i < OPS_PER_SESSION && System.nanoTime() < deadline; i++) {
+            Op op = this.pickOp(rnd);
+            due = this.awaitSlot(nextSlot);
+            boolean ok;
+            switch (op) {
+                case DEPOSIT: {
+                    long amount = 1 + rnd.nextInt(20000);
+                    u.addAcctTransaction(0, amount, "Load test deposit");
+                    report.netDeposits.add(amount);
+                    ok = true;
+                    break;
+                }
+                case WITHDRAW: {
+                    long amount = 1 + rnd.nextInt(20000);
+                    ok = u.withdrawFromAcct(0, amount, "Load test withdrawal") == Account.WithdrawResult.OK;
+                    if (ok) {
+                        report.netDeposits.add(-amount);
+                    }
+                    break;
+                }
+                case TRANSFER: {
+                    int other = rnd.nextInt(this.accountIDs.length - 1);
+                    if (other >= customer) {
+                        other++; // anyone but themselves
+                    }
+                    ok = this.bank.transferFunds(this.accountIDs[customer], this.accountIDs[other], 1 + rnd.nextInt(10000)) == Account.WithdrawResult.OK;
+                    break;
+                }
+                default: {
+                    // what redrawing the menu costs
+                    for (int a = 0; a < u.numAccounts(); a++) {
+                        u.getAccountSummaryLine(a);
+                    }
+                    ok = true;
+                    break;
+                }
+            }
+            report.record(op, due, ok);
+        }
+    }
+
+    private Op pickOp(ThreadLocalRandom rnd) {
+        int r = rnd.nextInt(this.totalWeight);
+        for (int i = 0; i < this.weights.length; i++) {
+            r -= this.weights[i];
+            if (r < 0) {
+                return Op.values()[i + 1];
+            }
+        }
+        return Op.SUMMARY;
+    }
+
+    /**
+     * Wait for the next operation's turn, if the load is paced
+     * @return when the operation was due, in System.nanoTime() terms
+     */
+    private long awaitSlot(AtomicLong nextSlot) {
+        if (this.intervalNanos == 0) {
+            return System.nanoTime();
+        }
+        long due = nextSlot.getAndAdd(this.intervalNanos);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return due;
+    }
+
+    /**
+     * What a run did, how fast, and whether the books balance afterwards
+     */
+    public static class Report {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+        private final LongAdder[] failures = new LongAdder[Op.values().length];
+
+        /**
+         * Deposits less withdrawals that went through, in cents
+         */
+        private final LongAdder netDeposits = new LongAdder();
+
+        private long nanos;
+        private long expectedTotal;
+        private long actualTotal;
+
+        private Report() {
+            for (int i = 0; i < this.latencies.length; i++) {
+                this.latencies[i] = new LatencyHistogram();
+                this.failures[i] = new LongAdder();
+            }
+        }
+
+        private void record(Op op, long due, boolean ok) {
+            this.latencies[op.ordinal()].record(System.nanoTime() - due);
+            if (!ok) {
+                this.failures[op.ordinal()].increment();
+            }
+        }
+
+        /**
+         * Get the number of operations done, logins included
+         * @return the number of operations
+         */
+        public long getOperations() {
+            long total = 0;
+            for (LatencyHistogram h : this.latencies) {
+                total += h.getCount();
+            }
+            return total;
+        }
+
+        /**
+         * Get the operations done per second
+         * @return the throughput
+         */
+        public double getThroughput() {
+            return this.nanos == 0 ? 0 : this.getOperations() / (this.nanos / 1e9);
+        }
+
+        /**
+         * Get the latencies of one kind of operation
+         * @param op    the kind of operation
+         * @return      the histogram, in nanoseconds
+         */
+        public LatencyHistogram getLatency(Op op) {
+            return this.latencies[op.ordinal()];
+        }
+
+        /**
+         * Get the number of operations of one kind that were refused, like withdrawals without the funds
+         * @param op    the kind of operation
+         * @return      the number refused
+         */
+        public long getFailures(Op op) {
+            return this.failures[op.ordinal()].sum();
+        }
+
+        /**
+         * Check that no money was made or lost: the bank holds exactly what it held before, plus the
+         * deposits and less the withdrawals that went through
+         * @return whether the money is conserved
+         */
+        public boolean isConserved() {
+            return this.expectedTotal == this.actualTotal;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(1024);
+            sb.append(String.format("%,d operations in %.1fs: %,.0f ops/s\n", this.getOperations(), this.nanos / 1e9, this.getThroughput()));
+            sb.append(String.format("%-9s %10s %9s %10s %10s %10s %10s %10s\n", "op", "count", "refused", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+            for (Op op : Op.values()) {
+                LatencyHistogram h = this.getLatency(op);
+                sb.append(String.format("%-9s %10d %9d %10.1f %10.1f %10.1f %10.1f %10.1f\n", op, h.getCount(), this.getFailures(op),
+                        h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                        h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+            }
+            sb.append("Money ").append(this.isConserved() ? "conserved: " : "NOT CONSERVED: expected ");
+            Money.appendTo(sb, this.expectedTotal);
+            if (!this.isConserved()) {
+                Money.appendTo(sb.append(", found "), this.actualTotal);
+            }
+            return sb.append('\n').toString();
+        }
+    }
+
+    /**
+     * Run a load test against a fresh bank
+     * @param args  optionally: the number of users, the number of threads, the target operations per
+     *              second (0 for as fast as possible), the number of seconds to run, the weights of
+     *              deposit:withdraw:transfer:summary, and a journal file to write to
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String[] mix = (args.length > 4 ? args[4] : "30:30:30:10").split(":");
+        int[] weights = new int[mix.length];
+        for (int i = 0; i < mix.length; i++) {
+            weights[i] = Integer.parseInt(mix[i]);
+        }
+
+        Log.setLevel(Log.Level.WARN);
+        Bank theBank = new Bank("Load test bank");
+        if (args.length > 5) {
+            theBank.setJournal(new Journal(Paths.get(args[5]), Journal.Durability.GROUP, 0));
+        }
+
+        LoadGenerator generator = new LoadGenerator(theBank, threads, rate, weights);
+        long start = System.nanoTime();
+        generator.createUsers(users, Money.ofDollars(1000));
+        System.out.printf("Created %d users in %.1fs; running %d threads for %ds at %s\n", users, (System.nanoTime() - start) / 1e9,
+                threads, seconds, rate > 0 ? String.format("%,.0f ops/s", rate) : "full speed");
+
+        Report report = generator.run(TimeUnit.SECONDS.toMillis(seconds));
+        System.out.print(report);
+        if (theBank.getJournal() != null) {
+            theBank.getJournal().close();
+        }
+        if (!report.isConserved()) {
+            System.exit(1);
+        }
+    }
+}
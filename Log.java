@@ -0,0 +1,306 @@
+// A small leveled event log that formats and writes events on a background thread, so logging never holds up a transaction
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging an event only copies its level, time, message template and arguments into a slot of a
+ * fixed ring buffer; the formatting and console output happen later on the "log-writer" thread.
+ * Templates use {} for each argument, like "New user {} created". If the writer falls behind and
+ * the ring fills up, new events are dropped (and counted) rather than making the caller wait.
+ *
+ * <p>Events below the current level are thrown away before anything is stored. Hot paths should
+ * also check isEnabled before building the arguments, so a disabled event costs one volatile read:
+ * <pre>
+ *   if (Log.isEnabled(Log.Level.DEBUG)) {
+ *       Log.debug("Deposit of {} to {}", Money.format(amount), uuid);
+ *   }
+ * </pre>
+ */
+public final class Log {
+    /**
+     * How important an event is; OFF turns logging off altogether
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    /**
+     * The number of slots in the ring; must be a power of 2
+     */
+    private static final int CAPACITY = 1 << 13;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * The ring of event slots, allocated once and reused
+     */
+    private static final Event[] RING = new Event[CAPACITY];
+
+    /**
+     * The sequence number the next event will get
+     */
+    private static final AtomicLong HEAD = new AtomicLong();
+
+    /**
+     * The sequence number of the next event for the writer to write
+     */
+    private static volatile long tail;
+
+    /**
+     * The number of events dropped because the ring was full
+     */
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    /**
+     * The lowest level that gets logged, as an ordinal so the check is a single int comparison.
+     * INFO unless the atm.log.level system property says otherwise, so per-transaction DEBUG events are off
+     */
+    private static volatile int threshold = Log.parseLevel(System.getProperty("atm.log.level")).ordinal();
+
+    /**
+     * Where the writer prints events
+     */
+    private static volatile PrintStream out = System.out;
+
+    /**
+     * The thread that formats and prints events
+     */
+    private static final Thread WRITER = new Thread(Log::runWriter, "log-writer");
+
+    /**
+     * Set by the writer just before it parks with nothing to do, so the next event knows to wake it.
+     * Producers only pay for an unpark when this is set, not on every event
+     */
+    private static volatile boolean idle;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Event();
+            RING[i].seq = i - CAPACITY; // not published yet
+        }
+
+        WRITER.setDaemon(true);
+        WRITER.start();
+
+        // don't lose the last few events when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> Log.flush(), "log-flush"));
+    }
+
+    private Log() {
+        // only static helpers here
+    }
+
+    /**
+     * Turn the name of a level, in any case, into the level. Runs while the class is being set up,
+     * so a mistyped name mustn't throw: that would break every class that logs
+     * @param name  the name, or null if none was given
+     * @return      the level, or INFO (with a warning on stderr) if the name isn't one
+     */
+    static Level parseLevel(String name) {
+        if (name == null) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Unknown log level \"%s\", using INFO (expected one of %s)\n", name, Arrays.toString(Level.values()));
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * Check whether events of a level are being logged
+     * @param level the level
+     * @return      whether logging at that level does anything
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= Log.threshold;
+    }
+
+    /**
+     * Set the lowest level that gets logged
+     * @param level the level, or OFF to log nothing
+     */
+    public static void setLevel(Level level) {
+        Log.threshold = level.ordinal();
+    }
+
+    /**
+     * Send events to a different stream from now on
+     * @param stream    where to print events
+     */
+    public static void setOutput(PrintStream stream) {
+        Log.out = stream;
+    }
+
+    public static void debug(String template, Object... args) {
+        Log.log(Level.DEBUG, template, args);
+    }
+
+    public static void info(String template, Object... args) {
+        Log.log(Level.INFO, template, args);
+    }
+
+    public static void warn(String template, Object... args) {
+        Log.log(Level.WARN, template, args);
+    }
+
+    public static void error(String template, Object... args) {
+        Log.log(Level.ERROR, template, args);
+    }
+
+    /**
+     * Log an event, if its level is enabled. The arguments are formatted later on the writer
+     * thread, so they should be values that won't change, like strings and numbers
+     * @param level     the level of the event
+     * @param template  the message, with {} wherever an argument goes
+     * @param args      the arguments
+     */
+    public static void log(Level level, String template, Object... args) {
+        if (level.ordinal() < Log.threshold) {
+            return;
+        }
+
+        // claim a slot, unless the writer is a whole ring behind
+        long seq;
+        do {
+            seq = HEAD.get();
+            if (seq - Log.tail >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!HEAD.compareAndSet(seq, seq + 1));
+
+        Event e = RING[(int) seq & MASK];
+        e.time = System.currentTimeMillis();
+        e.level = level;
+        e.template = template;
+        e.args = args;
+        e.seq = seq; // volatile write, which publishes the fields above to the writer
+
+        // the writer sets idle before its last look at the ring, and we read it after publishing,
+        // so either it sees this event or we see that it's going to sleep
+        if (Log.idle) {
+            Log.idle = false;
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * Wait until every event logged so far has been written, for up to a second. Only called at
+     * shutdown and by tools, so it just polls, backing off from 50 microseconds to 10 milliseconds
+     */
+    public static void flush() {
+        long target = HEAD.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long pause = TimeUnit.MICROSECONDS.toNanos(50);
+        while (Log.tail < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(pause);
+            pause = Math.min(pause * 2, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        Log.out.flush();
+    }
+
+    /**
+     * Get the number of events dropped because the writer couldn't keep up
+     * @return the number of dropped events
+     */
+    public static long getDropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Write events in order as they're published, parking whenever there are none until a producer
+     * unparks it, so an idle log costs no wakeups at all
+     */
+    private static void runWriter() {
+        StringBuilder sb = new StringBuilder(256);
+        long reportedDrops = 0;
+        boolean unflushed = false;
+
+        while (true) {
+            long seq = Log.tail;
+            Event e = RING[(int) seq & MASK];
+            if (e.seq != seq) {
+                // nothing new; say if anything was lost, then sleep until the next event
+                long drops = DROPPED.get();
+                if (drops != reportedDrops) {
+                    Log.out.printf("%s WARN  %d log events dropped\n", TIME_FORMAT.format(Instant.now()), drops - reportedDrops);
+                    reportedDrops = drops;
+                }
+                if (unflushed) {
+                    Log.out.flush();
+                    unflushed = false;
+                }
+                Log.idle = true;
+                if (e.seq == seq) {
+                    // an event arrived while we were marking ourselves idle
+                    Log.idle = false;
+                    continue;
+                }
+                LockSupport.park(Log.class);
+                continue;
+            }
+
+            sb.setLength(0);
+            sb.append(TIME_FORMAT.format(Instant.ofEpochMilli(e.time))).append(' ');
+            String level = e.level.name();
+            sb.append(level);
+            for (int i = level.length(); i < 6; i++) {
+                sb.append(' ');
+            }
+            Log.appendMessage(sb, e.template, e.args);
+            e.args = null; // don't keep the arguments alive until the slot is reused
+
+            Log.out.println(sb);
+            unflushed = true;
+            Log.tail = seq + 1; // only now, so flush() knows the event really has been written
+        }
+    }
+
+    /**
+     * Fill the arguments into a template's {} placeholders; arguments left over go on the end
+     */
+    private static void appendMessage(StringBuilder sb, String template, Object[] args) {
+        int a = 0;
+        int start = 0;
+        int brace;
+        while (a < args.length && (brace = template.indexOf("{}", start)) >= 0) {
+            sb.append(template, start, brace).append(args[a++]);
+            start = brace + 2;
+        }
+        sb.append(template, start, template.length());
+        for (; a < args.length; a++) {
+            sb.append(' ').append(args[a]);
+        }
+    }
+
+    /**
+     * One slot of the ring
+     */
+    private static class Event {
+        /**
+         * The sequence number of the event in this slot; written last, so once it matches the writer
+         * knows the other fields are complete
+         */
+        private volatile long seq;
+        private long time;
+        private Level level;
+        private String template;
+        private Object[] args;
+    }
+}
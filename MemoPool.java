@@ -0,0 +1,79 @@
+// A bank-wide table of memo strings, so each distinct memo is stored once and transactions just keep its number
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * There's one pool for the whole bank, and it only ever grows: a memo stays in it for as long as
+ * the bank is open, even once no transaction uses it any more, since nothing counts which ones
+ * do. Every distinct memo costs a string and a map entry, roughly 100 bytes plus the text, so
+ * the pool is only as small as the number of distinct memos: customers mostly reuse the same
+ * few words ("rent", "groceries") and the account IDs tiered storage keeps here to name the other
+ * side of a transfer are one per account, but a batch file with a reference number in every memo
+ * adds an entry per row, for as long as the bank runs. Restarting the bank starts a new pool,
+ * with only the memos of the histories recovered into it.
+ */
+public class MemoPool {
+    /**
+     * The number of each memo in the pool
+     */
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * The memos, by number. Only changed while holding this object's monitor: a new memo is
+     * written into the next free slot of the published array, or into a bigger copy that then
+     * replaces it. Reading without a lock is still safe, since nobody can know a memo's number
+     * until it's been put in ids, which happens after both the slot and this field are written,
+     * so whoever gets the number also sees the memo
+     */
+    private volatile String[] memos = new String[64];
+
+    /**
+     * The number of memos in the pool (guarded by this object's monitor)
+     */
+    private int size;
+
+    /**
+     * Get the number of a memo, adding it to the pool if it's new
+     * @param memo  the memo
+     * @return      its number
+     */
+    public int intern(String memo) {
+        Integer id = this.ids.get(memo);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = this.ids.get(memo);
+            if (id == null) {
+                String[] table = this.memos;
+                if (this.size == table.length) {
+                    table = Arrays.copyOf(table, table.length * 2);
+                }
+                table[this.size] = memo;
+                this.memos = table;
+                id = this.size++;
+                this.ids.put(memo, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get a memo by its number
+     * @param id    the number from intern()
+     * @return      the memo
+     */
+    public String get(int id) {
+        return this.memos[id];
+    }
+
+    /**
+     * Get the number of distinct memos in the pool
+     * @return the number of memos
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+}
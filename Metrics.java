@@ -0,0 +1,302 @@
+// Counters, latency histograms and gauges for the bank's operations, readable as text or over JMX
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Each timed operation is an Operation kept in a static field where it's used, e.g.
+ * <pre>
+ *   long start = System.nanoTime();
+ *   ...
+ *   WITHDRAW_METRICS.record(start, ok);
+ * </pre>
+ * Recording never locks, so it's cheap enough to leave on everywhere. Gauges are read only when
+ * someone asks, so they cost nothing in between. Everything can be read with dump(), or over JMX
+ * as the MBean "atm:type=Metrics" once exposeJMX() has been called.
+ */
+public final class Metrics {
+    /**
+     * The name the metrics are registered under in JMX
+     */
+    public static final String JMX_NAME = "atm:type=Metrics";
+
+    /**
+     * The percentiles shown for every operation
+     */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Every operation by name, sorted so dumps come out in the same order each time
+     */
+    private static final ConcurrentSkipListMap<String, Operation> OPERATIONS = new ConcurrentSkipListMap<String, Operation>();
+
+    /**
+     * Every gauge by name
+     */
+    private static final ConcurrentSkipListMap<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<String, LongSupplier>();
+
+    private Metrics() {
+        // only static helpers here
+    }
+
+    /**
+     * Get the operation with a name, creating it the first time
+     * @param name  the name, like "login"
+     * @return      the operation
+     */
+    public static Operation operation(String name) {
+        return OPERATIONS.computeIfAbsent(name, Operation::new);
+    }
+
+    /**
+     * Add a gauge, replacing any gauge with the same name
+     * @param name  the name, like "users"
+     * @param gauge reads the current value whenever the metrics are read
+     */
+    public static void gauge(String name, LongSupplier gauge) {
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * Remove a gauge, so whatever it reads can be garbage collected. Does nothing if the name has
+     * since been given to another gauge
+     * @param name  the name the gauge was added under
+     * @param gauge the gauge that was added
+     */
+    public static void removeGauge(String name, LongSupplier gauge) {
+        GAUGES.remove(name, gauge);
+    }
+
+    /**
+     * Forget every count and latency recorded so far, e.g. between runs of a load test. Gauges aren't affected
+     */
+    public static void reset() {
+        for (Operation op : OPERATIONS.values()) {
+            op.reset();
+        }
+    }
+
+    /**
+     * Write every operation's counts and latency percentiles, and every gauge, as a plain-text table
+     * @return the table, one line per operation or gauge
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(String.format("%-16s %10s %10s %10s", "operation", "count", "failures", "mean us"));
+        for (double p : PERCENTILES) {
+            sb.append(String.format(" %10s", "p" + Metrics.formatPercentile(p) + " us"));
+        }
+        sb.append(String.format(" %10s\n", "max us"));
+
+        for (Operation op : OPERATIONS.values()) {
+            LatencyHistogram h = op.latency;
+            sb.append(String.format("%-16s %10d %10d %10.1f", op.name, op.getCount(), op.getFailures(), h.getMean() / 1000.0));
+            for (double p : PERCENTILES) {
+                sb.append(String.format(" %10.1f", h.getValueAtPercentile(p) / 1000.0));
+            }
+            sb.append(String.format(" %10.1f\n", h.getMax() / 1000.0));
+        }
+
+        for (Map.Entry<String, LongSupplier> g : GAUGES.entrySet()) {
+            sb.append(String.format("%-16s %10d\n", g.getKey(), g.getValue().getAsLong()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, so jconsole and other JMX tools can read
+     * them. Does nothing if they're already registered
+     */
+    public static void exposeJMX() {
+        try {
+            ObjectName name = new ObjectName(JMX_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            // the metrics still work without JMX
+            Log.warn("Couldn't register metrics with JMX: {}", e.getMessage());
+        }
+    }
+
+    private static String formatPercentile(double p) {
+        return p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+    }
+
+    /**
+     * The count, failures and latency of one kind of operation
+     */
+    public static class Operation {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Record one finished operation
+         * @param startNanos    System.nanoTime() from when it started
+         * @param ok            false if it was refused, like a wrong pin or not enough money
+         */
+        public void record(long startNanos, boolean ok) {
+            this.latency.record(System.nanoTime() - startNanos);
+            this.count.increment();
+            if (!ok) {
+                this.failures.increment();
+            }
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Get the number of times the operation has run, failed or not
+         * @return the count
+         */
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        /**
+         * Get the number of times the operation was refused
+         * @return the number of failures
+         */
+        public long getFailures() {
+            return this.failures.sum();
+        }
+
+        /**
+         * Get the histogram of how long the operation took, in nanoseconds
+         * @return the histogram
+         */
+        public LatencyHistogram getLatency() {
+            return this.latency;
+        }
+
+        private void reset() {
+            this.count.reset();
+            this.failures.reset();
+            this.latency.reset();
+        }
+    }
+
+    /**
+     * Shows every operation and gauge to JMX as read-only attributes like "login.count" or
+     * "login.p99Micros", and has a "dump" operation that returns the text table
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        private static final String[] STATS = {"count", "failures", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p99.9Micros", "maxMicros"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongSupplier gauge = GAUGES.get(attribute);
+            if (gauge != null) {
+                return gauge.getAsLong();
+            }
+
+            int dot = attribute.indexOf('.');
+            Operation op = dot < 0 ? null : OPERATIONS.get(attribute.substring(0, dot));
+            if (op == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            LatencyHistogram h = op.latency;
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return op.getCount();
+                case "failures":
+                    return op.getFailures();
+                case "meanMicros":
+                    return h.getMean() / 1000.0;
+                case "p50Micros":
+                    return h.getValueAtPercentile(50) / 1000.0;
+                case "p90Micros":
+                    return h.getValueAtPercentile(90) / 1000.0;
+                case "p99Micros":
+                    return h.getValueAtPercentile(99) / 1000.0;
+                case "p99.9Micros":
+                    return h.getValueAtPercentile(99.9) / 1000.0;
+                case "maxMicros":
+                    return h.getMax() / 1000.0;
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, this.getAttribute(a)));
+                } catch (AttributeNotFoundException e) {
+                    // leave it out, as JMX expects
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (actionName.equals("dump")) {
+                return Metrics.dump();
+            }
+            if (actionName.equals("reset")) {
+                Metrics.reset();
+                return null;
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            // built fresh each time, since operations and gauges can be added at any time
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String op : OPERATIONS.keySet()) {
+                for (String stat : STATS) {
+                    String type = stat.equals("count") || stat.equals("failures") ? "long" : "double";
+                    attributes.add(new MBeanAttributeInfo(op + "." + stat, type, op + " " + stat, true, false, false));
+                }
+            }
+            for (String gauge : GAUGES.keySet()) {
+                attributes.add(new MBeanAttributeInfo(gauge, "long", gauge, true, false, false));
+            }
+
+            MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("dump", "All metrics as a text table", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("reset", "Forget all counts and latencies", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "ATM operation metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+// Helpers for working with money amounts stored as a long number of cents
+
+public final class Money {
+    /**
+     * The number of cents in one dollar
+     */
+    public static final long CENTS_PER_DOLLAR = 100;
+
+    private Money() {
+        // only static helpers here, so nobody should make a Money object
+    }
+
+    /**
+     * Add two amounts, failing instead of silently wrapping around
+     * @param a the first amount in cents
+     * @param b the second amount in cents
+     * @return  the sum in cents
+     * @throws ArithmeticException if the sum doesn't fit in a long
+     */
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    /**
+     * Subtract one amount from another, failing instead of silently wrapping around
+     * @param a the amount in cents to subtract from
+     * @param b the amount in cents to subtract
+     * @return  the difference in cents
+     * @throws ArithmeticException if the difference doesn't fit in a long
+     */
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Flip the sign of an amount
+     * @param a the amount in cents
+     * @return  the negated amount in cents
+     * @throws ArithmeticException if the amount is Long.MIN_VALUE
+     */
+    public static long negate(long a) {
+        return Math.negateExact(a);
+    }
+
+    /**
+     * Convert whole dollars to cents
+     * @param dollars   the number of dollars
+     * @return          the amount in cents
+     * @throws ArithmeticException if the amount doesn't fit in a long
+     */
+    public static long ofDollars(long dollars) {
+        return Math.multiplyExact(dollars, CENTS_PER_DOLLAR);
+    }
+
+    /**
+     * Parse an amount typed in by a user, like "12", "12.5" or "$12.50"
+     * @param text  the text to parse
+     * @return      the amount in cents
+     * @throws NumberFormatException if the text isn't a dollar amount with at most 2 decimal places
+     */
+    public static long parse(String text) {
+        int i = 0;
+        int len = text.length();
+        boolean negative = false;
+
+        // optional sign and dollar sign
+        if (i < len && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        if (i < len && text.charAt(i) == '$') {
+            i++;
+        }
+
+        long cents = 0;
+        int digits = 0;
+        int decimals = -1; // -1 means we haven't seen the decimal point yet
+        for (; i < len; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (decimals >= 2) {
+                    throw new NumberFormatException("More than 2 decimal places: " + text);
+                }
+                if (decimals >= 0) {
+                    decimals++;
+                }
+                // build the number up negatively so that Long.MIN_VALUE cents can be parsed too
+                try {
+                    cents = Math.subtractExact(Math.multiplyExact(cents, 10), c - '0');
+                } catch (ArithmeticException e) {
+                    throw new NumberFormatException("Amount out of range: " + text);
+                }
+                digits++;
+            } else {
+                throw new NumberFormatException("Not a dollar amount: " + text);
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Not a dollar amount: " + text);
+        }
+
+        // scale up to cents if fewer than 2 decimal places were given
+        try {
+            for (int d = Math.max(decimals, 0); d < 2; d++) {
+                cents = Math.multiplyExact(cents, 10);
+            }
+            return negative ? cents : Math.negateExact(cents);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    /**
+     * Format an amount the way the summary lines show it: "$12.50", or "$(-12.50)" when negative
+     * @param cents the amount in cents
+     * @return      the formatted amount
+     */
+    public static String format(long cents) {
+        return Money.appendTo(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Append an amount the way the summary lines show it, without going through String.format
+     * @param sb    the StringBuilder to append to
+     * @param cents the amount in cents
+     * @return      the same StringBuilder, for chaining
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long cents) {
+        sb.append('$');
+        if (cents >= 0) {
+            return Money.appendPlain(sb, cents);
+        }
+
+        // parenthesis will surround a negative amount value
+        sb.append('(');
+        Money.appendPlain(sb, cents);
+        return sb.append(')');
+    }
+
+    /**
+     * Format an amount as a plain number with 2 decimal places, like "%.02f" would
+     * @param cents the amount in cents
+     * @return      the formatted amount
+     */
+    public static String toPlainString(long cents) {
+        return Money.appendPlain(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Append an amount as a plain number with 2 decimal places, like "%.02f" would
+     * @param sb    the StringBuilder to append to
+     * @param cents the amount in cents
+     * @return      the same StringBuilder, for chaining
+     */
+    public static StringBuilder appendPlain(StringBuilder sb, long cents) {
+        // work with the negative value so that Long.MIN_VALUE doesn't overflow
+        long neg = cents < 0 ? cents : -cents;
+        if (cents < 0) {
+            sb.append('-');
+        }
+
+        long dollars = -(neg / CENTS_PER_DOLLAR);
+        int rem = (int) -(neg % CENTS_PER_DOLLAR);
+        sb.append(dollars).append('.');
+        sb.append((char) ('0' + rem / 10));
+        sb.append((char) ('0' + rem % 10));
+        return sb;
+    }
+}
@@ -0,0 +1,103 @@
+// A bounded set of history pages kept in memory, shared by every account; the rest live in a PageStore
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pages are evicted with the CLOCK algorithm, a close approximation of least-recently-used that
+ * doesn't need a lock to record a use: reading or writing a page just sets its referenced flag.
+ * When a page comes into memory and the cache is full, a hand sweeps round the resident pages,
+ * clearing the flags it finds set and evicting the first page whose flag is already clear, i.e.
+ * one nobody has used since the hand last went past it. The lock is only held to pick the
+ * victim; the victim is written out after it's released.
+ */
+public class PageCache {
+    private final PageStore store;
+
+    /**
+     * The resident pages, in the order the hand visits them (guarded by this object's monitor)
+     */
+    private final PagedHistory.Page[] ring;
+    private int count;
+    private int hand;
+
+    private final AtomicLong faults = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create an empty cache
+     * @param store     where evicted pages are written
+     * @param maxPages  the most pages to keep in memory at once
+     */
+    public PageCache(PageStore store, int maxPages) {
+        if (maxPages < 1) {
+            throw new IllegalArgumentException("A page cache needs room for at least one page");
+        }
+        this.store = store;
+        this.ring = new PagedHistory.Page[maxPages];
+    }
+
+    /**
+     * Get the store evicted pages are written to
+     * @return the page store
+     */
+    public PageStore getStore() {
+        return this.store;
+    }
+
+    /**
+     * Make room for a page that's just been created or read back in, evicting another if the cache is full.
+     * The caller mustn't hold any page's monitor, since evicting takes the victim's
+     * @param page      the page
+     * @param faulted   whether it was read back in from the store
+     */
+    void admit(PagedHistory.Page page, boolean faulted) {
+        if (faulted) {
+            this.faults.incrementAndGet();
+        }
+
+        PagedHistory.Page victim = null;
+        synchronized (this) {
+            if (this.count < this.ring.length) {
+                this.ring[this.count++] = page;
+                return;
+            }
+            while (victim == null) {
+                PagedHistory.Page p = this.ring[this.hand];
+                if (p.referenced) {
+                    p.referenced = false; // a second chance
+                } else {
+                    victim = p;
+                    this.ring[this.hand] = page;
+                }
+                this.hand = (this.hand + 1) % this.ring.length;
+            }
+        }
+
+        victim.evict(this.store);
+        this.evictions.incrementAndGet();
+    }
+
+    /**
+     * Get the number of pages in memory
+     * @return the number of pages
+     */
+    public synchronized int residentPages() {
+        return this.count;
+    }
+
+    /**
+     * Get the number of pages read back in from the store so far
+     * @return the number of page faults
+     */
+    public long getFaults() {
+        return this.faults.get();
+    }
+
+    /**
+     * Get the number of pages evicted so far
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+}
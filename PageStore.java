@@ -0,0 +1,118 @@
+// A local file that history pages are written out to when they're evicted from memory, and read back from
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every page gets its own slot, big enough for a full page, the first time it's written out, and
+ * is always written back to the same slot, so the file only grows with the number of pages, not
+ * with how often they're evicted. Slots are handed out up front, so any number of threads can
+ * write and read at once without a lock (FileChannel's positional reads and writes don't share a
+ * file position). Nothing here needs to survive a restart, since the snapshot and journal already
+ * do that, so the file is deleted when the bank is done with it.
+ */
+public class PageStore {
+    private final Path path;
+    private final FileChannel channel;
+
+    /**
+     * The size of a slot, in bytes
+     */
+    private final int slotSize;
+
+    /**
+     * The offset of the next slot to hand out
+     */
+    private final AtomicLong end = new AtomicLong();
+
+    /**
+     * Create an empty page store, replacing anything already in the file
+     * @param path      the file
+     * @param slotSize  the size of a full page, in bytes
+     * @throws IOException if the file can't be created
+     */
+    public PageStore(Path path, int slotSize) throws IOException {
+        this.path = path;
+        this.slotSize = slotSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Get the file
+     * @return the path of the file
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Get the number of bytes in the slots handed out so far
+     * @return the size of the file
+     */
+    public long size() {
+        return this.end.get();
+    }
+
+    /**
+     * Hand out a new slot at the end of the file
+     * @return the offset of the slot
+     */
+    long allocate() {
+        return this.end.getAndAdd(this.slotSize);
+    }
+
+    /**
+     * Write a page to its slot
+     * @param offset    the offset of the slot, from allocate()
+     * @param page      the page, from its position to its limit
+     * @throws UncheckedIOException if the write fails
+     */
+    void write(long offset, ByteBuffer page) {
+        if (page.remaining() > this.slotSize) {
+            throw new IllegalArgumentException("Page of " + page.remaining() + " bytes doesn't fit in a slot of " + this.slotSize);
+        }
+        try {
+            long position = offset;
+            while (page.hasRemaining()) {
+                position += this.channel.write(page, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Page store write failed", e);
+        }
+    }
+
+    /**
+     * Read a page back
+     * @param offset    the offset it was written at
+     * @param page      the buffer to read it into, from its position to its limit
+     * @throws UncheckedIOException if the read fails
+     */
+    void read(long offset, ByteBuffer page) {
+        try {
+            long position = offset;
+            while (page.hasRemaining()) {
+                int n = this.channel.read(page, position);
+                if (n < 0) {
+                    throw new IOException("Page at offset " + offset + " runs past the end of " + this.path);
+                }
+                position += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Page store read failed", e);
+        }
+    }
+
+    /**
+     * Close the store and delete its file
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,325 @@
+// A transaction history split into fixed-size pages, which a PageCache writes out to disk when they go cold and reads back in when they're used
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+
+public class PagedHistory implements TransactionHistory {
+    /**
+     * The number of transactions in a full page
+     */
+    static final int PAGE_SIZE = 64;
+
+    /**
+     * The size of one transaction in the page store: amount, time, memo, other account and its memo
+     */
+    static final int ENTRY_BYTES = 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * The account this history belongs to
+     */
+    private final Account account;
+
+    /**
+     * The bank, to find the accounts on the other side of transfers
+     */
+    private final Bank bank;
+
+    /**
+     * The pool the memos, and the IDs of the accounts on the other side of transfers, are stored in
+     */
+    private final MemoPool memos;
+
+    /**
+     * The cache deciding which pages stay in memory
+     */
+    private final PageCache cache;
+
+    /**
+     * The pages, oldest first; only the last one is ever not full
+     */
+    private Page[] pages = new Page[4];
+
+    /**
+     * The number of transactions
+     */
+    private int size;
+
+    /**
+     * Create an empty history
+     * @param account   the account it belongs to
+     * @param bank      the bank the account is in
+     * @param memos     the pool to keep memos in
+     * @param cache     the cache to keep pages in
+     */
+    public PagedHistory(Account account, Bank bank, MemoPool memos, PageCache cache) {
+        this.account = account;
+        this.bank = bank;
+        this.memos = memos;
+        this.cache = cache;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Transaction get(int index) {
+        Objects.checkIndex(index, this.size);
+        Page.Data d = this.pages[index / PAGE_SIZE].use(this.cache);
+        int i = index % PAGE_SIZE;
+        Date timestamp = new Date(d.times[i]);
+        Transaction t = new Transaction(d.amounts[i], this.memos.get(d.memoIDs[i]), timestamp, this.account);
+
+        // rebuild the other leg of a transfer too
+        if (d.counterpartyIDs[i] != 0) {
+            Account other = this.bank.findAccount(this.memos.get(d.counterpartyIDs[i] - 1));
+            Transaction otherLeg = new Transaction(-d.amounts[i], this.memos.get(d.counterpartyMemoIDs[i]), timestamp, other);
+            Transaction.link(t, otherLeg);
+        }
+
+        return t;
+    }
+
+    @Override
+    public long getAmount(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.pages[index / PAGE_SIZE].use(this.cache).amounts[index % PAGE_SIZE];
+    }
+
+    @Override
+    public long getTime(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.pages[index / PAGE_SIZE].use(this.cache).times[index % PAGE_SIZE];
+    }
+
+    @Override
+    public String getMemo(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.memos.get(this.pages[index / PAGE_SIZE].use(this.cache).memoIDs[index % PAGE_SIZE]);
+    }
+
+    @Override
+    public int add(Transaction t) {
+        int p = this.size / PAGE_SIZE;
+        if (this.size % PAGE_SIZE == 0) {
+            // the last page is full (or there isn't one yet), so start a new one
+            if (p == this.pages.length) {
+                this.pages = Arrays.copyOf(this.pages, p * 2);
+            }
+            this.pages[p] = new Page();
+            this.cache.admit(this.pages[p], false);
+        }
+
+        this.pages[p].add(this.cache, t.getAmount(), t.getTimestamp().getTime(), this.memos.intern(t.getMemo()));
+        return this.size++;
+    }
+
+    @Override
+    public void link(int index, Transaction other) {
+        int counterpartyID = this.memos.intern(other.getAccount().getUUID()) + 1;
+        this.pages[index / PAGE_SIZE].link(this.cache, index % PAGE_SIZE, counterpartyID, this.memos.intern(other.getMemo()));
+    }
+
+    @Override
+    public long sumAmounts() {
+        long total = 0;
+        for (int p = 0; p * PAGE_SIZE < this.size; p++) {
+            Page.Data d = this.pages[p].use(this.cache);
+            int n = Math.min(PAGE_SIZE, this.size - p * PAGE_SIZE);
+            for (int i = 0; i < n; i++) {
+                total = Money.add(total, d.amounts[i]);
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void prefetch() {
+        if (this.size > 0) {
+            this.pages[(this.size - 1) / PAGE_SIZE].use(this.cache);
+        }
+    }
+
+    /**
+     * One page of transactions. Its owner only uses it while holding the account's lock, but the
+     * cache may evict it from any thread, so loading, changing and evicting it also take its own monitor
+     */
+    static final class Page {
+        /**
+         * The columns of a page in memory. The arrays grow as the page fills, up to PAGE_SIZE
+         */
+        static final class Data {
+            private long[] amounts;
+            private long[] times;
+            private int[] memoIDs;
+
+            /**
+             * For transfers, the other account's ID in the memo pool, plus one; 0 if not a transfer
+             */
+            private int[] counterpartyIDs;
+            private int[] counterpartyMemoIDs;
+
+            private Data(int capacity) {
+                this.amounts = new long[capacity];
+                this.times = new long[capacity];
+                this.memoIDs = new int[capacity];
+                this.counterpartyIDs = new int[capacity];
+                this.counterpartyMemoIDs = new int[capacity];
+            }
+
+            private void grow() {
+                int capacity = Math.min(PAGE_SIZE, this.amounts.length * 2);
+                this.amounts = Arrays.copyOf(this.amounts, capacity);
+                this.times = Arrays.copyOf(this.times, capacity);
+                this.memoIDs = Arrays.copyOf(this.memoIDs, capacity);
+                this.counterpartyIDs = Arrays.copyOf(this.counterpartyIDs, capacity);
+                this.counterpartyMemoIDs = Arrays.copyOf(this.counterpartyMemoIDs, capacity);
+            }
+        }
+
+        /**
+         * Set whenever the page is used, and cleared by the cache's clock hand as it goes past
+         */
+        volatile boolean referenced = true;
+
+        /**
+         * The page's columns, or null while it's evicted (guarded by this page's monitor)
+         */
+        private Data data = new Data(4);
+
+        /**
+         * The number of transactions in the page, kept while it's evicted (guarded by this page's monitor)
+         */
+        private int size;
+
+        /**
+         * The page's slot in the store, or -1 until it's first written out (guarded by this page's monitor)
+         */
+        private long slot = -1;
+
+        /**
+         * Whether the page has changed since it was last written out (guarded by this page's monitor)
+         */
+        private boolean dirty = true;
+
+        /**
+         * Get the page's columns to read from, reading them back in from the store if it's been evicted.
+         * The columns stay readable even if the page is evicted again meanwhile; only changes need the monitor
+         * @param cache the cache the page is in
+         * @return      the columns
+         */
+        Data use(PageCache cache) {
+            Data d;
+            boolean faulted;
+            synchronized (this) {
+                faulted = this.data == null;
+                d = this.load(cache.getStore());
+            }
+            this.used(cache, faulted);
+            return d;
+        }
+
+        /**
+         * Add a transaction at the end of the page
+         */
+        void add(PageCache cache, long amount, long time, int memoID) {
+            boolean faulted;
+            synchronized (this) {
+                faulted = this.data == null;
+                Data d = this.load(cache.getStore());
+                if (this.size == d.amounts.length) {
+                    d.grow();
+                }
+                d.amounts[this.size] = amount;
+                d.times[this.size] = time;
+                d.memoIDs[this.size] = memoID;
+                this.size++;
+                this.dirty = true;
+            }
+            this.used(cache, faulted);
+        }
+
+        /**
+         * Remember the other leg of a transfer
+         */
+        void link(PageCache cache, int slot, int counterpartyID, int counterpartyMemoID) {
+            boolean faulted;
+            synchronized (this) {
+                faulted = this.data == null;
+                Data d = this.load(cache.getStore());
+                d.counterpartyIDs[slot] = counterpartyID;
+                d.counterpartyMemoIDs[slot] = counterpartyMemoID;
+                this.dirty = true;
+            }
+            this.used(cache, faulted);
+        }
+
+        /**
+         * Mark the page used, and if it's just been read back in, make room for it in the cache.
+         * Called outside the monitor, since making room may evict another page
+         */
+        private void used(PageCache cache, boolean faulted) {
+            this.referenced = true;
+            if (faulted) {
+                cache.admit(this, true);
+            }
+        }
+
+        /**
+         * Get the columns, reading them back in from the store if the page's been evicted. The caller must hold the monitor
+         */
+        private Data load(PageStore store) {
+            if (this.data != null) {
+                return this.data;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(this.size * ENTRY_BYTES);
+            store.read(this.slot, buf);
+            buf.flip();
+
+            // leave room to grow if this is the last page
+            Data d = new Data(this.size == PAGE_SIZE ? PAGE_SIZE : Math.max(4, Math.min(PAGE_SIZE, this.size * 2)));
+            for (int i = 0; i < this.size; i++) {
+                d.amounts[i] = buf.getLong();
+                d.times[i] = buf.getLong();
+                d.memoIDs[i] = buf.getInt();
+                d.counterpartyIDs[i] = buf.getInt();
+                d.counterpartyMemoIDs[i] = buf.getInt();
+            }
+            this.data = d;
+            return d;
+        }
+
+        /**
+         * Write the page out to the store, unless it's already there unchanged, and let go of its columns
+         * @param store the store
+         */
+        synchronized void evict(PageStore store) {
+            Data d = this.data;
+            if (d == null) {
+                return;
+            }
+
+            if (this.dirty) {
+                ByteBuffer buf = ByteBuffer.allocate(this.size * ENTRY_BYTES);
+                for (int i = 0; i < this.size; i++) {
+                    buf.putLong(d.amounts[i]);
+                    buf.putLong(d.times[i]);
+                    buf.putInt(d.memoIDs[i]);
+                    buf.putInt(d.counterpartyIDs[i]);
+                    buf.putInt(d.counterpartyMemoIDs[i]);
+                }
+                buf.flip();
+                if (this.slot < 0) {
+                    this.slot = store.allocate();
+                }
+                store.write(this.slot, buf);
+                this.dirty = false;
+            }
+            this.data = null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+// Hashes and checks pins, and locks out user IDs after too many wrong pins in a row
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class PinVerifier {
+    /**
+     * The first byte of every pin hash made by this class; hashes from before it are plain 16-byte MD5 hashes
+     */
+    private static final byte FORMAT = 1;
+
+    /**
+     * The number of random salt bytes mixed into each pin hash
+     */
+    private static final int SALT_LENGTH = 16;
+
+    /**
+     * One message digest per algorithm per thread, so hashing never has to look up a provider or allocate a digest
+     */
+    private static final ThreadLocal<HashMap<String, MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Where salts come from
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The hash algorithm for new pin hashes
+     */
+    private final String algorithm;
+
+    /**
+     * How many times new pins are hashed over; more is slower for us but also for anyone guessing pins
+     */
+    private final int iterations;
+
+    /**
+     * The number of wrong pins in a row that locks a user ID out
+     */
+    private final int maxFailures;
+
+    /**
+     * How long a lockout lasts, in milliseconds
+     */
+    private final long lockoutMillis;
+
+    /**
+     * The most user IDs to track failed attempts for
+     */
+    private final int maxTracked;
+
+    /**
+     * Recent failed attempts by existing user ID: the number of attempts in a row that didn't
+     * succeed, and the time the lockout ends (0 if not locked out). Kept to at most maxTracked entries
+     */
+    private final ConcurrentHashMap<String, long[]> failures = new ConcurrentHashMap<String, long[]>();
+
+    /**
+     * Create a verifier with the default settings: one round of salted SHA-256, and a 15 minute
+     * lockout after 5 wrong pins in a row, tracking up to 10000 user IDs
+     */
+    public PinVerifier() {
+        this("SHA-256", 1, 5, TimeUnit.MINUTES.toMillis(15), 10000);
+    }
+
+    /**
+     * Create a verifier
+     * @param algorithm     the MessageDigest algorithm for new pin hashes, like "SHA-256"
+     * @param iterations    how many times new pins are hashed over
+     * @param maxFailures   the number of wrong pins in a row that locks a user ID out
+     * @param lockoutMillis how long a lockout lasts, in milliseconds
+     * @param maxTracked    the most user IDs to track failed attempts for
+     * @throws IllegalArgumentException if the algorithm isn't available
+     */
+    public PinVerifier(String algorithm, int iterations, int maxFailures, long lockoutMillis, int maxTracked) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be at least 1");
+        }
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.maxFailures = maxFailures;
+        this.lockoutMillis = lockoutMillis;
+        this.maxTracked = maxTracked;
+
+        // fail now rather than at the first login
+        PinVerifier.digest(algorithm);
+    }
+
+    /**
+     * Hash a new pin with a fresh salt
+     * @param pin   the pin
+     * @return      the pin hash, which also records the salt, algorithm and iterations used
+     */
+    public byte[] hash(String pin) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] algorithmName = this.algorithm.getBytes(StandardCharsets.US_ASCII);
+        byte[] hash = PinVerifier.hash(this.algorithm, this.iterations, salt, pin);
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 1 + algorithmName.length + 4 + 1 + salt.length + hash.length);
+        buf.put(FORMAT);
+        buf.put((byte) algorithmName.length).put(algorithmName);
+        buf.putInt(this.iterations);
+        buf.put((byte) salt.length).put(salt);
+        buf.put(hash);
+        return buf.array();
+    }
+
+    /**
+     * Check a pin against a pin hash
+     * @param pin       the pin to check
+     * @param pinHash   a pin hash from hash(), or a plain MD5 hash from before this class existed
+     * @return          whether the pin matches
+     */
+    public boolean matches(String pin, byte[] pinHash) {
+        if (pinHash.length == 16) {
+            // an old unsalted MD5 hash
+            return MessageDigest.isEqual(PinVerifier.hash("MD5", 1, new byte[0], pin), pinHash);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(pinHash);
+        if (buf.get() != FORMAT) {
+            return false;
+        }
+        byte[] algorithmName = new byte[buf.get()];
+        buf.get(algorithmName);
+        int iterations = buf.getInt();
+        byte[] salt = new byte[buf.get()];
+        buf.get(salt);
+        byte[] expected = new byte[buf.remaining()];
+        buf.get(expected);
+
+        byte[] actual = PinVerifier.hash(new String(algorithmName, StandardCharsets.US_ASCII), iterations, salt, pin);
+        return MessageDigest.isEqual(actual, expected); // takes the same time wherever the first difference is
+    }
+
+    /**
+     * Check whether a user ID is locked out after too many wrong pins
+     * @param userID    the user ID
+     * @return          whether logins for it should be refused for now
+     */
+    public boolean isLockedOut(String userID) {
+        long[] state = this.failures.get(userID);
+        return state != null && state[1] > System.currentTimeMillis();
+    }
+
+    /**
+     * Start a login attempt for an existing user ID, before its pin is checked: refuse it if the
+     * ID is locked out, and otherwise count it as a failure straight away, locking the ID out if
+     * that makes too many in a row. recordSuccess takes it back if the pin turns out right. The
+     * check and the count are one atomic step, so attempts racing each other on many connections
+     * can't get more pins checked than the limit allows. Only call this for user IDs that exist,
+     * so guessing at IDs can't fill the table
+     * @param userID    the user ID
+     * @return          whether the pin may be checked
+     */
+    public boolean tryAttempt(String userID) {
+        long now = System.currentTimeMillis();
+        boolean[] allowed = new boolean[1];
+        this.failures.compute(userID, (id, state) -> {
+            if (state != null && state[1] > now) {
+                return state; // locked out
+            }
+            allowed[0] = true;
+
+            // a lockout that has run out starts the count again
+            long count = state == null || state[1] != 0 ? 1 : state[0] + 1;
+            return new long[] {count, count >= this.maxFailures ? now + this.lockoutMillis : 0};
+        });
+
+        // keep the table bounded; evict the entries that matter least first
+        if (this.failures.size() > this.maxTracked) {
+            this.evict(now);
+        }
+        return allowed[0];
+    }
+
+    /**
+     * Record a successful login for a user ID, which takes back the attempt counted by tryAttempt
+     * and resets its count of wrong pins
+     * @param userID    the user ID
+     */
+    public void recordSuccess(String userID) {
+        this.failures.remove(userID);
+    }
+
+    /**
+     * Shrink the failed attempts table back under its limit: first expired lockouts, then any
+     * user IDs that aren't locked out, and only then active lockouts
+     */
+    private void evict(long now) {
+        for (int pass = 0; pass < 3 && this.failures.size() > this.maxTracked; pass++) {
+            Iterator<Map.Entry<String, long[]>> it = this.failures.entrySet().iterator();
+            while (it.hasNext() && this.failures.size() > this.maxTracked) {
+                long lockedUntil = it.next().getValue()[1];
+                boolean expired = lockedUntil != 0 && lockedUntil <= now;
+                if (pass == 2 || (pass == 0 && expired) || (pass == 1 && lockedUntil == 0)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash a salted pin with this thread's digest for an algorithm
+     */
+    private static byte[] hash(String algorithm, int iterations, byte[] salt, String pin) {
+        MessageDigest md = PinVerifier.digest(algorithm);
+        md.update(salt);
+        byte[] hash = md.digest(pin.getBytes(StandardCharsets.UTF_8));
+        for (int i = 1; i < iterations; i++) {
+            hash = md.digest(hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Get this thread's digest for an algorithm, creating it the first time
+     */
+    private static MessageDigest digest(String algorithm) {
+        HashMap<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest md = digests.get(algorithm);
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("No such hash algorithm: " + algorithm, e);
+            }
+            digests.put(algorithm, md);
+        }
+        return md;
+    }
+}
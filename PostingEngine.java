@@ -0,0 +1,415 @@
+// Posts savings interest and monthly account fees to every account of a bank once a night, many accounts at a time
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts are split into fixed-size chunks, each posted by one of a pool of threads. Every
+ * account is posted under its own lock, in one journal record, and remembers the day it was
+ * posted for, so a run for a day the account already has is a no-op: after a crash the same day
+ * can simply be run again, and it only posts to the accounts the first run didn't reach. Each
+ * chunk waits for the journal once, after its last account, so group commit covers it all.
+ * <p>
+ * Savings accounts earn interest on their average daily balance: the balance at the end of each
+ * day since the last posting, worked out by walking back through the recent history, summed and
+ * multiplied by the annual rate over 365 days. The division is exact, with the remainder carried
+ * forward to the next night, so no fraction of a cent is ever lost to rounding. Checking accounts
+ * are charged a fee for every month that ended since the last posting.
+ */
+public class PostingEngine {
+    /**
+     * The last posting day of an account that's never been posted
+     */
+    public static final long NEVER = Long.MIN_VALUE;
+
+    /**
+     * Interest accrues in units of 1/INTEREST_DIVISOR of a cent: a balance of one cent for one
+     * day at a rate of one basis point a year
+     */
+    public static final long INTEREST_DIVISOR = 365 * 10000;
+
+    /**
+     * The most days one posting covers; an account that hasn't been posted for longer only earns
+     * interest for this many
+     */
+    public static final int MAX_DAYS = 366;
+
+    /**
+     * The number of accounts each thread posts at a time
+     */
+    public static final int ACCOUNTS_PER_CHUNK = 10000;
+
+    /**
+     * The names of the accounts that earn interest, and that are charged the monthly fee
+     */
+    public static final String SAVINGS = "Savings";
+    public static final String CHECKING = "Checking";
+
+    private final Bank bank;
+    private final int threads;
+    private final ZoneId zone;
+    private final long rateBasisPoints;
+    private final long monthlyFee;
+
+    /**
+     * Create a posting engine
+     * @param theBank           the bank to post to
+     * @param threads           the number of threads posting
+     * @param zone              the time zone days start and end in
+     * @param rateBasisPoints   the annual interest rate of savings accounts, in hundredths of a percent
+     * @param monthlyFee        the monthly fee of checking accounts, in cents
+     */
+    public PostingEngine(Bank theBank, int threads, ZoneId zone, long rateBasisPoints, long monthlyFee) {
+        if (rateBasisPoints < 0 || monthlyFee < 0) {
+            throw new IllegalArgumentException("The interest rate and monthly fee can't be negative");
+        }
+        this.bank = theBank;
+        this.threads = threads;
+        this.zone = zone;
+        this.rateBasisPoints = rateBasisPoints;
+        this.monthlyFee = monthlyFee;
+    }
+
+    /**
+     * Post interest and fees to every account, up to the end of a day
+     * @param day   the day, in the engine's time zone
+     * @return      how much was posted
+     * @throws IOException if the journal fails
+     */
+    public Result run(LocalDate day) throws IOException {
+        Run run = new Run(day, this.zone, this.rateBasisPoints, this.monthlyFee);
+        List<Account> accounts = this.bank.getAccounts();
+        Result result = new Result();
+        long start = System.nanoTime();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "posting-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> chunks = new ArrayList<Future<?>>();
+            for (int first = 0; first < accounts.size(); first += ACCOUNTS_PER_CHUNK) {
+                List<Account> chunk = accounts.subList(first, Math.min(first + ACCOUNTS_PER_CHUNK, accounts.size()));
+                chunks.add(pool.submit(() -> {
+                    this.postChunk(run, chunk, result);
+                    return null;
+                }));
+            }
+
+            for (Future<?> chunk : chunks) {
+                try {
+                    chunk.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw new IllegalStateException("Posting failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while posting", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Post to one chunk of accounts, then wait once for all of their journal records
+     */
+    private void postChunk(Run run, List<Account> chunk, Result result) {
+        long[] posted = new long[2];
+        long lastSeq = 0;
+        for (Account acct : chunk) {
+            long seq;
+            try {
+                seq = acct.postAccruals(run, posted);
+            } catch (ArithmeticException e) {
+                // leave the account for someone to look at, and carry on with the rest
+                Log.warn("Couldn't post to account {}: {}", acct.getUUID(), e.getMessage());
+                result.failed.increment();
+                continue;
+            }
+
+            result.accounts.increment();
+            if (seq < 0) {
+                result.skipped.increment();
+                continue;
+            }
+            if (posted[0] != 0) {
+                result.interestPostings.increment();
+                result.interest.add(posted[0]);
+            }
+            if (posted[1] != 0) {
+                result.feePostings.increment();
+                result.fees.add(posted[1]);
+            }
+            lastSeq = Math.max(lastSeq, seq);
+        }
+
+        Journal journal = this.bank.getJournal();
+        if (lastSeq > 0 && journal != null) {
+            journal.awaitDurable(lastSeq);
+        }
+    }
+
+    /**
+     * Run the engine every night at a local time, for the day that's just ended, on a background
+     * thread. A night that fails, or that the bank is down for, is caught up by the next
+     * @param at    the time of day to run at, in the engine's time zone
+     * @return      the executor running the postings, which can be shut down to stop them
+     */
+    public ScheduledExecutorService schedule(LocalTime at) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "posting-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduleNext(executor, at);
+        return executor;
+    }
+
+    /**
+     * Schedule the next run, working out the delay each time since days aren't always 24 hours long
+     */
+    private void scheduleNext(ScheduledExecutorService executor, LocalTime at) {
+        ZonedDateTime now = ZonedDateTime.now(this.zone);
+        ZonedDateTime next = now.with(at);
+        if (!next.isAfter(now)) {
+            next = next.plusDays(1);
+        }
+        LocalDate day = next.toLocalDate().minusDays(1);
+
+        executor.schedule(() -> {
+            try {
+                Result result = this.run(day);
+                Log.info("Posted interest and fees for {}: {}", day, result);
+            } catch (IOException | RuntimeException e) {
+                Log.error("Couldn't post interest and fees for {}: {}", day, e.getMessage());
+            }
+            this.scheduleNext(executor, at);
+        }, Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Everything one run needs to work out an account's posting, shared by every account: the
+     * last MAX_DAYS days up to the run's day, when each ends, and how many months end from each on
+     */
+    static final class Run {
+        private final long day;
+        private final long firstDay;
+        private final long[] dayEnds;
+        private final int[] monthEndsFrom;
+        private final long rateBasisPoints;
+        private final long monthlyFee;
+        private final String interestMemo;
+        private final String feeMemo;
+
+        private Run(LocalDate day, ZoneId zone, long rateBasisPoints, long monthlyFee) {
+            this.day = day.toEpochDay();
+            this.firstDay = this.day - MAX_DAYS + 1;
+            this.dayEnds = new long[MAX_DAYS];
+            this.monthEndsFrom = new int[MAX_DAYS + 1];
+            for (int d = MAX_DAYS - 1; d >= 0; d--) {
+                LocalDate date = LocalDate.ofEpochDay(this.firstDay + d);
+                this.dayEnds[d] = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                boolean monthEnd = date.getDayOfMonth() == date.lengthOfMonth();
+                this.monthEndsFrom[d] = this.monthEndsFrom[d + 1] + (monthEnd ? 1 : 0);
+            }
+            this.rateBasisPoints = rateBasisPoints;
+            this.monthlyFee = monthlyFee;
+            this.interestMemo = "Interest to " + day;
+            this.feeMemo = "Monthly fee";
+        }
+
+        /**
+         * @return the day being posted for, as an epoch day
+         */
+        long getDay() {
+            return this.day;
+        }
+
+        /**
+         * @return the number of days the run covers
+         */
+        int numDays() {
+            return MAX_DAYS;
+        }
+
+        /**
+         * Get when one of the run's days ends
+         * @param d the index of the day, 0 for the oldest
+         * @return  the start of the next day, in epoch milliseconds
+         */
+        long dayEnd(int d) {
+            return this.dayEnds[d];
+        }
+
+        /**
+         * Get the first day an account's posting covers: the one after its last posting, or just
+         * the run's day if it's never been posted
+         * @param lastPostingDay    the last day the account was posted for, or NEVER
+         * @return                  the index of the day
+         */
+        int firstDay(long lastPostingDay) {
+            if (lastPostingDay == NEVER) {
+                return MAX_DAYS - 1;
+            }
+            return (int) Math.max(0, lastPostingDay + 1 - this.firstDay);
+        }
+
+        boolean paysInterest(String accountName) {
+            return this.rateBasisPoints > 0 && SAVINGS.equals(accountName);
+        }
+
+        boolean chargesFee(String accountName) {
+            return this.monthlyFee > 0 && CHECKING.equals(accountName);
+        }
+
+        /**
+         * Work out the interest accrued on some days' closing balances
+         * @param closingBalances   the balances at the end of each day, added up, in cents
+         * @param carry             the interest carried forward from the last posting
+         * @return                  the interest, in 1/INTEREST_DIVISOR ths of a cent
+         * @throws ArithmeticException if it would overflow
+         */
+        long accrue(long closingBalances, long carry) {
+            return Math.addExact(Math.multiplyExact(closingBalances, this.rateBasisPoints), carry);
+        }
+
+        /**
+         * Get the fees due for the months that end on or after a day
+         * @param d the index of the day
+         * @return  the fees, in cents
+         */
+        long feesFrom(int d) {
+            return Math.multiplyExact(this.monthEndsFrom[d], this.monthlyFee);
+        }
+
+        String getInterestMemo() {
+            return this.interestMemo;
+        }
+
+        String getFeeMemo() {
+            return this.feeMemo;
+        }
+    }
+
+    /**
+     * How much a run of the engine posted
+     */
+    public static class Result {
+        private final LongAdder accounts = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder interestPostings = new LongAdder();
+        private final LongAdder interest = new LongAdder();
+        private final LongAdder feePostings = new LongAdder();
+        private final LongAdder fees = new LongAdder();
+        private long nanos;
+
+        /**
+         * Get the number of accounts looked at, including the ones skipped
+         * @return the number of accounts
+         */
+        public long getAccounts() {
+            return this.accounts.sum();
+        }
+
+        /**
+         * Get the number of accounts that already had a posting for the day
+         * @return the number of accounts
+         */
+        public long getSkipped() {
+            return this.skipped.sum();
+        }
+
+        /**
+         * Get the number of accounts that couldn't be posted to
+         * @return the number of accounts
+         */
+        public long getFailed() {
+            return this.failed.sum();
+        }
+
+        public long getInterestPostings() {
+            return this.interestPostings.sum();
+        }
+
+        /**
+         * Get the total interest posted
+         * @return the interest, in cents
+         */
+        public long getInterest() {
+            return this.interest.sum();
+        }
+
+        public long getFeePostings() {
+            return this.feePostings.sum();
+        }
+
+        /**
+         * Get the total fees taken
+         * @return the fees, in cents
+         */
+        public long getFees() {
+            return this.fees.sum();
+        }
+
+        /**
+         * Get how long the run took
+         * @return the time, in nanoseconds
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d accounts (%d already posted, %d failed): interest %s to %d, fees %s from %d in %.1fs",
+                    this.getAccounts(), this.getSkipped(), this.getFailed(), Money.format(this.getInterest()), this.getInterestPostings(),
+                    Money.format(this.getFees()), this.getFeePostings(), this.nanos / 1e9);
+        }
+    }
+
+    /**
+     * Post interest and fees to the ATM's bank for one day, while the server isn't running (the
+     * journal is locked while the server has it open, so this refuses to start until it stops)
+     * @param args  the annual interest rate in basis points (default 50), the monthly fee in
+     *              dollars (default 5.00), the day (default yesterday) and the number of threads
+     * @throws IOException if the bank can't be opened or the journal fails
+     */
+    public static void main(String[] args) throws IOException {
+        long rate = args.length > 0 ? Long.parseLong(args[0]) : 50;
+        long fee = args.length > 1 ? Money.parse(args[1]) : 500;
+        LocalDate day = args.length > 2 ? LocalDate.parse(args[2]) : LocalDate.now().minusDays(1);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Bank theBank = ATM.recoverBank(Paths.get("atm.snapshot"), Paths.get("atm.journal"));
+        Result result = new PostingEngine(theBank, threads, ZoneId.systemDefault(), rate, fee).run(day);
+        System.out.printf("Postings for %s: %s\n", day, result);
+        Snapshot.write(theBank, Paths.get("atm.snapshot"));
+        theBank.getJournal().close();
+    }
+}
@@ -0,0 +1,77 @@
+// A running total over a sliding time window, kept in a ring of time buckets so reading and adding are O(1)
+
+public class RollingCounter {
+    /**
+     * How much time each bucket covers, in milliseconds
+     */
+    private final long bucketMillis;
+
+    /**
+     * The total added during each bucket's time, as a ring indexed by bucket number
+     */
+    private final long[] buckets;
+
+    /**
+     * The bucket number (time / bucketMillis) of the newest bucket
+     */
+    private long newestBucket;
+
+    /**
+     * The sum of all the buckets
+     */
+    private long total;
+
+    /**
+     * Create a counter. The window slides a bucket at a time, so a value counts for between
+     * (buckets - 1) and buckets bucket lengths after it's added; more buckets make that more exact
+     * @param windowMillis  the length of the window, in milliseconds
+     * @param buckets       the number of buckets to split the window into
+     */
+    public RollingCounter(long windowMillis, int buckets) {
+        if (buckets < 1 || windowMillis < buckets) {
+            throw new IllegalArgumentException("The window must be at least 1ms per bucket");
+        }
+        this.bucketMillis = windowMillis / buckets;
+        this.buckets = new long[buckets];
+    }
+
+    /**
+     * Get the total of what was added within the window
+     * @param now   the current time, in epoch milliseconds
+     * @return      the total
+     */
+    public long get(long now) {
+        this.advance(now);
+        return this.total;
+    }
+
+    /**
+     * Add to the total
+     * @param now   the current time, in epoch milliseconds
+     * @param value the value to add
+     */
+    public void add(long now, long value) {
+        this.advance(now);
+        this.buckets[(int) (this.newestBucket % this.buckets.length)] += value;
+        this.total += value;
+    }
+
+    /**
+     * Drop the buckets that have slid out of the window. At most one pass over the ring, however
+     * long it's been, so this is O(1)
+     */
+    private void advance(long now) {
+        long bucket = now / this.bucketMillis;
+        if (bucket <= this.newestBucket) {
+            return; // same bucket, or the clock went backwards; either way count it in the newest one
+        }
+
+        long expired = Math.min(bucket - this.newestBucket, this.buckets.length);
+        for (long b = 1; b <= expired; b++) {
+            int i = (int) ((this.newestBucket + b) % this.buckets.length);
+            this.total -= this.buckets[i];
+            this.buckets[i] = 0;
+        }
+        this.newestBucket = bucket;
+    }
+}
@@ -0,0 +1,111 @@
+// Hands out fixed-length numeric IDs by running a counter through a fixed shuffle of all the possible IDs
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SequenceIdGenerator implements IdGenerator {
+    /**
+     * The number of digits in each ID
+     */
+    private final int digits;
+
+    /**
+     * The number of possible IDs, 10^digits
+     */
+    private final long space;
+
+    /**
+     * The multiplier of the shuffle; it shares no factor with space, so the shuffle never maps two counter values to the same ID
+     */
+    private final long multiplier;
+
+    /**
+     * The offset of the shuffle
+     */
+    private final long offset;
+
+    /**
+     * The counter value of the next ID
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Create a generator
+     * @param digits    the number of digits in each ID (1 to 18)
+     * @param seed      picks the shuffle; the same seed always gives the same order of IDs
+     */
+    public SequenceIdGenerator(int digits, long seed) {
+        if (digits < 1 || digits > 18) {
+            throw new IllegalArgumentException("IDs must have 1 to 18 digits");
+        }
+        this.digits = digits;
+
+        long space = 1;
+        for (int d = 0; d < digits; d++) {
+            space *= 10;
+        }
+        this.space = space;
+
+        // the shuffle is id = (multiplier * counter + offset) mod 10^digits, which visits every ID exactly once
+        // as long as the multiplier isn't divisible by 2 or 5
+        Random rng = new Random(seed);
+        long m;
+        do {
+            m = Math.floorMod(rng.nextLong(), space);
+        } while (m % 2 == 0 || m % 5 == 0);
+        this.multiplier = m;
+        this.offset = Math.floorMod(rng.nextLong(), space);
+    }
+
+    @Override
+    public String nextId() {
+        long n = this.next.getAndIncrement();
+        if (n >= this.space) {
+            throw new IllegalStateException(String.format("All %d IDs of %d digits have been handed out", this.space, this.digits));
+        }
+
+        long id = SequenceIdGenerator.mulmod(this.multiplier, n, this.space) + this.offset;
+        if (id >= this.space) {
+            id -= this.space;
+        }
+
+        // write the digits straight into a char array, leading zeros and all
+        char[] chars = new char[this.digits];
+        for (int c = this.digits - 1; c >= 0; c--) {
+            chars[c] = (char) ('0' + id % 10);
+            id /= 10;
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public long getState() {
+        return Math.min(this.next.get(), this.space);
+    }
+
+    @Override
+    public void restoreState(long state) {
+        this.next.accumulateAndGet(state, Math::max);
+    }
+
+    /**
+     * Work out (a * b) mod m without overflowing, for a and b less than m
+     */
+    private static long mulmod(long a, long b, long m) {
+        long result = 0;
+        while (b > 0) {
+            if ((b & 1) == 1) {
+                result += a;
+                if (result >= m) {
+                    result -= m;
+                }
+            }
+            a += a; // can't overflow, since a < m <= 10^18
+            if (a >= m) {
+                a -= m;
+            }
+            b >>= 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,501 @@
+// Splits a bank's accounts into shards, each changed only by its own event-loop thread
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Each account belongs to one shard, picked by a hash of its ID, and only that shard's thread
+ * ever changes it. Transactions, withdrawals and transfers are sent to the owning shard as
+ * messages and answered through a CompletableFuture, so shards never wait for each other and the
+ * account locks are never contended on the single-account path. A shard runs whatever messages
+ * have queued up as one batch, then waits once for the journal before answering any of them.
+ * <p>
+ * A transfer between accounts on two shards is coordinated with messages too. The shard of the
+ * account with the lower ID fences that account, so its other messages wait, and passes the
+ * transfer to the other account's shard. That shard does the transfer as usual, with both legs
+ * in one journal record, and sends a message back to lift the fence. Fences are always taken in
+ * account ID order, the same order Account.lockBoth uses, so transfers can't wait on each other
+ * in a circle.
+ * <p>
+ * While a ShardedBank is open, every change to its accounts should go through it. Reads, like
+ * balances and histories, can still be made directly on the accounts.
+ */
+public class ShardedBank implements Closeable {
+    /**
+     * The most messages a shard runs before waiting for the journal and answering them
+     */
+    private static final int MAX_BATCH = 1024;
+
+    private final Bank bank;
+    private final Shard[] shards;
+
+    /**
+     * The names of the gauges of the shards' queues, which are named after the bank, and the gauges
+     * themselves, so close() can remove them again
+     */
+    private final String[] gaugeNames;
+    private final LongSupplier[] gauges;
+
+    /**
+     * The number of requests sent that haven't been answered yet
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Counted down once the bank is closed and every request has been answered
+     */
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    private volatile boolean closed;
+
+    /**
+     * Start the shards of a bank
+     * @param theBank       the bank whose accounts to shard
+     * @param shardCount    the number of shards, each with its own thread
+     */
+    public ShardedBank(Bank theBank, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("There must be at least one shard");
+        }
+        this.bank = theBank;
+        this.shards = new Shard[shardCount];
+        this.gaugeNames = new String[shardCount];
+        this.gauges = new LongSupplier[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(i);
+            Shard shard = this.shards[i];
+            this.gaugeNames[i] = theBank.getName() + ".shard" + i + ".queued";
+            this.gauges[i] = () -> shard.inbox.size();
+            Metrics.gauge(this.gaugeNames[i], this.gauges[i]);
+        }
+        for (Shard shard : this.shards) {
+            shard.thread.start();
+        }
+    }
+
+    public int numShards() {
+        return this.shards.length;
+    }
+
+    /**
+     * Find which shard an account belongs to
+     * @param accountID the account ID
+     * @return          the index of its shard
+     */
+    public int shardOf(String accountID) {
+        int h = accountID.hashCode();
+        h ^= h >>> 16; // account IDs are digits, so mix the high bits down before taking the remainder
+        return Math.floorMod(h, this.shards.length);
+    }
+
+    /**
+     * Add a transaction to an account
+     * @param accountID the ID of the account
+     * @param amount    the amount of the transaction, in cents
+     * @param memo      the memo of the transaction
+     * @return          the account's new balance, once the transaction is durable
+     * @throws IllegalArgumentException if the account doesn't exist
+     */
+    public CompletableFuture<Long> addTransaction(String accountID, long amount, String memo) {
+        Account acct = this.account(accountID);
+        Shard shard = this.shardFor(acct);
+        CompletableFuture<Long> result = this.newRequest();
+
+        shard.send(() -> shard.whenUnfenced(acct, null, () -> {
+            try {
+                acct.addTransaction(amount, memo, false);
+                shard.reply(result, acct.getBalance());
+            } catch (RuntimeException e) {
+                shard.fail(result, e);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * Withdraw money from an account, checking its balance and withdrawal limits
+     * @param accountID the ID of the account
+     * @param amount    the amount to withdraw, in cents (must not be negative)
+     * @param memo      the memo of the transaction
+     * @return          OK once the withdrawal is durable, otherwise why it was refused
+     * @throws IllegalArgumentException if the account doesn't exist or the amount is negative
+     */
+    public CompletableFuture<Account.WithdrawResult> withdraw(String accountID, long amount, String memo) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative");
+        }
+        Account acct = this.account(accountID);
+        Shard shard = this.shardFor(acct);
+        CompletableFuture<Account.WithdrawResult> result = this.newRequest();
+
+        shard.send(() -> shard.whenUnfenced(acct, null, () -> {
+            try {
+                shard.reply(result, acct.withdraw(amount, memo, false));
+            } catch (RuntimeException e) {
+                shard.fail(result, e);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * Transfer money between any two accounts of the bank, recording both legs as one linked pair
+     * @param fromAccountID the ID of the account to transfer from
+     * @param toAccountID   the ID of the account to transfer to
+     * @param amount        the amount to transfer, in cents (must not be negative)
+     * @return              OK once the transfer is durable, otherwise why it was refused: it would
+     *                      overdraw the from account or, for another customer's account, go past its withdrawal limits
+     * @throws IllegalArgumentException if either account doesn't exist or the amount is negative
+     */
+    public CompletableFuture<Account.WithdrawResult> transfer(String fromAccountID, String toAccountID, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative");
+        }
+        Account from = this.account(fromAccountID);
+        Account to = this.account(toAccountID);
+        Shard fromShard = this.shardFor(from);
+        Shard toShard = this.shardFor(to);
+        CompletableFuture<Account.WithdrawResult> result = this.newRequest();
+
+        if (fromShard == toShard) {
+            // one thread owns both accounts, so it can just do it
+            fromShard.send(() -> fromShard.whenUnfenced(from, to, () -> fromShard.transfer(from, to, amount, result)));
+            return result;
+        }
+
+        // fence the account with the lower ID on its own shard, then do the transfer on the other one's
+        Account first = from.getUUID().compareTo(to.getUUID()) < 0 ? from : to;
+        Account second = first == from ? to : from;
+        Shard firstShard = this.shardFor(first);
+        Shard secondShard = this.shardFor(second);
+
+        firstShard.send(() -> firstShard.whenUnfenced(first, null, () -> {
+            firstShard.fence(first);
+            secondShard.send(() -> secondShard.whenUnfenced(second, null, () -> {
+                try {
+                    secondShard.transfer(from, to, amount, result);
+                } finally {
+                    firstShard.send(() -> firstShard.unfence(first));
+                }
+            }));
+        }));
+        return result;
+    }
+
+    /**
+     * Wait for every request already sent to be answered, then stop the shards and remove their
+     * gauges. Requests sent after this is called are refused
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.outstanding.get() == 0) {
+            this.drained.countDown();
+        }
+
+        boolean interrupted = false;
+        while (this.drained.getCount() > 0) {
+            try {
+                this.drained.await();
+            } catch (InterruptedException e) {
+                interrupted = true; // finish closing first, then pass the interrupt on
+            }
+        }
+        for (Shard shard : this.shards) {
+            shard.send(() -> shard.running = false);
+        }
+        for (Shard shard : this.shards) {
+            while (shard.thread.isAlive()) {
+                try {
+                    shard.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (int i = 0; i < this.gauges.length; i++) {
+            Metrics.removeGauge(this.gaugeNames[i], this.gauges[i]);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Account account(String accountID) {
+        Account acct = this.bank.findAccount(accountID);
+        if (acct == null) {
+            throw new IllegalArgumentException(String.format("No such account: %s", accountID));
+        }
+        return acct;
+    }
+
+    private Shard shardFor(Account acct) {
+        return this.shards[this.shardOf(acct.getUUID())];
+    }
+
+    private <T> CompletableFuture<T> newRequest() {
+        // count the request before checking, so close() either sees it and waits for it, or it sees close() and gives up
+        this.outstanding.incrementAndGet();
+        if (this.closed) {
+            this.answered();
+            throw new IllegalStateException("The sharded bank is closed");
+        }
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        result.whenComplete((value, error) -> this.answered());
+        return result;
+    }
+
+    /**
+     * Count a request as answered, letting close() carry on if it was the last one
+     */
+    private void answered() {
+        if (this.outstanding.decrementAndGet() == 0 && this.closed) {
+            this.drained.countDown();
+        }
+    }
+
+    /**
+     * One shard: a thread, the queue of messages for it, and the accounts it has fenced. Everything
+     * but the queue is only ever touched by the shard's own thread
+     */
+    private class Shard implements Runnable {
+        private final BlockingQueue<Runnable> inbox = new LinkedBlockingQueue<Runnable>();
+        private final Thread thread;
+
+        /**
+         * The fenced accounts, each with the messages waiting for its fence to be lifted, in order
+         */
+        private final Map<Account, ArrayDeque<Runnable>> fenced = new HashMap<Account, ArrayDeque<Runnable>>();
+
+        /**
+         * Answers to send once the journal has caught up with the current batch
+         */
+        private final List<Reply<?>> replies = new ArrayList<Reply<?>>();
+
+        private boolean running = true;
+
+        private Shard(int index) {
+            this.thread = new Thread(this, "shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        private void send(Runnable message) {
+            this.inbox.add(message);
+        }
+
+        @Override
+        public void run() {
+            List<Runnable> batch = new ArrayList<Runnable>(MAX_BATCH);
+            while (this.running) {
+                try {
+                    batch.add(this.inbox.take());
+                } catch (InterruptedException e) {
+                    continue; // only close() stops a shard
+                }
+                this.inbox.drainTo(batch, MAX_BATCH - 1);
+
+                for (Runnable message : batch) {
+                    try {
+                        message.run();
+                    } catch (RuntimeException e) {
+                        Log.error("Shard message failed: {}", e);
+                    }
+                }
+                batch.clear();
+                this.sendReplies();
+            }
+        }
+
+        /**
+         * Run something on one or two of this shard's accounts now, or once neither is fenced
+         */
+        private void whenUnfenced(Account a, Account b, Runnable op) {
+            ArrayDeque<Runnable> waiting = this.fenced.get(a);
+            if (waiting == null && b != null) {
+                waiting = this.fenced.get(b);
+            }
+            if (waiting != null) {
+                // check both again when it's let through, since the other one may be fenced by then
+                waiting.add(() -> this.whenUnfenced(a, b, op));
+                return;
+            }
+            op.run();
+        }
+
+        private void fence(Account acct) {
+            this.fenced.put(acct, new ArrayDeque<Runnable>());
+        }
+
+        private void unfence(Account acct) {
+            ArrayDeque<Runnable> waiting = this.fenced.remove(acct);
+            Runnable op;
+            while ((op = waiting.poll()) != null) {
+                op.run();
+
+                // that may have fenced the account again; if so the rest go on waiting, still in order
+                ArrayDeque<Runnable> again = this.fenced.get(acct);
+                if (again != null) {
+                    waiting.addAll(again);
+                    this.fenced.put(acct, waiting);
+                    return;
+                }
+            }
+        }
+
+        private void transfer(Account from, Account to, long amount, CompletableFuture<Account.WithdrawResult> result) {
+            try {
+                Account.WithdrawResult[] why = new Account.WithdrawResult[1];
+                Account.transfer(from, to, amount, false, why);
+                this.reply(result, why[0]);
+            } catch (RuntimeException e) {
+                this.fail(result, e);
+            }
+        }
+
+        private <T> void reply(CompletableFuture<T> result, T value) {
+            this.replies.add(new Reply<T>(result, value, null));
+        }
+
+        private <T> void fail(CompletableFuture<T> result, Throwable error) {
+            this.replies.add(new Reply<T>(result, null, error));
+        }
+
+        /**
+         * Wait once for everything this batch journaled to be durable, then answer the whole batch
+         */
+        private void sendReplies() {
+            if (this.replies.isEmpty()) {
+                return;
+            }
+
+            UncheckedIOException failure = null;
+            Journal journal = ShardedBank.this.bank.getJournal();
+            if (journal != null) {
+                try {
+                    journal.awaitDurable(journal.getLastSeq());
+                } catch (UncheckedIOException e) {
+                    // none of the batch can be counted on, so every request in it fails
+                    failure = e;
+                }
+            }
+
+            for (Reply<?> reply : this.replies) {
+                reply.send(failure);
+            }
+            this.replies.clear();
+        }
+    }
+
+    /**
+     * The answer to one request, held until the journal has caught up
+     */
+    private static class Reply<T> {
+        private final CompletableFuture<T> result;
+        private final T value;
+        private final Throwable error;
+
+        private Reply(CompletableFuture<T> result, T value, Throwable error) {
+            this.result = result;
+            this.value = value;
+            this.error = error;
+        }
+
+        private void send(Throwable journalFailure) {
+            if (this.error != null || journalFailure != null) {
+                this.result.completeExceptionally(this.error != null ? this.error : journalFailure);
+            } else {
+                this.result.complete(this.value);
+            }
+        }
+    }
+
+    /**
+     * Measure the throughput of a mix of transactions, withdrawals and transfers with more and more shards
+     * @param args  optionally, the number of accounts, the number of requests per run, and the most shards to try
+     */
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int maxShards = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Log.setLevel(Log.Level.OFF);
+        Bank theBank = new Bank("Shard test");
+        String[] ids = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            Account acct = theBank.addUser("Test", "User" + i, "1234").getAccount(0);
+            acct.addTransaction(Money.ofDollars(1000), "Opening deposit");
+            ids[i] = acct.getUUID();
+        }
+
+        System.out.printf("Sharded throughput, %d accounts, %d requests per run\n", accounts, requests);
+        for (int shardCount = 1; shardCount <= maxShards; shardCount *= 2) {
+            long before = ShardedBank.totalBalance(theBank);
+            AtomicLong netDeposits = new AtomicLong();
+            ShardedBank sharded = new ShardedBank(theBank, shardCount);
+            Semaphore inFlight = new Semaphore(10000);
+
+            // one client thread per shard, each keeping plenty of requests in flight
+            Thread[] clients = new Thread[shardCount];
+            long start = System.nanoTime();
+            for (int c = 0; c < clients.length; c++) {
+                int perClient = requests / clients.length;
+                long seed = c;
+                clients[c] = new Thread(() -> {
+                    Random rnd = new Random(seed);
+                    for (int i = 0; i < perClient; i++) {
+                        inFlight.acquireUninterruptibly();
+                        String id = ids[rnd.nextInt(ids.length)];
+                        int kind = rnd.nextInt(10);
+                        long amount = 1 + rnd.nextInt(5000);
+                        CompletableFuture<?> f;
+                        if (kind < 3) {
+                            f = sharded.addTransaction(id, amount, "Test deposit");
+                            netDeposits.addAndGet(amount);
+                        } else if (kind < 6) {
+                            f = sharded.withdraw(id, amount, "Test withdrawal").thenAccept(r -> {
+                                if (r == Account.WithdrawResult.OK) {
+                                    netDeposits.addAndGet(-amount);
+                                }
+                            });
+                        } else {
+                            f = sharded.transfer(id, ids[rnd.nextInt(ids.length)], amount);
+                        }
+                        f.whenComplete((r, e) -> inFlight.release());
+                    }
+                });
+                clients[c].start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+            sharded.close();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long after = ShardedBank.totalBalance(theBank);
+            System.out.printf("  %2d shards: %,12.0f requests/s  money %s\n", shardCount,
+                    (requests / clients.length * clients.length) / seconds,
+                    after == before + netDeposits.get() ? "conserved" : "NOT CONSERVED");
+        }
+    }
+
+    private static long totalBalance(Bank theBank) {
+        long total = 0;
+        for (Account acct : theBank.getAccounts()) {
+            total += acct.getBalance();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,323 @@
+// Saves the whole bank to a snapshot file, and rebuilds it at startup from the last snapshot plus the journal written since
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+public class Snapshot {
+    /**
+     * The first 4 bytes of every snapshot file, "ATMS"
+     */
+    private static final int MAGIC = 0x41544D53;
+
+    /**
+     * The version of the snapshot format
+     */
+    private static final int VERSION = 1;
+
+    private Snapshot() {
+        // only static helpers here
+    }
+
+    /**
+     * Write a snapshot of every user, account and balance of the bank. Sessions can keep using the
+     * bank while this runs: each account's balance is saved together with the last journal record
+     * it includes, so recovery knows exactly which journal records still need replaying. Once the
+     * snapshot is safely in place, the journal records it includes are dropped from the journal file
+     * @param theBank   the bank to save
+     * @param file      the snapshot file, which is replaced atomically once the new snapshot is complete
+     * @throws IOException if the snapshot or the journal can't be written
+     */
+    public static void write(Bank theBank, Path file) throws IOException {
+        // every journal record before this position is already reflected in the accounts below
+        Journal journal = theBank.getJournal();
+        long[] mark = journal == null ? new long[2] : journal.getAppendMark();
+        long journalPosition = mark[0];
+        long journalSeq = mark[1];
+        long takenAt = System.currentTimeMillis();
+
+        // get the accounts before the users, so every account's holder is sure to be in the snapshot
+        List<Account> accounts = theBank.getAccounts();
+        List<User> users = theBank.getUsers();
+        long[][] states = new long[accounts.size()][];
+        for (int a = 0; a < states.length; a++) {
+            states[a] = accounts.get(a).getSnapshotState();
+        }
+
+        // the snapshot mustn't include anything the journal could still lose in a crash
+        if (journal != null) {
+            journal.flush();
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(ch), 64 << 10), crc));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(takenAt);
+            out.writeLong(journalPosition);
+            out.writeLong(journalSeq);
+            out.writeLong(theBank.getUserIdGenerator().getState());
+            out.writeLong(theBank.getAccountIdGenerator().getState());
+            Snapshot.writeString(out, theBank.getName());
+
+            out.writeInt(users.size());
+            for (User u : users) {
+                Snapshot.writeString(out, u.getUUID());
+                Snapshot.writeString(out, u.getFirstName());
+                Snapshot.writeString(out, u.getLastName());
+                Snapshot.writeBytes(out, u.getPinHash());
+            }
+
+            out.writeInt(accounts.size());
+            for (int a = 0; a < states.length; a++) {
+                Account acct = accounts.get(a);
+                Snapshot.writeString(out, acct.getUUID());
+                Snapshot.writeString(out, acct.getHolder().getUUID());
+                Snapshot.writeString(out, acct.getName());
+                out.writeLong(states[a][0]);
+                out.writeLong(states[a][1]);
+                out.writeLong(states[a][2]);
+                out.writeLong(states[a][3]);
+            }
+
+            // the checksum goes last and isn't part of what it covers
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            ch.force(true);
+        }
+
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // the journal before the snapshot's position is only safe to drop once a crash can't bring back the old snapshot
+        if (journal != null) {
+            Journal.forceDirectory(file);
+            journal.dropBefore(journalPosition, journalSeq);
+        }
+    }
+
+    /**
+     * Rebuild a bank from its last snapshot, then replay only the part of the journal written after it
+     * @param name          the name to give the bank if there's no snapshot yet
+     * @param snapshotFile  the snapshot file (it's fine if it doesn't exist)
+     * @param journalFile   the journal file (it's fine if it doesn't exist)
+     * @return              the recovered bank, without a journal attached
+     * @throws IOException if a file can't be read, or the snapshot is corrupt
+     */
+    public static Bank recover(String name, Path snapshotFile, Path journalFile) throws IOException {
+        return Snapshot.recover(name, snapshotFile, journalFile, new long[2]);
+    }
+
+    /**
+     * Rebuild a bank from its last snapshot, then replay only the part of the journal written
+     * after it, and carry on journaling to the same file. Only the journal's tail is read, once,
+     * so how long this takes depends on how long ago the snapshot was taken, not on the bank's history
+     * @param name                  the name to give the bank if there's no snapshot yet
+     * @param snapshotFile          the snapshot file (it's fine if it doesn't exist)
+     * @param journalFile           the journal file (it's fine if it doesn't exist)
+     * @param durability            the durability mode of the journal
+     * @param flushIntervalMillis   how long the journal gathers records into one batch
+     * @return                      the recovered bank, with its journal attached
+     * @throws IOException if a file can't be read or opened, or the snapshot is corrupt
+     */
+    public static Bank recover(String name, Path snapshotFile, Path journalFile, Journal.Durability durability,
+            long flushIntervalMillis) throws IOException {
+        long[] end = new long[2];
+        Bank theBank = Snapshot.recover(name, snapshotFile, journalFile, end);
+        theBank.setJournal(new Journal(journalFile, durability, flushIntervalMillis, end[0], end[1]));
+        return theBank;
+    }
+
+    /**
+     * Rebuild a bank, and say where its journal's good records end
+     * @param end   set to the position after the last good journal record and its sequence number
+     */
+    private static Bank recover(String name, Path snapshotFile, Path journalFile, long[] end) throws IOException {
+        Bank theBank;
+        long journalPosition = -1;
+        long journalSeq = 0;
+
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel ch = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+                // check the snapshot is complete before believing any of it
+                int size = buf.limit();
+                CRC32C crc = new CRC32C();
+                crc.update(buf.duplicate().limit(Math.max(size - 4, 0)));
+                if (size < 28 || buf.getInt(0) != MAGIC || (int) crc.getValue() != buf.getInt(size - 4)) {
+                    throw new IOException("Snapshot " + snapshotFile + " is corrupt");
+                }
+                int version = buf.getInt(4);
+                if (version != VERSION) {
+                    throw new IOException("Snapshot " + snapshotFile + " has unsupported version " + version);
+                }
+
+                buf.position(8);
+                Date takenAt = new Date(buf.getLong());
+                journalPosition = buf.getLong();
+                journalSeq = buf.getLong();
+                long userIdState = buf.getLong();
+                long accountIdState = buf.getLong();
+                theBank = new Bank(Snapshot.readString(buf));
+                theBank.setHistoryStart(takenAt.getTime());
+                theBank.getUserIdGenerator().restoreState(userIdState);
+                theBank.getAccountIdGenerator().restoreState(accountIdState);
+
+                int numUsers = buf.getInt();
+                for (int u = 0; u < numUsers; u++) {
+                    String uuid = Snapshot.readString(buf);
+                    String firstName = Snapshot.readString(buf);
+                    String lastName = Snapshot.readString(buf);
+                    byte[] pinHash = Snapshot.readBytes(buf);
+                    theBank.registerUser(new User(uuid, firstName, lastName, pinHash, theBank));
+                }
+
+                int numAccounts = buf.getInt();
+                for (int a = 0; a < numAccounts; a++) {
+                    String uuid = Snapshot.readString(buf);
+                    User holder = theBank.findUser(Snapshot.readString(buf));
+                    String acctName = Snapshot.readString(buf);
+                    long balance = buf.getLong();
+                    long seq = buf.getLong();
+                    long postingDay = buf.getLong();
+                    long carry = buf.getLong();
+
+                    Account acct = new Account(uuid, acctName, holder, theBank);
+                    acct.restoreBalance(balance, seq, postingDay, carry, takenAt);
+                    holder.addAccount(acct);
+                    theBank.registerAccount(acct);
+                }
+            }
+        } else {
+            theBank = new Bank(name);
+        }
+
+        // replay the journal tail; records the snapshot already includes are skipped account by account
+        long[] lastSeq = {journalSeq};
+        end[0] = Journal.read(journalFile, journalPosition, entry -> {
+            Snapshot.replay(theBank, entry);
+            lastSeq[0] = entry.getSeq();
+        });
+        end[1] = lastSeq[0];
+
+        return theBank;
+    }
+
+    /**
+     * Write a snapshot of the bank every so often on a background thread
+     * @param theBank   the bank to save
+     * @param file      the snapshot file
+     * @param period    the time between snapshots
+     * @param unit      the unit of the period
+     * @return          the executor running the snapshots, which can be shut down to stop them
+     */
+    public static ScheduledExecutorService schedule(Bank theBank, Path file, long period, TimeUnit unit) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                Snapshot.write(theBank, file);
+            } catch (IOException e) {
+                // keep going; the journal still has everything, and the next snapshot may work
+                Log.error("Couldn't write snapshot {}: {}", file, e.getMessage());
+            }
+        }, period, period, unit);
+
+        return executor;
+    }
+
+    /**
+     * Apply one journal record to a bank being recovered
+     */
+    private static void replay(Bank theBank, Journal.Entry entry) {
+        switch (entry.getType()) {
+            case Journal.USER: {
+                String uuid = Bank.formatUserUUID(entry.getLong(0));
+                if (theBank.findUser(uuid) == null) {
+                    theBank.registerUser(new User(uuid, entry.getString(0), entry.getString(1), entry.getBytes(2), theBank));
+                }
+                break;
+            }
+            case Journal.ACCOUNT: {
+                String uuid = Bank.formatAccountUUID(entry.getLong(0));
+                User holder = theBank.findUser(Bank.formatUserUUID(entry.getLong(1)));
+                if (theBank.findAccount(uuid) == null && holder != null) {
+                    Account acct = new Account(uuid, entry.getString(0), holder, theBank);
+                    holder.addAccount(acct);
+                    theBank.registerAccount(acct);
+                }
+                break;
+            }
+            case Journal.TRANSACTION: {
+                Account acct = theBank.findAccount(Bank.formatAccountUUID(entry.getAccount()));
+                if (acct != null) {
+                    acct.replayTransaction(entry.getSeq(), entry.getTime(), entry.getAmount(), entry.getMemo());
+                }
+                break;
+            }
+            case Journal.TRANSFER: {
+                Account from = theBank.findAccount(Bank.formatAccountUUID(entry.getAccount()));
+                Account to = theBank.findAccount(Bank.formatAccountUUID(entry.getToAccount()));
+                if (from != null && to != null) {
+                    Account.replayTransfer(from, to, entry.getSeq(), entry.getTime(), entry.getAmount(), entry.getMemo(), entry.getToMemo());
+                } else if (from != null) {
+                    from.replayTransaction(entry.getSeq(), entry.getTime(), -entry.getAmount(), entry.getMemo());
+                } else if (to != null) {
+                    to.replayTransaction(entry.getSeq(), entry.getTime(), entry.getAmount(), entry.getToMemo());
+                }
+                break;
+            }
+            case Journal.POSTING: {
+                Account acct = theBank.findAccount(Bank.formatAccountUUID(entry.getAccount()));
+                if (acct != null) {
+                    acct.replayPosting(entry.getSeq(), entry.getTime(), entry.getLong(1), entry.getLong(2), entry.getLong(3), entry.getLong(4),
+                            entry.getString(0), entry.getString(1));
+                }
+                break;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        Snapshot.writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        return new String(Snapshot.readBytes(buf), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(MappedByteBuffer buf) {
+        byte[] b = new byte[buf.getShort() & 0xFFFF];
+        buf.get(b);
+        return b;
+    }
+}
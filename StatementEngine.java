@@ -0,0 +1,405 @@
+// Renders end-of-day statements for every user of a bank to files, many users at a time
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Users are split into fixed-size parts, and each part's statements go to their own file,
+ * statements-00000.txt and so on, rendered by one of a pool of threads. Each thread keeps one
+ * text buffer and one byte buffer that it reuses for every statement, formats amounts and times
+ * itself instead of going through String.format, and writes to the file through a FileChannel
+ * only when its byte buffer fills up.
+ */
+public class StatementEngine {
+    /**
+     * The number of users whose statements go in each file
+     */
+    public static final int USERS_PER_FILE = 1000;
+
+    /**
+     * The size of each thread's byte buffer
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 << 10;
+
+    /**
+     * Each thread's reusable buffers
+     */
+    private static final ThreadLocal<Renderer> RENDERERS = ThreadLocal.withInitial(Renderer::new);
+
+    private final Bank bank;
+    private final Path directory;
+    private final int threads;
+    private final ZoneId zone;
+
+    /**
+     * Create a statement engine
+     * @param theBank   the bank to write statements for
+     * @param directory the directory to write the statement files in, which is created if needed
+     * @param threads   the number of threads rendering statements
+     * @param zone      the time zone to show times in
+     */
+    public StatementEngine(Bank theBank, Path directory, int threads, ZoneId zone) {
+        this.bank = theBank;
+        this.directory = directory;
+        this.threads = threads;
+        this.zone = zone;
+    }
+
+    /**
+     * Write the statements of every user for one day
+     * @param day   the day, in the engine's time zone
+     * @return      how much was written
+     * @throws IOException if a statement file can't be written
+     */
+    public Result run(LocalDate day) throws IOException {
+        long from = day.atStartOfDay(this.zone).toInstant().toEpochMilli();
+        long to = day.plusDays(1).atStartOfDay(this.zone).toInstant().toEpochMilli();
+        return this.run(from, to);
+    }
+
+    /**
+     * Write the statements of every user for a period. A bank recovered from a snapshot has no
+     * history before it, only the balances brought forward at it, so a period starting earlier
+     * is cut to start then, and the statements show the period they actually cover
+     * @param from  the start of the period, in epoch milliseconds (inclusive)
+     * @param to    the end of the period, in epoch milliseconds (exclusive)
+     * @return      how much was written
+     * @throws IOException if a statement file can't be written
+     * @throws IllegalArgumentException if the whole period is before the bank's history begins
+     */
+    public Result run(long from, long to) throws IOException {
+        long historyStart = this.bank.getHistoryStart();
+        if (to <= historyStart) {
+            throw new IllegalArgumentException("The bank's history only goes back to " + Instant.ofEpochMilli(historyStart));
+        }
+        from = Math.max(from, historyStart);
+        Files.createDirectories(this.directory);
+        List<User> users = this.bank.getUsers();
+        Result result = new Result();
+        long start = System.nanoTime();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "statement-writer-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> parts = new ArrayList<Future<?>>();
+            for (int first = 0; first < users.size(); first += USERS_PER_FILE) {
+                List<User> part = users.subList(first, Math.min(first + USERS_PER_FILE, users.size()));
+                Path file = this.directory.resolve(String.format("statements-%05d.txt", first / USERS_PER_FILE));
+                long partFrom = from;
+                long partTo = to;
+                parts.add(pool.submit(() -> {
+                    RENDERERS.get().writePart(file, part, partFrom, partTo, this.zone, result);
+                    return null;
+                }));
+            }
+
+            for (Future<?> part : parts) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw new IllegalStateException("Statement rendering failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing statements", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Run the engine every night at a local time, for the day that's just ended, on a background thread
+     * @param at    the time of day to run at, in the engine's time zone
+     * @return      the executor running the statements, which can be shut down to stop them
+     */
+    public ScheduledExecutorService schedule(LocalTime at) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "statement-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduleNext(executor, at);
+        return executor;
+    }
+
+    /**
+     * Schedule the next run, working out the delay each time since days aren't always 24 hours long
+     */
+    private void scheduleNext(ScheduledExecutorService executor, LocalTime at) {
+        ZonedDateTime now = ZonedDateTime.now(this.zone);
+        ZonedDateTime next = now.with(at);
+        if (!next.isAfter(now)) {
+            next = next.plusDays(1);
+        }
+        LocalDate day = next.toLocalDate().minusDays(1);
+
+        executor.schedule(() -> {
+            try {
+                Result result = this.run(day);
+                Log.info("Wrote statements for {}: {}", day, result);
+            } catch (IOException | RuntimeException e) {
+                Log.error("Couldn't write statements for {}: {}", day, e.getMessage());
+            }
+            this.scheduleNext(executor, at);
+        }, Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * How much a run of the engine wrote
+     */
+    public static class Result {
+        private final LongAdder files = new LongAdder();
+        private final LongAdder statements = new LongAdder();
+        private final LongAdder transactions = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private long nanos;
+
+        public long getFiles() {
+            return this.files.sum();
+        }
+
+        /**
+         * Get the number of statements written, one per user
+         * @return the number of statements
+         */
+        public long getStatements() {
+            return this.statements.sum();
+        }
+
+        /**
+         * Get the number of transaction lines written
+         * @return the number of transactions
+         */
+        public long getTransactions() {
+            return this.transactions.sum();
+        }
+
+        public long getBytes() {
+            return this.bytes.sum();
+        }
+
+        /**
+         * Get how long the run took
+         * @return the time, in nanoseconds
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d statements with %d transactions in %d files (%,d bytes) in %.1fs",
+                    this.getStatements(), this.getTransactions(), this.getFiles(), this.getBytes(), this.nanos / 1e9);
+        }
+    }
+
+    /**
+     * One thread's buffers, and the formatting that fills them
+     */
+    private static class Renderer implements Account.HistoryVisitor {
+        private final StringBuilder text = new StringBuilder(64 << 10);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+        /**
+         * The file being written, and what's been written to it
+         */
+        private FileChannel out;
+        private long written;
+
+        /**
+         * The local hour the last time shown fell in, kept so each line only has to format the minutes
+         * and seconds: its start and end in epoch milliseconds, and "yyyy-MM-dd HH:" for it
+         */
+        private ZoneId zone;
+        private long hourStart = 1;
+        private long hourEnd = 0;
+        private final char[] hourText = new char[14];
+
+        /**
+         * The number of transaction lines written for the current part
+         */
+        private long transactions;
+
+        /**
+         * Write the statements of a part of the users to a file
+         */
+        private void writePart(Path file, List<User> users, long from, long to, ZoneId zone, Result result) {
+            this.zone = zone;
+            this.hourStart = 1;
+            this.hourEnd = 0;
+            this.transactions = 0;
+            this.written = 0;
+
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                this.out = ch;
+                this.text.setLength(0);
+                this.bytes.clear();
+                for (User u : users) {
+                    this.renderStatement(u, from, to);
+                    if (this.text.length() >= 32 << 10) {
+                        this.drainText();
+                    }
+                }
+                this.drainText();
+                this.flushBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                this.out = null;
+            }
+
+            result.files.increment();
+            result.statements.add(users.size());
+            result.transactions.add(this.transactions);
+            result.bytes.add(this.written);
+        }
+
+        private void renderStatement(User u, long from, long to) throws IOException {
+            StringBuilder sb = this.text;
+            sb.append("Statement for ").append(u.getLastName()).append(", ").append(u.getFirstName());
+            sb.append(" (user ").append(u.getUUID()).append(")\n");
+            sb.append("Period: ");
+            this.appendTime(from);
+            sb.append(" to ");
+            this.appendTime(to);
+            sb.append("\n");
+
+            for (int a = 0; a < u.numAccounts(); a++) {
+                Account acct = u.getAccount(a);
+                sb.append("\nAccount ").append(acct.getUUID()).append(" (").append(acct.getName()).append(")\n");
+
+                // the opening balance and then each transaction are appended by the visitor methods below
+                long closing = acct.visitHistory(from, to, this);
+                Money.appendTo(sb.append("  Closing balance    "), closing).append('\n');
+
+                // keep the text buffer from growing without limit for accounts with long histories
+                if (sb.length() >= 1 << 20) {
+                    this.drainText();
+                }
+            }
+            sb.append("\n\f\n"); // a form feed between statements, so each one starts a new page when printed
+        }
+
+        @Override
+        public void opening(long balance) {
+            Money.appendTo(this.text.append("  Opening balance    "), balance).append('\n');
+        }
+
+        @Override
+        public void visit(long time, long amount, String memo) {
+            StringBuilder sb = this.text;
+            sb.append("  ");
+            this.appendTime(time);
+            sb.append("  ");
+            Money.appendTo(sb, amount);
+            sb.append("  ").append(memo).append('\n');
+            this.transactions++;
+        }
+
+        /**
+         * Append a time as "yyyy-MM-dd HH:mm:ss" in the renderer's zone
+         */
+        private void appendTime(long millis) {
+            if (millis < this.hourStart || millis >= this.hourEnd) {
+                // a new hour; work out its text and bounds the slow way, once
+                ZonedDateTime hour = Instant.ofEpochMilli(millis).atZone(this.zone).truncatedTo(ChronoUnit.HOURS);
+                this.hourStart = hour.toInstant().toEpochMilli();
+                this.hourEnd = hour.plusHours(1).toInstant().toEpochMilli();
+                String s = hour.toLocalDate().toString() + " " + (hour.getHour() < 10 ? "0" : "") + hour.getHour() + ":";
+                s.getChars(0, this.hourText.length, this.hourText, 0);
+            }
+
+            int secs = (int) ((millis - this.hourStart) / 1000);
+            int mins = secs / 60;
+            secs %= 60;
+            this.text.append(this.hourText);
+            this.text.append((char) ('0' + mins / 10)).append((char) ('0' + mins % 10)).append(':');
+            this.text.append((char) ('0' + secs / 10)).append((char) ('0' + secs % 10));
+        }
+
+        /**
+         * Encode the text buffer into the byte buffer, writing the byte buffer out each time it fills
+         */
+        private void drainText() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(this.text);
+            this.encoder.reset();
+            while (true) {
+                CoderResult cr = this.encoder.encode(chars, this.bytes, true);
+                if (cr.isOverflow()) {
+                    this.flushBytes();
+                } else if (cr.isUnderflow()) {
+                    break;
+                } else {
+                    cr.throwException();
+                }
+            }
+            this.encoder.flush(this.bytes);
+            this.text.setLength(0);
+        }
+
+        private void flushBytes() throws IOException {
+            this.bytes.flip();
+            while (this.bytes.hasRemaining()) {
+                this.written += this.out.write(this.bytes);
+            }
+            this.bytes.clear();
+        }
+    }
+
+    /**
+     * Write statements for one day while the server isn't running. The bank is recovered from its
+     * last snapshot, which keeps no history from before it, so this only covers what's happened
+     * since; the server writes complete statements every night with -Datm.statements=<directory>
+     * @param args  the directory (default "statements"), the number of threads and the day (default today)
+     * @throws IOException if the bank can't be opened or a statement file can't be written
+     */
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "statements");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        LocalDate day = args.length > 2 ? LocalDate.parse(args[2]) : LocalDate.now();
+
+        Bank theBank = ATM.recoverBank(Paths.get("atm.snapshot"), Paths.get("atm.journal"));
+        Result result = new StatementEngine(theBank, directory, threads, ZoneId.systemDefault()).run(day);
+        System.out.printf("Statements for %s: %s\n", day, result);
+        theBank.getJournal().close();
+    }
+}
@@ -2,9 +2,9 @@ import java.util.Date;
 
 public class Transaction {
     /**
-     * The amount of this transaction
+     * The amount of this transaction, in cents
      */
-    private double amount;
+    private long amount;
 
     /**
      * The time and date of this transaction
@@ -21,12 +21,17 @@ public class Transaction {
      */
     private Account inAccount;
 
+    /**
+     * For one leg of a transfer, the transaction for the other leg; null otherwise
+     */
+    private Transaction linkedTransaction;
+
     /**
      * Create a new transaction
-     * @param amount    the amount transacted
+     * @param amount    the amount transacted, in cents
      * @param inAccount the account the transaction belongs to
      */
-    public Transaction(double amount, Account inAccount) {
+    public Transaction(long amount, Account inAccount) {
         this.amount = amount;
         this.inAccount = inAccount;
         this.timestamp = new Date();
@@ -35,38 +40,96 @@ public class Transaction {
 
     /**
      * Create a new transaction
-     * @param amount    the amount transacted
+     * @param amount    the amount transacted, in cents
      * @param memo      the memo for the transaction
      * @param inAccount the account the transaction belongs to
      */
-    public Transaction(double amount, String memo, Account inAccount) {
+    public Transaction(long amount, String memo, Account inAccount) {
         // call the two-argument constructor first
         this(amount, inAccount);
 
         // set the memo
         this.memo = memo;
 
-        System.out.printf("\n=====DEBUGGING START WITHIN TRANSACTION.JAVA=====\ninAccount: %s\namount: %f\nmemo: %s\n====DEBUGGING END=====\n", inAccount, amount, memo); // for debugging
+        // check the level first, so nothing is formatted or boxed unless debug logging is on
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("New transaction in account {}: {} \"{}\"", inAccount.getUUID(), Money.format(amount), memo);
+        }
+    }
+
+    /**
+     * Recreate a transaction from the journal, keeping its original time
+     * @param amount    the amount transacted, in cents
+     * @param memo      the memo for the transaction
+     * @param timestamp the time and date of the transaction
+     * @param inAccount the account the transaction belongs to
+     */
+    public Transaction(long amount, String memo, Date timestamp, Account inAccount) {
+        this.amount = amount;
+        this.memo = memo;
+        this.timestamp = timestamp;
+        this.inAccount = inAccount;
     }
 
     /**
      * Get the amount of the transaction
-     * @return the amount
+     * @return the amount, in cents
      */
-    public double getAmount()
+    public long getAmount()
     {
         return this.amount;
     }
 
+    /**
+     * Get the time and date of the transaction
+     * @return the timestamp
+     */
+    public Date getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Get the account the transaction belongs to
+     * @return the account
+     */
+    public Account getAccount() {
+        return this.inAccount;
+    }
+
+    /**
+     * Get the memo of the transaction
+     * @return the memo
+     */
+    public String getMemo() {
+        return this.memo;
+    }
+
+    /**
+     * Get the other leg of a transfer
+     * @return the transaction for the other leg, or null if this transaction isn't part of a transfer
+     */
+    public Transaction getLinkedTransaction() {
+        return this.linkedTransaction;
+    }
+
+    /**
+     * Link the two legs of a transfer to each other
+     * @param debit     the withdrawal side of the transfer
+     * @param credit    the deposit side of the transfer
+     */
+    static void link(Transaction debit, Transaction credit) {
+        debit.linkedTransaction = credit;
+        credit.linkedTransaction = debit;
+    }
+
     /**
      * Get a string summarizing the transaction
      * @return the summary string
      */
     public String getSummaryLine() {
-        if (this.amount >= 0) {
-            return String.format("%s : $%.02f : %s", this.timestamp.toString(), this.amount, this.memo);
-        } else {
-            return String.format("%s : $(%.02f) : %s", this.timestamp.toString(), this.amount, this.memo);
-        }
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(this.timestamp.toString()).append(" : ");
+        Money.appendTo(sb, this.amount); // Money puts the parenthesis around a negative amount for us
+        return sb.append(" : ").append(this.memo).toString();
     }
 }
\ No newline at end of file
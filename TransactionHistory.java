@@ -0,0 +1,63 @@
+// Where an Account keeps its transactions. Accounts only use it while holding their own lock
+
+public interface TransactionHistory {
+    /**
+     * Get the number of transactions
+     * @return the number of transactions
+     */
+    int size();
+
+    /**
+     * Get a transaction
+     * @param index the index of the transaction, oldest first
+     * @return      the transaction
+     */
+    Transaction get(int index);
+
+    /**
+     * Get the amount of a transaction, without building the Transaction object
+     * @param index the index of the transaction
+     * @return      the amount, in cents
+     */
+    long getAmount(int index);
+
+    /**
+     * Get the time of a transaction, without building the Transaction object
+     * @param index the index of the transaction
+     * @return      the time, in epoch milliseconds
+     */
+    long getTime(int index);
+
+    /**
+     * Get the memo of a transaction, without building the Transaction object
+     * @param index the index of the transaction
+     * @return      the memo
+     */
+    String getMemo(int index);
+
+    /**
+     * Add a transaction to the end of the history
+     * @param t the transaction
+     * @return  the index it was added at
+     */
+    int add(Transaction t);
+
+    /**
+     * Remember that a transaction is one leg of a transfer
+     * @param index the index of this leg
+     * @param other the other leg
+     */
+    void link(int index, Transaction other);
+
+    /**
+     * Add up the amounts of all the transactions
+     * @return the total, in cents
+     */
+    long sumAmounts();
+
+    /**
+     * Bring the newest transactions into memory ahead of use, for stores that keep some of them on disk
+     */
+    default void prefetch() {
+    }
+}
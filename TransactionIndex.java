@@ -0,0 +1,210 @@
+// Bank-wide secondary indexes over every account's transactions, kept up to date as transactions are added
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Each transaction is a posting: its account's number in the index and its place in the account's
+ * history, packed into a long. Every posting goes into
+ * <ul>
+ *   <li>the list for the minute it happened in, kept in time order in a skip list;</li>
+ *   <li>the list for its amount's bucket: one bucket per power of two, withdrawals and deposits apart;</li>
+ *   <li>the list for each word of its memo;</li>
+ *   <li>for a leg of a transfer, the list for the account on the other side.</li>
+ * </ul>
+ * so a search only has to look at the postings in its smallest list instead of every transaction in
+ * the bank. Accounts add their own postings while holding their own lock; the lists take their own
+ * short lock to append, and can be read without any lock at all.
+ */
+public class TransactionIndex {
+    /**
+     * The width of a time bucket, in milliseconds
+     */
+    static final long TIME_BUCKET_MILLIS = 60000;
+
+    /**
+     * Words too common in memos to be worth a list of their own
+     */
+    private static final List<String> STOPWORDS = Arrays.asList("a", "an", "and", "the", "to", "from", "of", "for", "account");
+
+    private final ConcurrentSkipListMap<Long, PostingList> byMinute = new ConcurrentSkipListMap<Long, PostingList>();
+    private final PostingList[] byAmount = new PostingList[129];
+    private final ConcurrentHashMap<String, PostingList> byWord = new ConcurrentHashMap<String, PostingList>();
+    private final ConcurrentHashMap<String, PostingList> byCounterparty = new ConcurrentHashMap<String, PostingList>();
+
+    /**
+     * The accounts by their number in the index; replaced as a whole when it grows
+     */
+    private volatile Account[] accounts = new Account[1024];
+    private int accountCount;
+
+    TransactionIndex() {
+        for (int i = 0; i < this.byAmount.length; i++) {
+            this.byAmount[i] = new PostingList();
+        }
+    }
+
+    /**
+     * Index a transaction that's just been added to an account. The caller must hold the account's lock
+     * @param acct          the account
+     * @param historyIndex  the index of the transaction in the account's history
+     * @param t             the transaction, already linked to its other leg if it's part of a transfer
+     */
+    void add(Account acct, int historyIndex, Transaction t) {
+        int number = acct.getIndexNumber();
+        if (number < 0) {
+            number = this.register(acct);
+            acct.setIndexNumber(number);
+        }
+        long posting = ((long) number << 32) | historyIndex;
+
+        this.byMinute.computeIfAbsent(Math.floorDiv(t.getTimestamp().getTime(), TIME_BUCKET_MILLIS), k -> new PostingList()).add(posting);
+        this.byAmount[TransactionIndex.amountBucket(t.getAmount())].add(posting);
+        for (String word : TransactionIndex.words(t.getMemo())) {
+            this.byWord.computeIfAbsent(word, k -> new PostingList()).add(posting);
+        }
+        Transaction other = t.getLinkedTransaction();
+        if (other != null) {
+            this.byCounterparty.computeIfAbsent(other.getAccount().getUUID(), k -> new PostingList()).add(posting);
+        }
+    }
+
+    /**
+     * Start a search of every account's transactions
+     * @return the search, which matches everything until it's narrowed down
+     */
+    public TransactionSearch search() {
+        return new TransactionSearch(this);
+    }
+
+    private synchronized int register(Account acct) {
+        if (this.accountCount == this.accounts.length) {
+            this.accounts = Arrays.copyOf(this.accounts, this.accountCount * 2);
+        }
+        this.accounts[this.accountCount] = acct;
+        return this.accountCount++;
+    }
+
+    /**
+     * Find the account a posting belongs to
+     */
+    Account accountOf(long posting) {
+        return this.accounts[(int) (posting >>> 32)];
+    }
+
+    /**
+     * Find where a posting's transaction is in its account's history
+     */
+    static int historyIndexOf(long posting) {
+        return (int) posting;
+    }
+
+    /**
+     * Get the time buckets overlapping a range, oldest first
+     */
+    List<PostingList> timeBuckets(long from, long to) {
+        return new ArrayList<PostingList>(this.byMinute.subMap(Math.floorDiv(from, TIME_BUCKET_MILLIS), true, Math.floorDiv(to, TIME_BUCKET_MILLIS), true).values());
+    }
+
+    /**
+     * Get the amount buckets overlapping a range
+     */
+    List<PostingList> amountBuckets(long min, long max) {
+        List<PostingList> lists = new ArrayList<PostingList>();
+        for (int b = TransactionIndex.amountBucket(min); b <= TransactionIndex.amountBucket(max); b++) {
+            lists.add(this.byAmount[b]);
+        }
+        return lists;
+    }
+
+    /**
+     * Get the postings whose memo has a word, or null if none do
+     */
+    PostingList withWord(String word) {
+        return this.byWord.get(word.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the postings that are legs of transfers with an account, or null if there are none
+     */
+    PostingList withCounterparty(String accountID) {
+        return this.byCounterparty.get(accountID);
+    }
+
+    /**
+     * Find the bucket of an amount: 64 for zero, above it one per power of two of deposits, below it
+     * one per power of two of withdrawals, so buckets go up in the same order as amounts
+     */
+    static int amountBucket(long amount) {
+        if (amount == 0) {
+            return 64;
+        }
+        if (amount > 0) {
+            return 64 + (64 - Long.numberOfLeadingZeros(amount));
+        }
+        // -Long.MIN_VALUE is still negative, but has no leading zeros either way, so it lands in bucket 0
+        return 64 - (64 - Long.numberOfLeadingZeros(-amount));
+    }
+
+    /**
+     * Split a memo into the distinct, lower-case words that get indexed
+     * @param memo  the memo
+     * @return      the words, without the stopwords
+     */
+    static List<String> words(String memo) {
+        List<String> words = new ArrayList<String>(4);
+        int len = memo.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && !Character.isLetterOrDigit(memo.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < len && Character.isLetterOrDigit(memo.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                String word = memo.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!STOPWORDS.contains(word) && !words.contains(word)) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+
+    /**
+     * An append-only list of postings. Appends take the list's lock; readers read the size first and
+     * then only the postings below it, which never change, so they don't need the lock
+     */
+    static final class PostingList {
+        private volatile long[] postings = new long[4];
+        private volatile int size;
+
+        synchronized void add(long posting) {
+            int n = this.size;
+            long[] p = this.postings;
+            if (n == p.length) {
+                p = Arrays.copyOf(p, n * 2);
+                this.postings = p;
+            }
+            p[n] = posting;
+            this.size = n + 1; // publish it
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * Get the postings array; only the first size() entries, read before this, are meaningful
+         */
+        long[] postings() {
+            return this.postings;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// A search of every account's transactions, answered from the bank's TransactionIndex
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Each condition of a search has a list of candidate postings in the index: the time buckets it
+ * overlaps, the amount buckets it overlaps, the list for each of its memo words, or the list for
+ * its other account. The search only walks the shortest of them, and checks the rest of the
+ * conditions on each posting there, time and amount straight from the account's VersionLog
+ * without any lock while it still has them (it keeps the last few minutes), and otherwise, along
+ * with the memo and other account, from the transaction itself.
+ */
+public class TransactionSearch {
+    private final TransactionIndex index;
+
+    /**
+     * Only transactions at or after this time (epoch milliseconds) match
+     */
+    private long fromTime = Long.MIN_VALUE;
+
+    /**
+     * Only transactions before this time (epoch milliseconds) match
+     */
+    private long toTime = Long.MAX_VALUE;
+
+    /**
+     * Only transactions with at least this amount (in cents) match
+     */
+    private long minAmount = Long.MIN_VALUE;
+
+    /**
+     * Only transactions with at most this amount (in cents) match
+     */
+    private long maxAmount = Long.MAX_VALUE;
+
+    /**
+     * Only transactions whose memos have all of these words match
+     */
+    private final List<String> words = new ArrayList<String>();
+
+    /**
+     * Only legs of transfers with this account match, or null for any transaction
+     */
+    private String counterparty;
+
+    /**
+     * The number of candidates the last newest or count looked at
+     */
+    private int examined;
+
+    /**
+     * Create a search matching every transaction, through TransactionIndex.search
+     * @param index the index to search
+     */
+    TransactionSearch(TransactionIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Only match transactions in a time range
+     * @param from  the start of the range (inclusive), or null for no start
+     * @param to    the end of the range (exclusive), or null for no end
+     * @return      this search, for chaining
+     */
+    public TransactionSearch between(Date from, Date to) {
+        this.fromTime = from == null ? Long.MIN_VALUE : from.getTime();
+        this.toTime = to == null ? Long.MAX_VALUE : to.getTime();
+        return this;
+    }
+
+    /**
+     * Only match transactions in an amount range. Withdrawals have negative amounts
+     * @param min   the smallest amount to match (inclusive), in cents
+     * @param max   the largest amount to match (inclusive), in cents
+     * @return      this search, for chaining
+     */
+    public TransactionSearch amountBetween(long min, long max) {
+        this.minAmount = min;
+        this.maxAmount = max;
+        return this;
+    }
+
+    /**
+     * Only match transactions whose memos have every word of some text, in any case. Common
+     * words like "to" and "from" aren't indexed, so they're ignored
+     * @param text  the words
+     * @return      this search, for chaining
+     */
+    public TransactionSearch memoContains(String text) {
+        for (String word : TransactionIndex.words(text)) {
+            if (!this.words.contains(word)) {
+                this.words.add(word);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Only match legs of transfers to or from an account
+     * @param accountID the ID of the account on the other side
+     * @return          this search, for chaining
+     */
+    public TransactionSearch counterparty(String accountID) {
+        this.counterparty = accountID;
+        return this;
+    }
+
+    /**
+     * Get the newest matching transactions, across every account
+     * @param limit the most transactions to return
+     * @return      the transactions, newest first
+     */
+    public List<Transaction> newest(int limit) {
+        List<Match> matches = this.find();
+        matches.sort(Comparator.comparingLong((Match m) -> m.time).thenComparingLong(m -> m.posting).reversed());
+
+        List<Transaction> out = new ArrayList<Transaction>(Math.min(limit, matches.size()));
+        for (int i = 0; i < matches.size() && out.size() < limit; i++) {
+            Match m = matches.get(i);
+            out.add(m.transaction != null ? m.transaction : m.account.getTransaction(TransactionIndex.historyIndexOf(m.posting)));
+        }
+        return out;
+    }
+
+    /**
+     * Count the matching transactions, across every account
+     * @return the number of transactions
+     */
+    public int count() {
+        return this.find().size();
+    }
+
+    /**
+     * Get the number of candidates the last newest or count looked at, which is the size of the
+     * shortest list of them
+     * @return the number of candidates
+     */
+    int getExamined() {
+        return this.examined;
+    }
+
+    /**
+     * Walk the shortest list of candidates and keep the ones that meet every condition
+     */
+    private List<Match> find() {
+        List<Match> matches = new ArrayList<Match>();
+        this.examined = 0;
+        if (this.fromTime >= this.toTime || this.minAmount > this.maxAmount) {
+            return matches;
+        }
+
+        // find the condition with the fewest candidates; a word or account nothing has means nothing matches
+        List<TransactionIndex.PostingList> driver = null;
+        long driverSize = Long.MAX_VALUE;
+        int driverWord = -1;
+        boolean driverIsCounterparty = false;
+        for (int w = 0; w < this.words.size(); w++) {
+            TransactionIndex.PostingList list = this.index.withWord(this.words.get(w));
+            if (list == null) {
+                return matches;
+            }
+            if (list.size() < driverSize) {
+                driver = List.of(list);
+                driverSize = list.size();
+                driverWord = w;
+            }
+        }
+        if (this.counterparty != null) {
+            TransactionIndex.PostingList list = this.index.withCounterparty(this.counterparty);
+            if (list == null) {
+                return matches;
+            }
+            if (list.size() < driverSize) {
+                driver = List.of(list);
+                driverSize = list.size();
+                driverWord = -1;
+                driverIsCounterparty = true;
+            }
+        }
+        if (this.minAmount != Long.MIN_VALUE || this.maxAmount != Long.MAX_VALUE || driver == null) {
+            List<TransactionIndex.PostingList> lists = this.index.amountBuckets(this.minAmount, this.maxAmount);
+            long size = TransactionSearch.totalSize(lists);
+            if (size < driverSize) {
+                driver = lists;
+                driverSize = size;
+                driverWord = -1;
+                driverIsCounterparty = false;
+            }
+        }
+        if (this.fromTime != Long.MIN_VALUE || this.toTime != Long.MAX_VALUE) {
+            List<TransactionIndex.PostingList> lists = this.index.timeBuckets(this.fromTime, this.toTime - 1);
+            long size = TransactionSearch.totalSize(lists);
+            if (size < driverSize) {
+                driver = lists;
+                driverWord = -1;
+                driverIsCounterparty = false;
+            }
+        }
+
+        // the driver's own condition is met by every posting in it, so only check the others
+        List<String> wordsToCheck = new ArrayList<String>(this.words);
+        if (driverWord >= 0) {
+            wordsToCheck.remove(driverWord);
+        }
+        String counterpartyToCheck = driverIsCounterparty ? null : this.counterparty;
+
+        for (TransactionIndex.PostingList list : driver) {
+            int size = list.size(); // read the size before the postings, so every one below it is there
+            long[] postings = list.postings();
+            this.examined += size;
+            for (int i = 0; i < size; i++) {
+                long posting = postings[i];
+                Account acct = this.index.accountOf(posting);
+                int historyIndex = TransactionIndex.historyIndexOf(posting);
+
+                // time and amount come from the version log, without the account's lock, if it
+                // still has them, and otherwise from the transaction itself
+                VersionLog.Window log = acct.getVersionLog().window(historyIndex + 1);
+                Transaction t = null;
+                long time;
+                long amount;
+                if (historyIndex >= log.first()) {
+                    time = log.timeAt(historyIndex);
+                    amount = log.amountAt(historyIndex);
+                } else {
+                    t = acct.getTransaction(historyIndex);
+                    time = t.getTimestamp().getTime();
+                    amount = t.getAmount();
+                }
+                if (time < this.fromTime || time >= this.toTime || amount < this.minAmount || amount > this.maxAmount) {
+                    continue;
+                }
+
+                // memo words and the other account need the transaction itself
+                if (!wordsToCheck.isEmpty() || counterpartyToCheck != null) {
+                    if (t == null) {
+                        t = acct.getTransaction(historyIndex);
+                    }
+                    if (!TransactionIndex.words(t.getMemo()).containsAll(wordsToCheck)) {
+                        continue;
+                    }
+                    if (counterpartyToCheck != null) {
+                        Transaction other = t.getLinkedTransaction();
+                        if (other == null || !other.getAccount().getUUID().equals(counterpartyToCheck)) {
+                            continue;
+                        }
+                    }
+                }
+                matches.add(new Match(posting, acct, time, t));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Add up the sizes of some posting lists
+     */
+    private static long totalSize(List<TransactionIndex.PostingList> lists) {
+        long total = 0;
+        for (TransactionIndex.PostingList list : lists) {
+            total += list.size();
+        }
+        return total;
+    }
+
+    /**
+     * A posting that matched, with the transaction if it's already been fetched
+     */
+    private static final class Match {
+        private final long posting;
+        private final Account account;
+        private final long time;
+        private final Transaction transaction;
+
+        private Match(long posting, Account account, long time, Transaction transaction) {
+            this.posting = posting;
+            this.account = account;
+            this.time = time;
+            this.transaction = transaction;
+        }
+    }
+}
@@ -1,7 +1,7 @@
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.UUID;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class User {
     /**
@@ -20,14 +20,19 @@ public class User {
     private String uuid;
 
     /**
-     * The MD5 hash of the user's pin number
+     * The salted hash of the user's pin number
      */
-    private byte pinHash[]; // MD5 hash since we don't want to store the actual pin
+    private byte pinHash[]; // a hash since we don't want to store the actual pin
+
+    /**
+     * The verifier that made the pin hash and checks pins against it
+     */
+    private PinVerifier pinVerifier;
 
     /**
      * The list of accounts for this user
      */
-    private ArrayList<Account> accounts; // an arraylist a Java dynamic array
+    private List<Account> accounts; // copy-on-write, since accounts are rarely opened but read by every session
 
     /**
      * Create a new user
@@ -41,24 +46,38 @@ public class User {
         this.firstName = firstName;
         this.lastName = lastName;
 
-        // store the pin's MD5 hash, rather than the original value, for security reasons
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            this.pinHash = md.digest(pin.getBytes()); // taking the pin and grabbing its bytes, then digesting them into the MD5 algorithm
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("error, caught NoSuchAlgorithmException"); 
-            e.printStackTrace();
-            System.exit(1);
-        }
+        // store the pin's salted hash, rather than the original value, for security reasons
+        this.pinVerifier = theBank.getPinVerifier();
+        this.pinHash = this.pinVerifier.hash(pin);
 
         // get a new unique universal identifier for the user
         this.uuid = theBank.getNewUserUUID();
     
         // create empty list of accounts
-        this.accounts = new ArrayList<Account>();
+        this.accounts = new CopyOnWriteArrayList<Account>();
     
         // print log message
-        System.out.printf("New User %s, %s with ID %s created.\n", lastName, firstName, this.uuid); // [?] why do we use 'this' only for the uuid?
+        Log.info("New User {}, {} with ID {} created.", lastName, firstName, this.uuid); // [?] why do we use 'this' only for the uuid?
+    }
+
+    /**
+     * Recreate a user saved in a snapshot or journal, keeping their old ID and pin hash
+     * @param uuid      the user's ID
+     * @param firstName the user's first name
+     * @param lastName  the user's last name
+     * @param pinHash   the hash of the user's pin
+     * @param theBank   the Bank object that the user is a customer of
+     */
+    User(String uuid, String firstName, String lastName, byte[] pinHash, Bank theBank) {
+        this.uuid = uuid;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.pinHash = pinHash;
+        this.pinVerifier = theBank.getPinVerifier();
+        this.accounts = new CopyOnWriteArrayList<Account>();
+
+        // make sure the bank never hands this ID out again
+        theBank.claimUserUUID(uuid);
     }
 
     /**
@@ -83,16 +102,7 @@ public class User {
      * @return      whether the pin is valid or not
      */
     public boolean validatePIN(String aPIN) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            return MessageDigest.isEqual(md.digest(aPIN.getBytes()), this.pinHash); // returns a boolean value that says whether they're equal
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("error, caught NoSuchAlgorithmException"); 
-            e.printStackTrace();
-            System.exit(1);
-        }
-
-        return false;
+        return this.pinVerifier.matches(aPIN, this.pinHash);
     }
 
     /**
@@ -103,13 +113,31 @@ public class User {
         return this.firstName;
     }
 
+    /**
+     * Return the user's last name.
+     * @return the last name
+     */
+    public String getLastName() {
+        return this.lastName;
+    }
+
+    /**
+     * Get the hash of the user's pin, for saving the user to disk
+     * @return the pin hash
+     */
+    byte[] getPinHash() {
+        return this.pinHash;
+    }
+
     public void printAccountsSummary() {
-        System.out.printf("\n\n%s's accounts summary:\n", this.firstName);
+        // the accounts cache their summary lines, so a redraw with no changes just copies them
+        StringBuilder sb = new StringBuilder(64 * (this.accounts.size() + 1));
+        sb.append("\n\n").append(this.firstName).append("'s accounts summary:\n");
         for (int a = 0; a < this.accounts.size(); a++) {
-            System.out.printf("%d) %s\n", a+1, this.accounts.get(a).getSummaryLine());
+            sb.append(a + 1).append(") ").append(this.accounts.get(a).getSummaryLine()).append('\n');
         }
 
-        System.out.println();
+        System.out.println(sb);
     }
 
     /**
@@ -129,11 +157,39 @@ public class User {
     }
 
     /**
-     * Get the balance of a particular account
+     * Start a query over the transaction history of a particular account, newest first
      * @param accountIndex  the index of the account to use
-     * @return              the balance of the account
+     * @return              the query
      */
-    public double getAccountBalance(int accountIndex) {
+    public HistoryQuery acctHistory(int accountIndex) {
+        return this.accounts.get(accountIndex).history();
+    }
+
+    /**
+     * Get a particular account
+     * @param accountIndex  the index of the account
+     * @return              the account
+     */
+    public Account getAccount(int accountIndex) {
+        return this.accounts.get(accountIndex);
+    }
+
+    /**
+     * Bring the newest history of each of the user's accounts into memory, if it's been written out to disk
+     */
+    void prefetchAccounts() {
+        for (int a = 0; a < this.accounts.size(); a++) {
+            this.accounts.get(a).prefetch();
+        }
+    }
+
+    /**
+     * Get the balance of a particular account. Balances always stay in memory, even with tiered
+     * storage, so this never waits for the disk
+     * @param accountIndex  the index of the account to use
+     * @return              the balance of the account, in cents
+     */
+    public long getAccountBalance(int accountIndex) {
         return this.accounts.get(accountIndex).getBalance();
     }
 
@@ -146,16 +202,58 @@ public class User {
         return this.accounts.get(accountIndex).getUUID();
     }
 
+    /**
+     * Get the summary line of a particular account
+     * @param accountIndex  the index of the account to use
+     * @return              the account's summary line
+     */
+    public String getAccountSummaryLine(int accountIndex) {
+        return this.accounts.get(accountIndex).getSummaryLine();
+    }
+
+    /**
+     * Get the summary line of a particular account as UTF-8 bytes, to put straight into an output buffer
+     * @param accountIndex  the index of the account to use
+     * @return              a read-only buffer of the bytes
+     */
+    public ByteBuffer getAccountSummaryBytes(int accountIndex) {
+        return this.accounts.get(accountIndex).getSummaryBytes();
+    }
+
     /**
      * Add a transaction to a particular account
      * @param accountIndex  the index of the account
-     * @param amount        the amount of the transaction
+     * @param amount        the amount of the transaction, in cents
      * @param memo          the memo of the transaction
      */
-    public void addAcctTransaction(int accountIndex, double amount, String memo) {
+    public void addAcctTransaction(int accountIndex, long amount, String memo) {
         // for simplicity, we'll assume that there's always going to be a memo
 
-        System.out.printf("\n=====DEBUGGING START WITHIN USER.JAVA=====\naccountIndex: %s\namount: %f\nmemo: %s\n====DEBUGGING END=====\n", accountIndex, amount, memo); // for debugging
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("User {} adding {} to account index {}: \"{}\"", this.uuid, Money.format(amount), accountIndex, memo);
+        }
         this.accounts.get(accountIndex).addTransaction(amount, memo);
     }
+
+    /**
+     * Withdraw money from a particular account, unless it would overdraw the account or break its withdrawal limits
+     * @param accountIndex  the index of the account
+     * @param amount        the amount to withdraw, in cents
+     * @param memo          the memo of the transaction
+     * @return              OK if the withdrawal went through, otherwise why it was refused
+     */
+    public Account.WithdrawResult withdrawFromAcct(int accountIndex, long amount, String memo) {
+        return this.accounts.get(accountIndex).withdraw(amount, memo);
+    }
+
+    /**
+     * Transfer money between two of the user's accounts, unless it would overdraw the from account
+     * @param fromIndex the index of the account to transfer from
+     * @param toIndex   the index of the account to transfer to
+     * @param amount    the amount to transfer, in cents
+     * @return          whether the transfer went through
+     */
+    public boolean transferBetweenAccts(int fromIndex, int toIndex, long amount) {
+        return Account.transfer(this.accounts.get(fromIndex), this.accounts.get(toIndex), amount) != null;
+    }
 }
\ No newline at end of file
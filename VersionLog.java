@@ -0,0 +1,239 @@
+// Every committed version of one account's balance, readable without the account's lock
+
+import java.util.Arrays;
+
+/**
+ * One entry per transaction: the bank version it was committed at, its time, and the balance
+ * after it. The account appends entries while holding its lock. Readers don't take the lock:
+ * they read the published size first and then only look at entries below it, which are never
+ * changed again. When the arrays grow, the new, bigger copies are published as a whole, so a
+ * reader always sees a complete set of arrays at least as long as the size it read.
+ * <p>
+ * The history already holds every transaction's time and amount, so the log doesn't keep them
+ * all a second time: it only keeps the entries from the last few minutes (and always a few of the
+ * newest), which is what BankViews need. The older ones are dropped when the arrays fill up, and
+ * anything that needs them reads the account's history instead.
+ */
+public class VersionLog {
+    /**
+     * The fewest entries the log keeps, however old they are
+     */
+    private static final int MIN_RETAINED = 4;
+
+    /**
+     * The arrays, replaced together whenever they grow or drop old entries, with where they start
+     */
+    private static final class Columns {
+        private final long[] versions;
+        private final long[] times;
+        private final long[] balances;
+
+        /**
+         * The index of the first entry in the arrays; the ones before it have been dropped
+         */
+        private final int base;
+
+        /**
+         * The version and balance of the entry just before base, or 0 if nothing's been dropped
+         */
+        private final long baseVersion;
+        private final long baseBalance;
+
+        private Columns(long[] versions, long[] times, long[] balances, int base, long baseVersion, long baseBalance) {
+            this.versions = versions;
+            this.times = times;
+            this.balances = balances;
+            this.base = base;
+            this.baseVersion = baseVersion;
+            this.baseBalance = baseBalance;
+        }
+    }
+
+    private volatile Columns columns = new Columns(new long[8], new long[8], new long[8], 0, 0, 0);
+
+    /**
+     * The number of entries published so far; written after the entry itself, so a reader that
+     * sees it also sees every entry below it
+     */
+    private volatile int size;
+
+    /**
+     * How long entries are kept, in milliseconds, or Long.MAX_VALUE to keep them all
+     */
+    private final long retainMillis;
+
+    /**
+     * Create an empty log
+     * @param retainMillis  how long to keep entries, in milliseconds, or Long.MAX_VALUE to keep them all
+     */
+    VersionLog(long retainMillis) {
+        this.retainMillis = retainMillis;
+    }
+
+    /**
+     * Add an entry. Only one thread may append at a time (the account's lock sees to that)
+     * @param version   the bank version the transaction was committed at
+     * @param time      the time of the transaction, in epoch milliseconds
+     * @param balance   the balance after the transaction, in cents
+     */
+    void append(long version, long time, long balance) {
+        int n = this.size;
+        Columns c = this.columns;
+        if (n - c.base == c.versions.length) {
+            c = this.compact(c, n, time);
+            this.columns = c;
+        }
+
+        int i = n - c.base;
+        c.versions[i] = version;
+        c.times[i] = time;
+        c.balances[i] = balance;
+        this.size = n + 1; // publish it
+    }
+
+    /**
+     * Make room in full arrays, by dropping entries older than the retention time if there are
+     * enough of them, and otherwise by growing the arrays by half, like ArrayList does
+     */
+    private Columns compact(Columns c, int n, long now) {
+        int cut = c.base;
+        if (this.retainMillis != Long.MAX_VALUE) {
+            long cutoff = now - this.retainMillis;
+            while (cut < n - MIN_RETAINED && c.times[cut - c.base] < cutoff) {
+                cut++;
+            }
+        }
+
+        int keep = n - cut;
+        int capacity = keep * 2 <= c.versions.length ? c.versions.length : keep + (keep >> 1);
+        int from = cut - c.base;
+        long baseVersion = cut == c.base ? c.baseVersion : c.versions[from - 1];
+        long baseBalance = cut == c.base ? c.baseBalance : c.balances[from - 1];
+        return new Columns(Arrays.copyOfRange(c.versions, from, from + capacity), Arrays.copyOfRange(c.times, from, from + capacity),
+                Arrays.copyOfRange(c.balances, from, from + capacity), cut, baseVersion, baseBalance);
+    }
+
+    /**
+     * Get the number of entries published so far
+     * @return the number of entries
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the entries below a size, to read together. The size must have been read (from size(),
+     * or under the account's lock) before calling this
+     * @param size  the number of entries
+     * @return      the entries
+     */
+    Window window(int size) {
+        while (true) {
+            Columns c = this.columns;
+            if (size >= c.base) {
+                return new Window(c, size);
+            }
+            // more entries were dropped since the size was read, so read a newer one; the entries
+            // below it are all in arrays published after it
+            size = this.size;
+        }
+    }
+
+
+    /**
+     * The entries below a size, read all from the same arrays
+     */
+    static final class Window {
+        private final Columns columns;
+        private final int size;
+
+        private Window(Columns columns, int size) {
+            this.columns = columns;
+            this.size = size;
+        }
+
+        /**
+         * Get the number of entries
+         * @return the number of entries
+         */
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * Get the index of the oldest entry that hasn't been dropped
+         * @return the index, 0 if nothing's been dropped
+         */
+        int first() {
+            return this.columns.base;
+        }
+
+        /**
+         * Count the entries committed at or before a version. Versions only go up, so this walks back
+         * from the end past the few entries committed since
+         * @param version   the version
+         * @return          the number of entries at or before the version
+         * @throws IllegalStateException if entries newer than the version have been dropped
+         */
+        int countAsOf(long version) {
+            Columns c = this.columns;
+            int n = this.size;
+            while (n > c.base && c.versions[n - 1 - c.base] > version) {
+                n--;
+            }
+            if (n == c.base && c.baseVersion > version) {
+                throw new IllegalStateException("Version " + version + " is older than the account's version log keeps");
+            }
+            return n;
+        }
+
+        /**
+         * Count the entries before a time, with a binary search. Assumes times were appended in order
+         * @param time  the time, in epoch milliseconds (exclusive)
+         * @param count the number of entries to look at
+         * @return      the number of entries before the time, or -1 if that depends on entries that have been dropped
+         */
+        int countBefore(long time, int count) {
+            Columns c = this.columns;
+            int lo = c.base;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (c.times[mid - c.base] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo == c.base && c.base > 0 ? -1 : lo;
+        }
+
+        /**
+         * Get the balance after some number of entries
+         * @param count the number of entries, at least first()
+         * @return      the balance after them, in cents (0 before the first)
+         */
+        long balanceAfter(int count) {
+            Columns c = this.columns;
+            return count == c.base ? c.baseBalance : c.balances[count - 1 - c.base];
+        }
+
+        /**
+         * Get the time of an entry's transaction
+         * @param index the index of the entry, at least first()
+         * @return      the time, in epoch milliseconds
+         */
+        long timeAt(int index) {
+            return this.columns.times[index - this.columns.base];
+        }
+
+        /**
+         * Get the amount of an entry's transaction, from the balances before and after it
+         * @param index the index of the entry, at least first()
+         * @return      the amount, in cents
+         */
+        long amountAt(int index) {
+            return this.balanceAfter(index + 1) - this.balanceAfter(index);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+// How much and how often money can be withdrawn from an account
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Three independent limits, any of which can be turned off:
+ * <ul>
+ *   <li>a daily limit on the total withdrawn per calendar day;</li>
+ *   <li>a limit on the total withdrawn in any sliding window, like $500 an hour;</li>
+ *   <li>a velocity limit on the number of withdrawals in a sliding window, like 3 in 10 minutes.</li>
+ * </ul>
+ * The limits themselves are immutable and can be shared by many accounts. Each account keeps its
+ * own Usage, which answers every check in O(1) without looking at the account's history. Cash
+ * withdrawals, batch withdrawals and transfers to other customers' accounts all count against
+ * the limits; transfers between a customer's own accounts don't.
+ */
+public class WithdrawalLimits {
+    /**
+     * No limits at all
+     */
+    public static final WithdrawalLimits NONE = new WithdrawalLimits(Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), Integer.MAX_VALUE, TimeUnit.MINUTES.toMillis(1), ZoneId.systemDefault());
+
+    /**
+     * The number of buckets the amount window is tracked in
+     */
+    private static final int WINDOW_BUCKETS = 16;
+
+    private final long dailyLimit;
+    private final long windowLimit;
+    private final long windowMillis;
+    private final int maxWithdrawals;
+    private final long velocityMillis;
+    private final ZoneId zone;
+
+    /**
+     * Create a set of limits
+     * @param dailyLimit        the most that can be withdrawn per calendar day, in cents (Long.MAX_VALUE for no limit)
+     * @param windowLimit       the most that can be withdrawn in any window, in cents (Long.MAX_VALUE for no limit)
+     * @param windowMillis      the length of that window, in milliseconds
+     * @param maxWithdrawals    the most withdrawals allowed in any velocity window (Integer.MAX_VALUE for no limit)
+     * @param velocityMillis    the length of the velocity window, in milliseconds
+     * @param zone              the time zone whose midnight starts a new day
+     */
+    public WithdrawalLimits(long dailyLimit, long windowLimit, long windowMillis, int maxWithdrawals, long velocityMillis, ZoneId zone) {
+        if (dailyLimit < 0 || windowLimit < 0 || maxWithdrawals < 0) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        if (windowMillis < WINDOW_BUCKETS || velocityMillis < 1) {
+            throw new IllegalArgumentException("Windows are too short");
+        }
+        this.dailyLimit = dailyLimit;
+        this.windowLimit = windowLimit;
+        this.windowMillis = windowMillis;
+        this.maxWithdrawals = maxWithdrawals;
+        this.velocityMillis = velocityMillis;
+        this.zone = zone;
+    }
+
+    public long getDailyLimit() {
+        return this.dailyLimit;
+    }
+
+    public long getWindowLimit() {
+        return this.windowLimit;
+    }
+
+    public long getWindowMillis() {
+        return this.windowMillis;
+    }
+
+    public int getMaxWithdrawals() {
+        return this.maxWithdrawals;
+    }
+
+    public long getVelocityMillis() {
+        return this.velocityMillis;
+    }
+
+    /**
+     * Read limits from system properties, any of which can be left out for no limit:
+     * <pre>
+     *   -Datm.withdraw.daily=1000.00        at most $1000 a day
+     *   -Datm.withdraw.window=500.00/60     at most $500 in any 60 minutes
+     *   -Datm.withdraw.velocity=3/10        at most 3 withdrawals in any 10 minutes
+     * </pre>
+     * @return the limits, or NONE if none of the properties are set
+     */
+    public static WithdrawalLimits fromProperties() {
+        String daily = System.getProperty("atm.withdraw.daily");
+        String window = System.getProperty("atm.withdraw.window");
+        String velocity = System.getProperty("atm.withdraw.velocity");
+        if (daily == null && window == null && velocity == null) {
+            return NONE;
+        }
+
+        long dailyLimit = daily == null ? Long.MAX_VALUE : Money.parse(daily.trim());
+        long windowLimit = Long.MAX_VALUE;
+        long windowMillis = NONE.windowMillis;
+        if (window != null) {
+            String[] parts = WithdrawalLimits.splitRate("atm.withdraw.window", window);
+            windowLimit = Money.parse(parts[0]);
+            windowMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(parts[1]));
+        }
+        int maxWithdrawals = Integer.MAX_VALUE;
+        long velocityMillis = NONE.velocityMillis;
+        if (velocity != null) {
+            String[] parts = WithdrawalLimits.splitRate("atm.withdraw.velocity", velocity);
+            maxWithdrawals = Integer.parseInt(parts[0]);
+            velocityMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(parts[1]));
+        }
+        return new WithdrawalLimits(dailyLimit, windowLimit, windowMillis, maxWithdrawals, velocityMillis, ZoneId.systemDefault());
+    }
+
+    /**
+     * Split a property like "500.00/60" into what comes before and after the slash
+     */
+    private static String[] splitRate(String property, String value) {
+        int slash = value.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException(property + " must look like <limit>/<minutes>, not " + value);
+        }
+        return new String[] {value.substring(0, slash).trim(), value.substring(slash + 1).trim()};
+    }
+
+    /**
+     * Start tracking one account's withdrawals against these limits
+     * @return the account's usage, with nothing withdrawn yet
+     */
+    public Usage newUsage() {
+        return new Usage(this);
+    }
+
+    /**
+     * What one account has withdrawn recently. Not thread-safe; the account uses it under its lock
+     */
+    public static class Usage {
+        private final WithdrawalLimits limits;
+
+        /**
+         * The current calendar day's start and end in epoch milliseconds, and the total withdrawn in it
+         */
+        private long dayStart = 1;
+        private long dayEnd = 0;
+        private long dayTotal;
+
+        /**
+         * The total withdrawn in the sliding window; null if there's no window limit
+         */
+        private final RollingCounter window;
+
+        /**
+         * The times of the most recent withdrawals, as a ring of maxWithdrawals entries, oldest at
+         * next; null if there's no velocity limit
+         */
+        private final long[] recent;
+        private int next;
+        private int count;
+
+        private Usage(WithdrawalLimits limits) {
+            this.limits = limits;
+            this.window = limits.windowLimit == Long.MAX_VALUE ? null : new RollingCounter(limits.windowMillis, WINDOW_BUCKETS);
+            this.recent = limits.maxWithdrawals == Integer.MAX_VALUE ? null : new long[limits.maxWithdrawals];
+        }
+
+        /**
+         * Get the limits this usage is tracked against
+         * @return the limits
+         */
+        public WithdrawalLimits getLimits() {
+            return this.limits;
+        }
+
+        /**
+         * Check whether a withdrawal would break any of the limits
+         * @param now       the current time, in epoch milliseconds
+         * @param amount    the amount to withdraw, in cents
+         * @return          OK, or which limit it would break
+         */
+        public Account.WithdrawResult check(long now, long amount) {
+            this.rollDay(now);
+            if (amount > this.limits.dailyLimit - this.dayTotal) {
+                return Account.WithdrawResult.DAILY_LIMIT;
+            }
+            if (this.window != null && amount > this.limits.windowLimit - this.window.get(now)) {
+                return Account.WithdrawResult.WINDOW_LIMIT;
+            }
+            if (this.recent != null) {
+                // the ring is full of withdrawals, and even the oldest of them is still inside the window
+                if (this.recent.length == 0 || (this.count == this.recent.length && now - this.recent[this.next] < this.limits.velocityMillis)) {
+                    return Account.WithdrawResult.TOO_MANY_WITHDRAWALS;
+                }
+            }
+            return Account.WithdrawResult.OK;
+        }
+
+        /**
+         * Count a withdrawal that went through
+         * @param now       the current time, in epoch milliseconds
+         * @param amount    the amount withdrawn, in cents
+         */
+        public void record(long now, long amount) {
+            this.rollDay(now);
+            this.dayTotal += amount;
+            if (this.window != null) {
+                this.window.add(now, amount);
+            }
+            if (this.recent != null && this.recent.length > 0) {
+                this.recent[this.next] = now;
+                this.next = (this.next + 1) % this.recent.length;
+                this.count = Math.min(this.count + 1, this.recent.length);
+            }
+        }
+
+        /**
+         * Start a fresh daily total once the day has changed
+         */
+        private void rollDay(long now) {
+            if (now >= this.dayStart && now < this.dayEnd) {
+                return;
+            }
+            ZonedDateTime day = Instant.ofEpochMilli(now).atZone(this.limits.zone).truncatedTo(ChronoUnit.DAYS);
+            this.dayStart = day.toInstant().toEpochMilli();
+            this.dayEnd = day.plusDays(1).toInstant().toEpochMilli();
+            this.dayTotal = 0;
+        }
+    }
+}
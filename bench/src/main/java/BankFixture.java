@@ -0,0 +1,105 @@
+// A bank filled with users and history for the benchmarks in atm.bench to run against
+
+import atm.bench.Fixture;
+
+public class BankFixture implements Fixture {
+    /**
+     * The pin every benchmark user has
+     */
+    private static final String PIN = "1234";
+
+    private final Bank bank;
+
+    /**
+     * The IDs of the users, in the order they were created
+     */
+    private final String[] userIDs;
+
+    /**
+     * Every account: each user's savings account followed by their checking account
+     */
+    private final Account[] accounts;
+
+    /**
+     * Where each operation's round robin over the users or accounts is up to
+     */
+    private int nextUser;
+    private int nextAccount;
+    private long transfers;
+
+    /**
+     * Create a bank to benchmark
+     * @param users         the number of users, each with a savings and a checking account
+     * @param historyDepth  the number of transactions already in each account
+     */
+    public BankFixture(int users, int historyDepth) {
+        // don't log thousands of new users while setting up
+        Log.setLevel(Log.Level.OFF);
+
+        this.bank = new Bank("Benchmark Bank");
+        this.userIDs = new String[users];
+        this.accounts = new Account[users * 2];
+
+        for (int u = 0; u < users; u++) {
+            User aUser = this.bank.addUser("First" + u, "Last" + u, PIN);
+            Account checking = new Account("Checking", aUser, this.bank);
+            aUser.addAccount(checking);
+            this.bank.addAccount(checking);
+
+            this.userIDs[u] = aUser.getUUID();
+            this.accounts[u * 2] = this.bank.findAccount(aUser.getAccountUUID(0));
+            this.accounts[u * 2 + 1] = checking;
+        }
+
+        // fill in the history, leaving every account with plenty of money to transfer
+        for (Account acct : this.accounts) {
+            acct.addTransaction(Money.ofDollars(1000000), "Opening deposit");
+            for (int t = 1; t < historyDepth; t++) {
+                acct.addTransaction(t % 2 == 0 ? 2500 : -1000, t % 2 == 0 ? "Deposit" : "Withdrawal");
+            }
+        }
+    }
+
+    @Override
+    public Object login() {
+        String userID = this.userIDs[this.nextUser];
+        this.nextUser = this.nextUser + 1 == this.userIDs.length ? 0 : this.nextUser + 1;
+        return this.bank.userLogin(userID, PIN);
+    }
+
+    @Override
+    public String newAccountUUID() {
+        return this.bank.getNewAccountUUID();
+    }
+
+    @Override
+    public long getBalance() {
+        return this.nextAccount().getBalance();
+    }
+
+    @Override
+    public Object addTransaction() {
+        return this.nextAccount().addTransaction(100, "Benchmark deposit");
+    }
+
+    @Override
+    public String getSummaryLine() {
+        return this.nextAccount().getSummaryLine();
+    }
+
+    @Override
+    public Object transfer() {
+        // go back and forth between a user's savings and checking, so neither account runs dry
+        int u = (int) ((this.transfers >> 1) % this.userIDs.length);
+        Account savings = this.accounts[u * 2];
+        Account checking = this.accounts[u * 2 + 1];
+        boolean back = (this.transfers++ & 1) == 1;
+        return back ? Account.transfer(checking, savings, 100) : Account.transfer(savings, checking, 100);
+    }
+
+    private Account nextAccount() {
+        Account acct = this.accounts[this.nextAccount];
+        this.nextAccount = this.nextAccount + 1 == this.accounts.length ? 0 : this.nextAccount + 1;
+        return acct;
+    }
+}
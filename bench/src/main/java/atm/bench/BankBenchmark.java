@@ -0,0 +1,78 @@
+package atm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average time of the bank's hot paths, for every combination of bank size and history depth.
+ * The bank is rebuilt before each iteration, so operations that add transactions or use up IDs
+ * don't make later iterations measure a bigger bank than earlier ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Thread)
+public class BankBenchmark {
+    /**
+     * The number of users, each with a savings and a checking account
+     */
+    @Param({"100", "10000"})
+    public int users;
+
+    /**
+     * The number of transactions already in each account
+     */
+    @Param({"10", "100"})
+    public int history;
+
+    private Fixture fixture;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.fixture = Fixture.create(this.users, this.history);
+    }
+
+    @Benchmark
+    public Object login() {
+        return this.fixture.login();
+    }
+
+    @Benchmark
+    public String newAccountUUID() {
+        return this.fixture.newAccountUUID();
+    }
+
+    @Benchmark
+    public long getBalance() {
+        return this.fixture.getBalance();
+    }
+
+    @Benchmark
+    public Object addTransaction() {
+        return this.fixture.addTransaction();
+    }
+
+    @Benchmark
+    public String getSummaryLine() {
+        return this.fixture.getSummaryLine();
+    }
+
+    @Benchmark
+    public Object transfer() {
+        return this.fixture.transfer();
+    }
+}
@@ -0,0 +1,59 @@
+package atm.bench;
+
+/**
+ * The bank operations the benchmarks measure. The bank's classes are all in the default package,
+ * which a named package can't import and JMH won't generate benchmarks in, so the benchmarks reach
+ * them through this interface, implemented by BankFixture in the default package. Every call goes
+ * to the one implementation, so the JIT inlines it and it adds nothing to the measurements.
+ */
+public interface Fixture {
+    /**
+     * Log in as the next user, with the right pin
+     * @return the user
+     */
+    Object login();
+
+    /**
+     * Generate a new account ID
+     * @return the account ID
+     */
+    String newAccountUUID();
+
+    /**
+     * Read the balance of the next account
+     * @return the balance, in cents
+     */
+    long getBalance();
+
+    /**
+     * Deposit to the next account
+     * @return the new transaction
+     */
+    Object addTransaction();
+
+    /**
+     * Build the summary line of the next account
+     * @return the summary line
+     */
+    String getSummaryLine();
+
+    /**
+     * Transfer between the two accounts of the next user
+     * @return the withdrawal leg of the transfer
+     */
+    Object transfer();
+
+    /**
+     * Create a fresh bank to benchmark
+     * @param users         the number of users, each with a savings and a checking account
+     * @param historyDepth  the number of transactions already in each account
+     * @return              the fixture
+     */
+    static Fixture create(int users, int historyDepth) {
+        try {
+            return (Fixture) Class.forName("BankFixture").getConstructor(int.class, int.class).newInstance(users, historyDepth);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Couldn't create BankFixture", e);
+        }
+    }
+}
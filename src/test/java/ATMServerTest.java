@@ -0,0 +1,189 @@
+// Terminals talk to the bank over the line protocol, many at once, each getting its own answers in order
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ATMServerTest {
+    private Bank bank;
+    private ATMServer server;
+    private Thread serverThread;
+
+    /**
+     * One connected terminal
+     */
+    private final class Terminal implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Terminal() throws IOException {
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), ATMServerTest.this.server.getPort());
+            this.socket.setSoTimeout(10000);
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = this.socket.getOutputStream();
+            assertTrue(this.in.readLine().startsWith("OK Welcome"));
+        }
+
+        void send(String line) throws IOException {
+            this.out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            this.out.flush();
+        }
+
+        /**
+         * Read one response: its data lines, then the OK or ERR line last
+         */
+        List<String> response() throws IOException {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            do {
+                line = this.in.readLine();
+                lines.add(line);
+            } while (line != null && !line.startsWith("OK") && !line.startsWith("ERR"));
+            return lines;
+        }
+
+        /**
+         * Send a command and get the last line of its response
+         */
+        String command(String line) throws IOException {
+            this.send(line);
+            List<String> response = this.response();
+            return response.get(response.size() - 1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        this.bank = new Bank("Test");
+        this.server = new ATMServer(this.bank, 0, 4);
+        this.serverThread = new Thread(() -> {
+            try {
+                this.server.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        this.serverThread.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        this.server.close();
+        this.serverThread.join();
+    }
+
+    @Test
+    void servesTheMenu() throws IOException {
+        User u = this.bank.addUser("Alice", "Test", "1234");
+        try (Terminal t = new Terminal()) {
+            assertEquals("ERR Please LOGIN first", t.command("SUMMARY"));
+            assertEquals("ERR Incorrect user ID/pin combination", t.command("LOGIN " + u.getUUID() + " 0000"));
+            assertEquals("OK Welcome Alice", t.command("LOGIN " + u.getUUID() + " 1234"));
+
+            assertEquals("OK $100.00", t.command("DEPOSIT 1 100 Birthday money"));
+            assertEquals("OK $87.50", t.command("WITHDRAW 1 12.50"));
+            assertEquals("ERR Insufficient funds", t.command("WITHDRAW 1 1000"));
+            assertEquals("ERR Invalid account. Please choose 1-1", t.command("DEPOSIT 2 1"));
+            assertTrue(t.command("DEPOSIT 1 abc").startsWith("ERR Not a dollar amount"));
+
+            t.send("HISTORY 1");
+            List<String> history = t.response();
+            assertEquals(3, history.size());
+            assertTrue(history.get(1).contains("Birthday money"));
+            assertEquals("OK", history.get(2));
+
+            t.send("SUMMARY");
+            List<String> summary = t.response();
+            assertEquals(2, summary.size());
+            assertTrue(summary.get(0).contains(u.getAccountUUID(0)));
+            assertTrue(summary.get(0).contains("$87.50"));
+
+            assertEquals("ERR Unknown command, try HELP", t.command("BALANCE"));
+            assertEquals("OK Goodbye", t.command("QUIT"));
+        }
+        assertEquals(8750, u.getAccountBalance(0));
+    }
+
+    @Test
+    void pipelinedCommandsAreAnsweredInOrder() throws IOException {
+        User u = this.bank.addUser("Alice", "Test", "1234");
+        try (Terminal t = new Terminal()) {
+            // everything sent at once, before reading any of the answers
+            StringBuilder all = new StringBuilder("LOGIN " + u.getUUID() + " 1234");
+            for (int i = 1; i <= 200; i++) {
+                all.append("\nDEPOSIT 1 0.01");
+            }
+            t.send(all.toString());
+
+            assertEquals("OK Welcome Alice", t.response().get(0));
+            for (int i = 1; i <= 200; i++) {
+                assertEquals("OK " + Money.format(i), t.response().get(0));
+            }
+        }
+    }
+
+    @Test
+    void servesManyTerminalsAtOnce() throws Exception {
+        User u = this.bank.addUser("Alice", "Test", "1234");
+        Thread[] clients = new Thread[16];
+        List<Throwable> failures = new ArrayList<Throwable>();
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new Thread(() -> {
+                try (Terminal t = new Terminal()) {
+                    assertEquals("OK Welcome Alice", t.command("LOGIN " + u.getUUID() + " 1234"));
+                    for (int i = 0; i < 50; i++) {
+                        assertTrue(t.command("DEPOSIT 1 1").startsWith("OK"));
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread c : clients) {
+            c.join();
+        }
+        assertTrue(failures.isEmpty(), failures.toString());
+        assertEquals(16 * 50 * 100, u.getAccountBalance(0));
+    }
+
+    @Test
+    void disconnectsTerminalSendingTooLongALine() throws IOException {
+        try (Terminal t = new Terminal()) {
+            t.send("HELP " + "x".repeat(4096));
+            try {
+                assertNull(t.in.readLine());
+            } catch (SocketException e) {
+                // the rest of the line was never read, so the close may come as a reset instead
+            }
+        }
+
+        // and keeps serving everyone else
+        try (Terminal t = new Terminal()) {
+            assertEquals("OK", t.command("LOGOUT"));
+        }
+    }
+}
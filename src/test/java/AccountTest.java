@@ -0,0 +1,88 @@
+// An account's running balance always agrees with its history
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class AccountTest {
+    @AfterEach
+    void auditModeOff() {
+        Account.setAuditMode(false);
+    }
+
+    @Test
+    void runningBalanceFollowsDepositsAndWithdrawals() {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+
+        acct.addTransaction(10000, "Deposit");
+        assertEquals(Account.WithdrawResult.OK, acct.withdraw(2500, "Cash"));
+        assertEquals(7500, acct.getBalance());
+
+        // a refused withdrawal leaves no trace
+        assertEquals(Account.WithdrawResult.INSUFFICIENT_FUNDS, acct.withdraw(7501, "Cash"));
+        assertEquals(7500, acct.getBalance());
+        assertEquals(2, acct.numTransactions());
+
+        // and the whole of it can still be taken out
+        assertEquals(Account.WithdrawResult.OK, acct.withdraw(7500, "Cash"));
+        assertEquals(0, acct.getBalance());
+        assertEquals(0, acct.replayBalance());
+    }
+
+    @Test
+    void auditModeChecksTheBalanceAgainstTheHistory() {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        Random rnd = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            if (rnd.nextBoolean()) {
+                acct.addTransaction(1 + rnd.nextInt(1000), "Deposit");
+            } else {
+                acct.withdraw(1 + rnd.nextInt(1000), "Cash");
+            }
+        }
+        long balance = acct.getBalance();
+
+        // the audit replays the history on every read, and finds the same answer
+        Account.setAuditMode(true);
+        assertEquals(balance, acct.getBalance());
+        assertEquals(balance, acct.replayBalance());
+    }
+
+    @Test
+    void summaryLineIsCachedUntilTheBalanceChanges() {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.addTransaction(1250, "Deposit");
+
+        String line = acct.getSummaryLine();
+        assertEquals(acct.getUUID() + " : $12.50 : Savings", line);
+        assertSame(line, acct.getSummaryLine());
+
+        // the bytes are the same line, and reading them doesn't use them up for the next reader
+        ByteBuffer bytes = acct.getSummaryBytes();
+        byte[] read = new byte[bytes.remaining()];
+        bytes.get(read);
+        assertEquals(line, new String(read, StandardCharsets.UTF_8));
+        assertEquals(read.length, acct.getSummaryBytes().remaining());
+
+        // a refused withdrawal changes nothing, so the line stays cached
+        acct.withdraw(5000, "Cash");
+        assertSame(line, acct.getSummaryLine());
+
+        // any change that goes through renders it again
+        acct.withdraw(250, "Cash");
+        String after = acct.getSummaryLine();
+        assertNotSame(line, after);
+        assertEquals(acct.getUUID() + " : $10.00 : Savings", after);
+        assertEquals(after.length(), acct.getSummaryBytes().remaining());
+    }
+}
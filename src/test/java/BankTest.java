@@ -0,0 +1,58 @@
+// Users and accounts are found by their IDs, however many of them the bank has
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class BankTest {
+    @Test
+    void findsEveryUserAndAccountById() {
+        Bank theBank = new Bank("Test");
+        List<User> users = new ArrayList<User>();
+        for (int i = 0; i < 500; i++) {
+            users.add(theBank.addUser("Customer" + i, "Test", "1234"));
+        }
+        assertEquals(500, theBank.numUsers());
+        assertEquals(500, theBank.numAccounts());
+
+        Set<String> ids = new HashSet<String>();
+        for (User u : users) {
+            assertSame(u, theBank.findUser(u.getUUID()));
+            assertSame(u.getAccount(0), theBank.findAccount(u.getAccountUUID(0)));
+            assertEquals(Bank.USER_ID_LENGTH, u.getUUID().length());
+            assertEquals(Bank.ACCOUNT_ID_LENGTH, u.getAccountUUID(0).length());
+            ids.add(u.getUUID());
+        }
+        assertEquals(500, ids.size());
+    }
+
+    @Test
+    void unknownIdsFindNothing() {
+        Bank theBank = new Bank("Test");
+        User u = theBank.addUser("Alice", "Test", "1234");
+
+        assertNull(theBank.findUser("nobody"));
+        assertNull(theBank.findAccount("nothing"));
+
+        // a user ID isn't an account ID, or the other way round
+        assertNull(theBank.findAccount(u.getUUID()));
+        assertNull(theBank.findUser(u.getAccountUUID(0)));
+    }
+
+    @Test
+    void logsInByIdAndPin() {
+        Bank theBank = new Bank("Test");
+        User u = theBank.addUser("Alice", "Test", "1234");
+
+        assertSame(u, theBank.userLogin(u.getUUID(), "1234"));
+        assertNull(theBank.userLogin(u.getUUID(), "4321"));
+        assertNull(theBank.userLogin("nobody", "1234"));
+    }
+}
@@ -0,0 +1,132 @@
+// A BankView agrees with itself however much the bank changes while it's being read
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BankViewTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void balancesAtPastTimes() {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.replayTransaction(1, 1000, 5000, "Deposit");
+        acct.replayTransaction(2, 2000, -1500, "Cash");
+        acct.replayTransaction(3, 3000, 250, "Deposit");
+
+        BankView view = theBank.openView();
+        assertEquals(0, view.getBalanceAt(acct, 999));
+        assertEquals(5000, view.getBalanceAt(acct, 1000));
+        assertEquals(3500, view.getBalanceAt(acct, 2999));
+        assertEquals(3750, view.getBalanceAt(acct, Long.MAX_VALUE));
+        assertEquals(3500, view.getTotalBalanceAt(2000));
+
+        // a transaction after the view was opened doesn't show, whatever the time asked about
+        acct.addTransaction(100, "Deposit");
+        assertEquals(3750, view.getBalanceAt(acct, Long.MAX_VALUE));
+    }
+
+    @Test
+    void refusesTimesBeforeTheSnapshotItWasRecoveredFrom() throws IOException {
+        Path snapshot = this.dir.resolve("atm.snapshot");
+        Path journal = this.dir.resolve("atm.journal");
+        Bank theBank = Snapshot.recover("Test", snapshot, journal, Journal.Durability.GROUP, 0);
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.addTransaction(5000, "Deposit");
+        Snapshot.write(theBank, snapshot);
+        theBank.getJournal().close();
+
+        Bank recovered = Snapshot.recover("Test", snapshot, journal, Journal.Durability.GROUP, 0);
+        Account copy = recovered.findAccount(acct.getUUID());
+        long takenAt = recovered.getHistoryStart();
+        BankView view = recovered.openView();
+
+        // from the snapshot on, the balance brought forward is the balance
+        assertEquals(5000, view.getBalanceAt(copy, takenAt));
+        assertEquals(5000, view.getTotalBalanceAt(takenAt));
+
+        // before it, the history isn't there to say, so the view won't guess
+        assertThrows(IllegalStateException.class, () -> view.getBalanceAt(copy, takenAt - 1));
+        assertThrows(IllegalStateException.class, () -> view.getTotalBalanceAt(takenAt - 1));
+        recovered.getJournal().close();
+    }
+    @Test
+    void viewStaysConsistentUnderConcurrentWrites() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 16; i++) {
+            Account acct = theBank.addUser("Customer" + i, "Test", "1234").getAccount(0);
+            acct.addTransaction(100000, "Opening deposit");
+            accounts.add(acct);
+        }
+
+        // tellers keep depositing, withdrawing and transferring the whole time (up to a point, so
+        // the histories the views add up don't get too long)
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] tellers = new Thread[4];
+        for (int t = 0; t < tellers.length; t++) {
+            long seed = t;
+            tellers[t] = new Thread(() -> {
+                Random rnd = new Random(seed);
+                for (int i = 0; i < 50000 && !stop.get(); i++) {
+                    Account acct = accounts.get(rnd.nextInt(accounts.size()));
+                    switch (rnd.nextInt(3)) {
+                        case 0:
+                            acct.addTransaction(1 + rnd.nextInt(500), "Deposit");
+                            break;
+                        case 1:
+                            acct.withdraw(1 + rnd.nextInt(500), "Cash");
+                            break;
+                        default:
+                            Account.transfer(acct, accounts.get(rnd.nextInt(accounts.size())), 1 + rnd.nextInt(500));
+                    }
+                }
+            });
+            tellers[t].start();
+        }
+
+        try {
+            for (int round = 0; round < 20; round++) {
+                BankView view = theBank.openView();
+                long total = view.getTotalBalance();
+                long count = view.numTransactions();
+
+                // every question agrees with every other, and asking again gives the same answer
+                assertEquals(total, view.getTotalDeposits() - view.getTotalWithdrawals());
+                long sum = 0;
+                for (Account acct : accounts) {
+                    sum += view.getBalance(acct);
+                }
+                assertEquals(total, sum);
+                assertEquals(total, view.getTotalBalanceAt(System.currentTimeMillis() + 3600_000L));
+                assertEquals(total, view.getTotalBalance());
+                assertEquals(count, view.numTransactions());
+            }
+        } finally {
+            stop.set(true);
+            for (Thread t : tellers) {
+                t.join();
+            }
+        }
+
+        // once the tellers stop, a new view sees exactly what the accounts hold
+        BankView last = theBank.openView();
+        long actual = 0;
+        for (Account acct : accounts) {
+            actual += acct.getBalance();
+            assertEquals(acct.getBalance(), last.getBalance(acct));
+        }
+        assertEquals(actual, last.getTotalBalance());
+    }
+}
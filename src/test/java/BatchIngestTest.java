@@ -0,0 +1,165 @@
+// Batch files are loaded row by row, rejecting only the rows that can't be applied
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchIngestTest {
+    @TempDir
+    Path dir;
+
+    private Path csv(String... lines) throws IOException {
+        Path file = this.dir.resolve("batch.csv");
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Write a binary batch file of rows of account ID, amount in cents and memo
+     */
+    private Path binary(Object[]... rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BatchIngest.MAGIC);
+        for (Object[] row : rows) {
+            out.writeLong(Long.parseLong((String) row[0]));
+            out.writeLong((Long) row[1]);
+            byte[] memo = ((String) row[2]).getBytes(StandardCharsets.UTF_8);
+            out.writeShort(memo.length);
+            out.write(memo);
+        }
+        Path file = this.dir.resolve("batch.bin");
+        Files.write(file, bytes.toByteArray());
+        return file;
+    }
+
+    @Test
+    void loadsCsvRejectingBadRowsOneByOne() throws IOException {
+        Bank theBank = new Bank("Test");
+        Account alice = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        Account bob = theBank.addUser("Bob", "Test", "1234").getAccount(0);
+        String a = alice.getUUID();
+        String b = bob.getUUID();
+
+        BatchIngest.Report report = theBank.ingest(this.csv(
+                "AccountID, Amount, Memo",                      // 1: header, skipped
+                a + ",1500.00,Salary",                          // 2
+                "",                                             // 3: blank, skipped
+                "# bonuses next",                               // 4: comment, skipped
+                b + ",200,\"Bonus, with a comma \"\"quoted\"\"\"", // 5
+                b + ",-250,Rent",                               // 6: more than Bob has
+                a + ",-500.5,Rent",                             // 7
+                "0000000000,10,Nobody",                         // 8: no such account
+                a + ",12.345,Too precise",                      // 9
+                a,                                              // 10: no amount at all
+                b + ",-200"                                     // 11: no memo
+        ), BatchIngest.Format.CSV, false);
+
+        assertEquals(8, report.getRowsRead());
+        assertEquals(4, report.getRowsApplied());
+        assertEquals(150000 + 20000 - 50050 - 20000, report.getNetAmount());
+        assertEquals(150000 - 50050, alice.getBalance());
+        assertEquals(0, bob.getBalance());
+        assertEquals("Bonus, with a comma \"quoted\"", bob.getTransaction(0).getMemo());
+        assertEquals("", bob.getTransaction(1).getMemo());
+
+        List<BatchIngest.Rejection> rejected = report.getRejections();
+        assertEquals(4, rejected.size());
+        assertEquals(6, rejected.get(0).getRow());
+        assertEquals("Insufficient funds", rejected.get(0).getReason());
+        assertEquals(8, rejected.get(1).getRow());
+        assertEquals("No such account", rejected.get(1).getReason());
+        assertEquals(9, rejected.get(2).getRow());
+        assertEquals(10, rejected.get(3).getRow());
+        assertEquals("Expected " + BatchIngest.CSV_HEADER, rejected.get(3).getReason());
+    }
+
+    @Test
+    void mistypedFirstRowIsRejectedNotTakenForAHeader() throws IOException {
+        Bank theBank = new Bank("Test");
+        Account alice = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+
+        BatchIngest.Report report = theBank.ingest(this.csv(
+                "x" + alice.getUUID() + ",10,Typo",
+                alice.getUUID() + ",10,Fine"
+        ), BatchIngest.Format.CSV, false);
+
+        assertEquals(2, report.getRowsRead());
+        assertEquals(1, report.getRowsApplied());
+        assertEquals(1, report.getRejections().get(0).getRow());
+        assertEquals(1000, alice.getBalance());
+    }
+
+    @Test
+    void loadsBinaryLikeCsv() throws IOException {
+        Bank theBank = new Bank("Test");
+        Account alice = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+
+        BatchIngest.Report report = theBank.ingest(this.binary(
+                new Object[] {alice.getUUID(), 10000L, "Salary"},
+                new Object[] {alice.getUUID(), -20000L, "Too much"},
+                new Object[] {"1", 500L, "Nobody"},
+                new Object[] {alice.getUUID(), -2500L, "Rent é"}
+        ), BatchIngest.Format.BINARY, false);
+
+        assertEquals(4, report.getRowsRead());
+        assertEquals(2, report.getRowsApplied());
+        assertEquals(7500, alice.getBalance());
+        assertEquals("Rent é", alice.getTransaction(1).getMemo());
+        assertEquals(2, report.getRejections().get(0).getRow());
+        assertEquals(3, report.getRejections().get(1).getRow());
+    }
+
+    @Test
+    void refusesBrokenBinaryFiles() throws IOException {
+        Bank theBank = new Bank("Test");
+        Account alice = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+
+        Path notBatch = this.dir.resolve("not.bin");
+        Files.write(notBatch, new byte[] {1, 2, 3, 4, 5});
+        assertThrows(IOException.class, () -> theBank.ingest(notBatch, BatchIngest.Format.BINARY, false));
+
+        // cut off part way through the last row
+        Path file = this.binary(new Object[] {alice.getUUID(), 100L, "Salary"});
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThrows(IOException.class, () -> theBank.ingest(file, BatchIngest.Format.BINARY, false));
+    }
+
+    @Test
+    void parallelLoadAppliesEachAccountsRowsInOrder() throws IOException {
+        Bank theBank = new Bank("Test");
+        Account[] accounts = new Account[50];
+        String[] lines = new String[accounts.length * 200];
+        for (int a = 0; a < accounts.length; a++) {
+            accounts[a] = theBank.addUser("Customer" + a, "Test", "1234").getAccount(0);
+        }
+
+        // each account gets a deposit then a withdrawal of all of it, which only works in order
+        for (int i = 0; i < 100; i++) {
+            for (int a = 0; a < accounts.length; a++) {
+                lines[(i * accounts.length + a) * 2] = accounts[a].getUUID() + "," + (i + 1) + ",In";
+                lines[(i * accounts.length + a) * 2 + 1] = accounts[a].getUUID() + ",-" + (i + 1) + ",Out";
+            }
+        }
+        BatchIngest.Report report = theBank.ingest(this.csv(lines), BatchIngest.Format.CSV, true);
+
+        assertEquals(lines.length, report.getRowsApplied());
+        assertEquals(0, report.getNetAmount());
+        for (Account acct : accounts) {
+            assertEquals(0, acct.getBalance());
+            assertEquals(200, acct.numTransactions());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// A columnar history hands back the same transactions a list of Transaction objects would
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ColumnarHistoryTest {
+    @Test
+    void keepsEveryFieldOfEveryTransaction() {
+        Bank theBank = new Bank("Test");
+        theBank.setColumnarHistory(true);
+        Account first = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        Account second = theBank.addUser("Bob", "Test", "1234").getAccount(0);
+        first.addTransaction(100000, "Opening deposit");
+        second.addTransaction(100000, "Opening deposit");
+
+        // enough of everything to make the columns grow several times
+        Random rnd = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    first.addTransaction(1 + rnd.nextInt(100), "Deposit " + (i % 10));
+                    break;
+                case 1:
+                    second.withdraw(1 + rnd.nextInt(100), "Cash");
+                    break;
+                default:
+                    Account.transfer(first, second, 1 + rnd.nextInt(100));
+            }
+        }
+
+        for (Account acct : new Account[] {first, second}) {
+            long balance = 0;
+            long lastTime = 0;
+            for (int i = 0; i < acct.numTransactions(); i++) {
+                Transaction t = acct.getTransaction(i);
+                assertSame(acct, t.getAccount());
+                assertTrue(t.getTimestamp().getTime() >= lastTime);
+                lastTime = t.getTimestamp().getTime();
+                balance += t.getAmount();
+
+                Transaction other = t.getLinkedTransaction();
+                if (t.getMemo().startsWith("Transfer")) {
+                    // the other leg is rebuilt from this account's columns alone, and matches the real one
+                    assertSame(acct == first ? second : first, other.getAccount());
+                    assertEquals(-t.getAmount(), other.getAmount());
+                    assertEquals(t.getTimestamp(), other.getTimestamp());
+                    assertEquals(acct == first ? "Transfer from account " + first.getUUID() : "Transfer to account " + second.getUUID(),
+                            other.getMemo());
+                } else {
+                    assertNull(other);
+                }
+            }
+            assertEquals(acct.getBalance(), balance);
+            assertEquals(acct.getBalance(), acct.replayBalance());
+        }
+    }
+
+    @Test
+    void memosAreStoredOnce() {
+        MemoPool pool = new MemoPool();
+        int rent = pool.intern("Rent");
+        assertEquals(rent, pool.intern(new String("Rent")));
+        int groceries = pool.intern("Groceries");
+        assertEquals("Rent", pool.get(rent));
+        assertEquals("Groceries", pool.get(groceries));
+        assertEquals(2, pool.size());
+
+        // past the pool's first table
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i + 2, pool.intern("Memo " + i));
+        }
+        assertEquals("Memo 199", pool.get(201));
+        assertEquals("Rent", pool.get(rent));
+    }
+}
@@ -0,0 +1,89 @@
+// Many sessions can use the same bank, and the same account, at once
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyTest {
+    /**
+     * Run the same task on several threads at once and wait for them all
+     */
+    private static void runOnThreads(int threads, Runnable task) throws InterruptedException {
+        Thread[] running = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            running[t] = new Thread(task);
+            running[t].start();
+        }
+        for (Thread t : running) {
+            t.join();
+        }
+    }
+
+    @Test
+    void concurrentDepositsAndWithdrawalsOnOneAccountAllCount() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        AtomicLong withdrawn = new AtomicLong();
+
+        ConcurrencyTest.runOnThreads(8, () -> {
+            for (int i = 0; i < 2000; i++) {
+                acct.addTransaction(10, "Deposit");
+                if (acct.withdraw(7, "Cash") == Account.WithdrawResult.OK) {
+                    withdrawn.addAndGet(7);
+                }
+            }
+        });
+
+        assertEquals(8 * 2000 * 10 - withdrawn.get(), acct.getBalance());
+        assertEquals(acct.getBalance(), acct.replayBalance());
+    }
+
+    @Test
+    void withdrawalsNeverOverdrawWhenRacing() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.addTransaction(1000, "Deposit");
+        AtomicLong granted = new AtomicLong();
+
+        // far more is asked for than there is, and only what there is gets paid out
+        ConcurrencyTest.runOnThreads(8, () -> {
+            for (int i = 0; i < 100; i++) {
+                if (acct.withdraw(3, "Cash") == Account.WithdrawResult.OK) {
+                    granted.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(333, granted.get());
+        assertEquals(1, acct.getBalance());
+    }
+
+    @Test
+    void concurrentSignUpsGetDistinctIds() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        Set<String> userIDs = ConcurrentHashMap.newKeySet();
+        Set<String> accountIDs = ConcurrentHashMap.newKeySet();
+
+        ConcurrencyTest.runOnThreads(8, () -> {
+            for (int i = 0; i < 250; i++) {
+                User u = theBank.addUser("Customer", "Test", "1234");
+                userIDs.add(u.getUUID());
+                accountIDs.add(u.getAccountUUID(0));
+            }
+        });
+
+        assertEquals(2000, userIDs.size());
+        assertEquals(2000, accountIDs.size());
+        assertEquals(2000, theBank.numUsers());
+        List<User> users = theBank.getUsers();
+        for (User u : users) {
+            assertSame(u, theBank.findUser(u.getUUID()));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// History comes back a page at a time, newest first, narrowed down by time and amount
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+class HistoryQueryTest {
+    private static final long START = 1700000000000L;
+
+    /**
+     * An account with 100 transactions a minute apart: deposits of 1 to 50 dollars, then withdrawals of 1 to 50
+     */
+    private static Account account(boolean columnar) {
+        Bank theBank = new Bank("Test");
+        theBank.setColumnarHistory(columnar);
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        for (int i = 0; i < 100; i++) {
+            long amount = i < 50 ? (i + 1) * 100 : -(i - 49) * 100;
+            acct.replayTransaction(i + 1, START + i * 60000L, amount, "Transaction " + i);
+        }
+        return acct;
+    }
+
+    private static List<String> memos(List<Transaction> transactions) {
+        return transactions.stream().map(Transaction::getMemo).collect(Collectors.toList());
+    }
+
+    @Test
+    void pagesGoNewestFirst() {
+        for (boolean columnar : new boolean[] {false, true}) {
+            Account acct = HistoryQueryTest.account(columnar);
+
+            List<Transaction> first = acct.history().page(0, 10);
+            assertEquals(10, first.size());
+            assertEquals("Transaction 99", first.get(0).getMemo());
+            assertEquals("Transaction 90", first.get(9).getMemo());
+            assertEquals("Transaction 89", acct.history().page(1, 10).get(0).getMemo());
+
+            // the last page is short, and past it there's nothing
+            List<Transaction> last = acct.history().page(3, 30);
+            assertEquals(10, last.size());
+            assertEquals("Transaction 0", last.get(9).getMemo());
+            assertTrue(acct.history().page(4, 30).isEmpty());
+        }
+    }
+
+    @Test
+    void filtersByTimeAndAmount() {
+        for (boolean columnar : new boolean[] {false, true}) {
+            Account acct = HistoryQueryTest.account(columnar);
+
+            // minutes 10 to 19, the end being exclusive
+            List<Transaction> window = acct.history().between(new Date(START + 10 * 60000L), new Date(START + 20 * 60000L)).page(0, 100);
+            assertEquals(10, window.size());
+            assertEquals("Transaction 19", window.get(0).getMemo());
+            assertEquals("Transaction 10", window.get(9).getMemo());
+
+            // withdrawals of 10 to 20 dollars, which are -2000 to -1000 cents
+            List<Transaction> withdrawals = acct.history().amountBetween(-2000, -1000).page(0, 100);
+            assertEquals(11, withdrawals.size());
+            for (Transaction t : withdrawals) {
+                assertTrue(t.getAmount() >= -2000 && t.getAmount() <= -1000);
+            }
+
+            // both at once, paged: deposits from minute 40 on
+            HistoryQuery both = acct.history().between(new Date(START + 40 * 60000L), null).amountBetween(1, Long.MAX_VALUE);
+            assertEquals(List.of("Transaction 49", "Transaction 48", "Transaction 47"), HistoryQueryTest.memos(both.page(0, 3)));
+            assertEquals(List.of("Transaction 40"), HistoryQueryTest.memos(both.page(3, 3)));
+        }
+    }
+
+    @Test
+    void iteratorWalksEverythingThatMatchesOnce() {
+        Account acct = HistoryQueryTest.account(true);
+
+        // more than one of the iterator's batches
+        List<Transaction> walked = new ArrayList<Transaction>();
+        for (Transaction t : acct.history()) {
+            walked.add(t);
+        }
+        assertEquals(100, walked.size());
+        assertEquals("Transaction 99", walked.get(0).getMemo());
+        assertEquals("Transaction 0", walked.get(99).getMemo());
+
+        long deposits = acct.history().amountBetween(1, Long.MAX_VALUE).stream().mapToLong(Transaction::getAmount).sum();
+        assertEquals(50 * 51 / 2 * 100, deposits);
+
+        // a stream stops fetching once it has what it needs
+        assertEquals(List.of("Transaction 99", "Transaction 98"),
+                acct.history().stream().limit(2).map(Transaction::getMemo).collect(Collectors.toList()));
+    }
+
+    @Test
+    void transactionsAddedAfterTheIteratorStartsAreLeftOut() {
+        Account acct = HistoryQueryTest.account(false);
+        int count = 0;
+        for (Transaction t : acct.history()) {
+            if (count == 0) {
+                acct.addTransaction(1, "Later");
+            }
+            count++;
+        }
+        assertEquals(100, count);
+        assertEquals("Later", acct.history().page(0, 1).get(0).getMemo());
+    }
+}
@@ -0,0 +1,82 @@
+// IDs are handed out without repeats until every one of them is used, then refused
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class IdGeneratorTest {
+    @Test
+    void handsOutEveryIdOnceThenRunsOut() {
+        SequenceIdGenerator gen = new SequenceIdGenerator(3, 42);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String id = gen.nextId();
+            assertEquals(3, id.length());
+            assertTrue(ids.add(id), "repeated " + id);
+        }
+        assertEquals(1000, ids.size());
+
+        // and keeps refusing, without the state moving past the end
+        assertThrows(IllegalStateException.class, gen::nextId);
+        assertThrows(IllegalStateException.class, gen::nextId);
+        assertEquals(1000, gen.getState());
+    }
+
+    @Test
+    void sameSeedGivesSameOrder() {
+        SequenceIdGenerator a = new SequenceIdGenerator(6, 7);
+        SequenceIdGenerator b = new SequenceIdGenerator(6, 7);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(a.nextId(), b.nextId());
+        }
+    }
+
+    @Test
+    void restoredGeneratorCarriesOnWithoutRepeats() {
+        SequenceIdGenerator before = new SequenceIdGenerator(4, 3);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 500; i++) {
+            ids.add(before.nextId());
+        }
+
+        SequenceIdGenerator after = new SequenceIdGenerator(4, 3);
+        after.restoreState(before.getState());
+        after.restoreState(10); // never backwards
+        for (int i = 0; i < 500; i++) {
+            assertTrue(ids.add(after.nextId()));
+        }
+    }
+
+    @Test
+    void bankRefusesNewUsersOnceIdsRunOut() {
+        Bank theBank = new Bank("Test");
+        theBank.setUserIdGenerator(new SequenceIdGenerator(1, 1));
+
+        // an ID claimed some other way, like a recovered user's, is skipped rather than reused
+        String claimed = new SequenceIdGenerator(1, 1).nextId();
+        theBank.claimUserUUID(claimed);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 9; i++) {
+            ids.add(theBank.getNewUserUUID());
+        }
+        assertEquals(9, ids.size());
+        assertFalse(ids.contains(claimed));
+
+        assertThrows(IllegalStateException.class, theBank::getNewUserUUID);
+        assertThrows(IllegalStateException.class, () -> theBank.addUser("Zed", "Test", "1234"));
+        assertEquals(0, theBank.numUsers());
+    }
+
+    @Test
+    void refusesImpossibleLengths() {
+        assertThrows(IllegalArgumentException.class, () -> new SequenceIdGenerator(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new SequenceIdGenerator(19, 1));
+        assertEquals(18, new SequenceIdGenerator(18, 1).nextId().length());
+    }
+}
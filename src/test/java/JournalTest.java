@@ -0,0 +1,138 @@
+// Everything done to a bank goes into its journal, in order, and comes back out the same
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+    @TempDir
+    Path dir;
+
+    private static List<Journal.Entry> readAll(Path path) throws IOException {
+        List<Journal.Entry> entries = new ArrayList<Journal.Entry>();
+        Journal.read(path, entries::add);
+        return entries;
+    }
+
+    @Test
+    void recordsComeBackInOrder() throws IOException {
+        Path path = this.dir.resolve("atm.journal");
+        Bank theBank = new Bank("Test");
+        theBank.setJournal(new Journal(path, Journal.Durability.GROUP, 0));
+        User alice = theBank.addUser("Alice", "Smith", "1111");
+        User bob = theBank.addUser("Bob", "Jones", "2222");
+        Account from = alice.getAccount(0);
+        Account to = bob.getAccount(0);
+        from.addTransaction(5000, "Opening deposit");
+        from.withdraw(1200, "Cash");
+        Account.transfer(from, to, 300);
+        theBank.getJournal().close();
+
+        List<Journal.Entry> entries = JournalTest.readAll(path);
+        byte[] types = {Journal.USER, Journal.ACCOUNT, Journal.USER, Journal.ACCOUNT,
+                Journal.TRANSACTION, Journal.TRANSACTION, Journal.TRANSFER};
+        assertEquals(types.length, entries.size());
+        for (int i = 0; i < types.length; i++) {
+            assertEquals(types[i], entries.get(i).getType());
+            assertEquals(i + 1, entries.get(i).getSeq());
+        }
+
+        assertEquals(Long.parseLong(alice.getUUID()), entries.get(0).getLong(0));
+        assertEquals("Alice", entries.get(0).getString(0));
+        assertEquals(Long.parseLong(from.getUUID()), entries.get(1).getLong(0));
+        assertEquals("Savings", entries.get(1).getString(0));
+
+        Journal.Entry deposit = entries.get(4);
+        assertEquals(Long.parseLong(from.getUUID()), deposit.getAccount());
+        assertEquals(5000, deposit.getAmount());
+        assertEquals("Opening deposit", deposit.getMemo());
+        assertEquals(-1200, entries.get(5).getAmount());
+
+        // both legs of the transfer in one record
+        Journal.Entry transfer = entries.get(6);
+        assertEquals(Long.parseLong(from.getUUID()), transfer.getAccount());
+        assertEquals(Long.parseLong(to.getUUID()), transfer.getToAccount());
+        assertEquals(300, transfer.getAmount());
+        assertEquals("Transfer to account " + to.getUUID(), transfer.getMemo());
+        assertEquals("Transfer from account " + from.getUUID(), transfer.getToMemo());
+    }
+
+    @Test
+    void concurrentAppendsAllGetWritten() throws IOException, InterruptedException {
+        Path path = this.dir.resolve("atm.journal");
+        Bank theBank = new Bank("Test");
+        theBank.setJournal(new Journal(path, Journal.Durability.GROUP, 0));
+        Account acct = theBank.addUser("Alice", "Smith", "1111").getAccount(0);
+        long before = theBank.getJournal().getLastSeq();
+
+        // every deposit waits for its own record, and records arriving together share a write
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    acct.addTransaction(1, "Deposit");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(before + 1600, theBank.getJournal().getLastSeq());
+        theBank.getJournal().close();
+
+        // every record is there once, numbered in the order it was written
+        List<Journal.Entry> entries = JournalTest.readAll(path);
+        assertEquals(before + 1600, entries.size());
+        long total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(i + 1, entries.get(i).getSeq());
+            if (entries.get(i).getType() == Journal.TRANSACTION) {
+                total += entries.get(i).getAmount();
+            }
+        }
+        assertEquals(1600, total);
+    }
+
+    @Test
+    void flushWritesOutWhatAsyncModeHasBuffered() throws IOException {
+        Path path = this.dir.resolve("atm.journal");
+        Bank theBank = new Bank("Test");
+        Journal journal = new Journal(path, Journal.Durability.ASYNC, 60000);
+        theBank.setJournal(journal);
+        Account acct = theBank.addUser("Alice", "Smith", "1111").getAccount(0);
+        acct.addTransaction(700, "Deposit");
+
+        // nothing waits for the write in this mode, but a flush does
+        journal.flush();
+        List<Journal.Entry> entries = JournalTest.readAll(path);
+        assertEquals(3, entries.size());
+        assertEquals(700, entries.get(2).getAmount());
+        journal.close();
+    }
+
+    @Test
+    void reopenedJournalCarriesOnNumbering() throws IOException {
+        Path path = this.dir.resolve("atm.journal");
+        Bank theBank = new Bank("Test");
+        theBank.setJournal(new Journal(path, Journal.Durability.GROUP, 0));
+        theBank.addUser("Alice", "Smith", "1111");
+        theBank.getJournal().close();
+
+        Journal reopened = new Journal(path, Journal.Durability.GROUP, 0);
+        assertEquals(2, reopened.getLastSeq());
+        theBank.setJournal(reopened);
+        theBank.addUser("Bob", "Jones", "2222");
+        reopened.close();
+
+        List<Journal.Entry> entries = JournalTest.readAll(path);
+        assertEquals(4, entries.size());
+        assertEquals(4, entries.get(3).getSeq());
+    }
+}
@@ -0,0 +1,57 @@
+// The load generator drives real sessions against a bank and checks the books afterwards
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LoadGeneratorTest {
+    @Test
+    void runsTheMixAndKeepsTheBooksBalanced() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        LoadGenerator load = new LoadGenerator(theBank, 4, 0, new int[] {1, 1, 1, 1});
+        load.createUsers(50, 10000);
+        assertEquals(50, theBank.numUsers());
+        assertEquals(50 * 10000, theBank.openView().getTotalBalance());
+
+        LoadGenerator.Report report = load.run(300);
+        assertTrue(report.isConserved(), report.toString());
+        assertTrue(report.getThroughput() > 0);
+        assertEquals(0, report.getFailures(LoadGenerator.Op.LOGIN));
+        long ops = 0;
+        for (LoadGenerator.Op op : LoadGenerator.Op.values()) {
+            assertTrue(report.getLatency(op).getCount() > 0, op.toString());
+            ops += report.getLatency(op).getCount();
+        }
+        assertEquals(ops, report.getOperations());
+
+        // withdrawals of up to $200 from accounts holding $100 to start with are sometimes refused
+        assertTrue(report.getFailures(LoadGenerator.Op.WITHDRAW) > 0);
+        assertEquals(0, report.getFailures(LoadGenerator.Op.DEPOSIT));
+    }
+
+    @Test
+    void pacedRunHoldsToTheRate() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        LoadGenerator load = new LoadGenerator(theBank, 2, 200, new int[] {0, 0, 0, 1});
+        load.createUsers(2, 0);
+
+        LoadGenerator.Report report = load.run(500);
+        assertTrue(report.getOperations() <= 110, report.toString());
+        assertEquals(0, report.getLatency(LoadGenerator.Op.DEPOSIT).getCount());
+        assertTrue(report.isConserved());
+    }
+
+    @Test
+    void refusesBadSetups() {
+        Bank theBank = new Bank("Test");
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(theBank, 1, 0, new int[] {1, 1, 1}));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(theBank, 1, 0, new int[] {0, 0, 0, 0}));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(theBank, 1, 0, new int[] {1, -1, 1, 1}));
+
+        LoadGenerator load = new LoadGenerator(theBank, 1, 0, new int[] {1, 1, 1, 1});
+        load.createUsers(1, 0);
+        assertThrows(IllegalStateException.class, () -> load.run(10));
+    }
+}
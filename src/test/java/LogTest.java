@@ -0,0 +1,90 @@
+// Events are formatted and written on the log's own thread, and only at the levels that are on
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class LogTest {
+    @AfterEach
+    void restore() {
+        Log.flush();
+        Log.setOutput(System.out);
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    @Test
+    void writesEnabledEventsWithTheirArguments() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Log.setOutput(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        Log.setLevel(Log.Level.INFO);
+
+        assertFalse(Log.isEnabled(Log.Level.DEBUG));
+        assertTrue(Log.isEnabled(Log.Level.WARN));
+        Log.debug("Not shown {}", 1);
+        Log.info("Deposit of {} to {}", "$12.50", "0123456789");
+        Log.warn("Left over", "x", 2);
+        Log.flush();
+
+        String text = bytes.toString(StandardCharsets.UTF_8);
+        assertFalse(text.contains("Not shown"));
+        assertTrue(text.contains("INFO  Deposit of $12.50 to 0123456789"));
+        assertTrue(text.contains("WARN  Left over x 2"));
+    }
+
+    @Test
+    void parsesLevelNamesInAnyCase() {
+        assertEquals(Log.Level.DEBUG, Log.parseLevel("debug"));
+        assertEquals(Log.Level.WARN, Log.parseLevel(" Warn "));
+        assertEquals(Log.Level.OFF, Log.parseLevel("OFF"));
+        assertEquals(Log.Level.INFO, Log.parseLevel(null));
+    }
+
+    @Test
+    void mistypedLevelFallsBackToInfoWithOneWarning() {
+        PrintStream err = System.err;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        try {
+            assertEquals(Log.Level.INFO, Log.parseLevel("verbose"));
+        } finally {
+            System.setErr(err);
+        }
+        String[] lines = bytes.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].startsWith("Unknown log level \"verbose\", using INFO"));
+    }
+
+    @Test
+    void mistypedLevelPropertyDoesNotBreakTheClass() throws Exception {
+        // load a fresh copy of the class, so its static setup runs again with the bad property
+        URL classes = Log.class.getProtectionDomain().getCodeSource().getLocation();
+        String before = System.getProperty("atm.log.level");
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8));
+        System.setProperty("atm.log.level", "verbose");
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {classes}, ClassLoader.getPlatformClassLoader())) {
+            Class<?> log = Class.forName("Log", true, loader);
+            Class<?> level = loader.loadClass("Log$Level");
+            Object debug = level.getField("DEBUG").get(null);
+            Object info = level.getField("INFO").get(null);
+            assertEquals(false, log.getMethod("isEnabled", level).invoke(null, debug));
+            assertEquals(true, log.getMethod("isEnabled", level).invoke(null, info));
+        } finally {
+            System.setErr(err);
+            if (before == null) {
+                System.clearProperty("atm.log.level");
+            } else {
+                System.setProperty("atm.log.level", before);
+            }
+        }
+    }
+}
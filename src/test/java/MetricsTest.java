@@ -0,0 +1,85 @@
+// Operations are counted and timed as they happen, and readable as text or over JMX
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+    @Test
+    void histogramPercentilesAreWithinABucket() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(100000, h.getMax());
+        assertEquals(50000.5, h.getMean(), 0.001);
+
+        // each percentile is the top of its bucket, no more than about 3% above the exact value
+        double[] percentiles = {50, 90, 99, 99.9};
+        for (double p : percentiles) {
+            long exact = (long) (p * 1000);
+            long value = h.getValueAtPercentile(p);
+            assertTrue(value >= exact && value <= exact * 1.04, p + ": " + value);
+        }
+        assertEquals(100000, h.getValueAtPercentile(100));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(50));
+    }
+
+    @Test
+    void smallValuesAreExactAndNegativeOnesCountAsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        h.record(3);
+        h.record(7);
+        assertEquals(0, h.getValueAtPercentile(1));
+        assertEquals(3, h.getValueAtPercentile(50));
+        assertEquals(7, h.getValueAtPercentile(100));
+
+        // every bucket's highest value is in that bucket, and the next value is in the next one
+        for (int b = 0; b < 1000; b++) {
+            long top = LatencyHistogram.highestValueIn(b);
+            assertEquals(b, LatencyHistogram.bucketOf(top));
+            assertEquals(b + 1, LatencyHistogram.bucketOf(top + 1));
+        }
+    }
+
+    @Test
+    void bankOperationsAreCounted() {
+        Metrics.Operation withdraw = Metrics.operation("withdraw");
+        long count = withdraw.getCount();
+        long failures = withdraw.getFailures();
+
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.addTransaction(100, "Deposit");
+        acct.withdraw(50, "Cash");
+        acct.withdraw(500, "Cash");
+
+        assertEquals(count + 2, withdraw.getCount());
+        assertEquals(failures + 1, withdraw.getFailures());
+        assertTrue(Metrics.dump().contains("withdraw"));
+    }
+
+    @Test
+    void gaugesAndOperationsAreReadableOverJmx() throws Exception {
+        Bank theBank = new Bank("Test");
+        theBank.addUser("Alice", "Test", "1234").getAccount(0).addTransaction(100, "Deposit");
+        theBank.exposeMetrics();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(Metrics.JMX_NAME);
+        assertEquals(1L, server.getAttribute(name, "users"));
+        assertEquals(100L, server.getAttribute(name, "totalBalanceCents"));
+        assertTrue((Long) server.getAttribute(name, "addTransaction.count") >= 1);
+        assertTrue(((String) server.invoke(name, "dump", null, null)).contains("addTransaction"));
+    }
+}
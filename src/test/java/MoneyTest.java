@@ -0,0 +1,106 @@
+// Amounts are parsed and formatted exactly, to the cent, right up to the limits of a long
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class MoneyTest {
+    @Test
+    void parsesDollarAmounts() {
+        assertEquals(1200, Money.parse("12"));
+        assertEquals(1250, Money.parse("12.5"));
+        assertEquals(1250, Money.parse("$12.50"));
+        assertEquals(1200, Money.parse("12."));
+        assertEquals(5, Money.parse(".05"));
+        assertEquals(0, Money.parse("0"));
+        assertEquals(1, Money.parse("0.01"));
+
+        // 0.1 + 0.2 is exactly 30 cents, unlike with doubles
+        assertEquals(30, Money.parse("0.1") + Money.parse("0.2"));
+    }
+
+    @Test
+    void parsesSigns() {
+        assertEquals(-1250, Money.parse("-12.50"));
+        assertEquals(-1250, Money.parse("-$12.50"));
+        assertEquals(1250, Money.parse("+12.50"));
+        assertEquals(0, Money.parse("-0"));
+
+        // the sign goes before the dollar sign, and only once
+        assertThrows(NumberFormatException.class, () -> Money.parse("$-12.50"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("--12"));
+    }
+
+    @Test
+    void refusesMoreThanTwoDecimals() {
+        assertThrows(NumberFormatException.class, () -> Money.parse("12.505"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("0.001"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("12.50.1"));
+    }
+
+    @Test
+    void refusesWhatIsNotAnAmount() {
+        assertThrows(NumberFormatException.class, () -> Money.parse(""));
+        assertThrows(NumberFormatException.class, () -> Money.parse("-"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("$"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("."));
+        assertThrows(NumberFormatException.class, () -> Money.parse("12a"));
+        assertThrows(NumberFormatException.class, () -> Money.parse(" 12"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("1,000"));
+    }
+
+    @Test
+    void parsesRightUpToTheLimitsOfALong() {
+        assertEquals(Long.MAX_VALUE, Money.parse("92233720368547758.07"));
+        assertEquals(Long.MIN_VALUE, Money.parse("-92233720368547758.08"));
+
+        // one cent past either end doesn't fit
+        assertThrows(NumberFormatException.class, () -> Money.parse("92233720368547758.08"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("-92233720368547758.09"));
+
+        // nor does a number that only overflows when scaled up to cents
+        assertThrows(NumberFormatException.class, () -> Money.parse("92233720368547759"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("999999999999999999999"));
+    }
+
+    @Test
+    void formatsLikeTheSummaryLines() {
+        assertEquals("$12.50", Money.format(1250));
+        assertEquals("$0.05", Money.format(5));
+        assertEquals("$0.00", Money.format(0));
+        assertEquals("$(-12.50)", Money.format(-1250));
+        assertEquals("$(-0.01)", Money.format(-1));
+        assertEquals("-0.01", Money.toPlainString(-1));
+        assertEquals("$92233720368547758.07", Money.format(Long.MAX_VALUE));
+        assertEquals("$(-92233720368547758.08)", Money.format(Long.MIN_VALUE));
+    }
+
+    @Test
+    void formattedAmountsParseBack() {
+        long[] amounts = {0, 1, -1, 99, 100, 123456789, -123456789, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long cents : amounts) {
+            assertEquals(cents, Money.parse(Money.toPlainString(cents)));
+        }
+    }
+
+    @Test
+    void arithmeticFailsInsteadOfWrapping() {
+        assertThrows(ArithmeticException.class, () -> Money.add(Long.MAX_VALUE, 1));
+        assertThrows(ArithmeticException.class, () -> Money.subtract(Long.MIN_VALUE, 1));
+        assertThrows(ArithmeticException.class, () -> Money.negate(Long.MIN_VALUE));
+        assertThrows(ArithmeticException.class, () -> Money.ofDollars(Long.MAX_VALUE / 10));
+        assertEquals(500, Money.ofDollars(5));
+    }
+
+    @Test
+    void depositThatWouldOverflowIsRefused() {
+        Bank theBank = new Bank("Test");
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.addTransaction(Long.MAX_VALUE, "Deposit");
+
+        assertThrows(ArithmeticException.class, () -> acct.addTransaction(1, "Deposit"));
+        assertEquals(Long.MAX_VALUE, acct.getBalance());
+        assertEquals(1, acct.numTransactions());
+    }
+}
@@ -0,0 +1,127 @@
+// Pins are checked against salted hashes, and too many wrong ones lock the user ID out for a while
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class PinVerifierTest {
+    @Test
+    void saltedHashesMatchOnlyTheirPin() {
+        PinVerifier verifier = new PinVerifier("SHA-256", 3, 5, 60000, 100);
+        byte[] first = verifier.hash("1234");
+        byte[] second = verifier.hash("1234");
+
+        // a fresh salt each time, so the same pin never hashes the same way twice
+        assertFalse(Arrays.equals(first, second));
+        assertTrue(verifier.matches("1234", first));
+        assertTrue(verifier.matches("1234", second));
+        assertFalse(verifier.matches("1235", first));
+        assertFalse(verifier.matches("", first));
+
+        // a hash records how it was made, so a verifier with other settings still checks it
+        assertTrue(new PinVerifier().matches("1234", first));
+    }
+
+    @Test
+    void oldUnsaltedHashesStillMatch() throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest("4321".getBytes(StandardCharsets.UTF_8));
+        assertTrue(new PinVerifier().matches("4321", md5));
+        assertFalse(new PinVerifier().matches("1234", md5));
+    }
+
+    @Test
+    void locksOutAfterTooManyWrongPinsInARow() {
+        Bank theBank = new Bank("Test");
+        theBank.setPinVerifier(new PinVerifier("SHA-256", 1, 3, 60000, 100));
+        User u = theBank.addUser("Alice", "Test", "1234");
+
+        // a right pin in between starts the count again
+        assertNull(theBank.userLogin(u.getUUID(), "0000"));
+        assertNull(theBank.userLogin(u.getUUID(), "0000"));
+        assertNotNull(theBank.userLogin(u.getUUID(), "1234"));
+        assertNull(theBank.userLogin(u.getUUID(), "0000"));
+        assertNull(theBank.userLogin(u.getUUID(), "0000"));
+        assertFalse(theBank.getPinVerifier().isLockedOut(u.getUUID()));
+
+        // the third wrong one in a row locks the ID out, and then even the right pin is refused
+        assertNull(theBank.userLogin(u.getUUID(), "0000"));
+        assertTrue(theBank.getPinVerifier().isLockedOut(u.getUUID()));
+        assertNull(theBank.userLogin(u.getUUID(), "1234"));
+
+        // other users aren't affected
+        User other = theBank.addUser("Bob", "Test", "5678");
+        assertNotNull(theBank.userLogin(other.getUUID(), "5678"));
+    }
+
+    @Test
+    void lockoutRunsOutAndTheCountStartsAgain() throws InterruptedException {
+        PinVerifier verifier = new PinVerifier("SHA-256", 1, 2, 100, 100);
+        assertTrue(verifier.tryAttempt("000001"));
+        assertTrue(verifier.tryAttempt("000001"));
+        assertTrue(verifier.isLockedOut("000001"));
+        assertFalse(verifier.tryAttempt("000001"));
+
+        Thread.sleep(200);
+        assertFalse(verifier.isLockedOut("000001"));
+
+        // a single wrong pin after the lockout doesn't lock it out again straight away
+        assertTrue(verifier.tryAttempt("000001"));
+        assertFalse(verifier.isLockedOut("000001"));
+        assertTrue(verifier.tryAttempt("000001"));
+        assertTrue(verifier.isLockedOut("000001"));
+    }
+
+    @Test
+    void racingAttemptsGetNoMoreThanTheLimit() throws InterruptedException {
+        PinVerifier verifier = new PinVerifier("SHA-256", 1, 5, 60000, 100);
+        AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    if (verifier.tryAttempt("000001")) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(5, allowed.get());
+    }
+
+    @Test
+    void unknownUserIdsAreNotTracked() {
+        Bank theBank = new Bank("Test");
+        theBank.setPinVerifier(new PinVerifier("SHA-256", 1, 2, 60000, 100));
+        for (int i = 0; i < 10; i++) {
+            assertNull(theBank.userLogin("999999", "0000"));
+        }
+        assertFalse(theBank.getPinVerifier().isLockedOut("999999"));
+    }
+
+    @Test
+    void fullTableDropsUnlockedIdsBeforeLockouts() {
+        PinVerifier verifier = new PinVerifier("SHA-256", 1, 2, 60000, 10);
+        verifier.tryAttempt("000001");
+        verifier.tryAttempt("000001");
+        assertTrue(verifier.isLockedOut("000001"));
+
+        // far more IDs with one wrong pin each than the table holds
+        for (int i = 2; i < 200; i++) {
+            verifier.tryAttempt(String.format("%06d", i));
+        }
+        assertTrue(verifier.isLockedOut("000001"));
+    }
+}
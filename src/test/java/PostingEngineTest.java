@@ -0,0 +1,139 @@
+// Nightly postings are made once per account per day, however many times the day is run
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PostingEngineTest {
+    private static final ZoneId ZONE = ZoneId.of("UTC");
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Open the bank from whatever snapshot and journal are in the directory
+     */
+    private Bank open() throws IOException {
+        return Snapshot.recover("Test", this.dir.resolve("atm.snapshot"), this.dir.resolve("atm.journal"), Journal.Durability.GROUP, 0);
+    }
+
+    /**
+     * Give a user a checking account alongside the savings account every user gets
+     */
+    private static Account openChecking(Bank theBank, User u) {
+        Account checking = new Account("Checking", u, theBank);
+        u.addAccount(checking);
+        theBank.addAccount(checking);
+        return checking;
+    }
+
+    @Test
+    void runningTheSameDayTwicePostsOnce() throws IOException {
+        Bank theBank = new Bank("Test");
+        User u = theBank.addUser("Alice", "Test", "1234");
+        Account savings = u.getAccount(0);
+        Account checking = PostingEngineTest.openChecking(theBank, u);
+
+        // deposits well before the day, at a known time, as if read back from the journal
+        LocalDate day = LocalDate.of(2026, 9, 30); // a month end, so the fee is due
+        long before = day.minusDays(10).atStartOfDay(ZONE).toInstant().toEpochMilli();
+        savings.replayTransaction(1, before, 1000000, "Opening deposit");
+        checking.replayTransaction(1, before, 10000, "Opening deposit");
+
+        PostingEngine engine = new PostingEngine(theBank, 2, ZONE, 500, 500);
+        PostingEngine.Result first = engine.run(day);
+        assertEquals(1, first.getInterestPostings());
+        assertEquals(1, first.getFeePostings());
+        long savingsBalance = savings.getBalance();
+        long checkingBalance = checking.getBalance();
+        assertTrue(savingsBalance > 1000000);
+        assertEquals(9500, checkingBalance);
+
+        PostingEngine.Result second = engine.run(day);
+        assertEquals(2, second.getSkipped());
+        assertEquals(0, second.getInterestPostings());
+        assertEquals(0, second.getFeePostings());
+        assertEquals(savingsBalance, savings.getBalance());
+        assertEquals(checkingBalance, checking.getBalance());
+        assertEquals(savings.getBalance(), savings.replayBalance());
+    }
+
+    @Test
+    void rerunAfterRecoveryPostsNothing() throws IOException {
+        LocalDate today = LocalDate.now(ZONE);
+        LocalDate monthEnd = today.withDayOfMonth(today.lengthOfMonth());
+
+        Bank theBank = this.open();
+        User u = theBank.addUser("Alice", "Test", "1234");
+        Account checking = PostingEngineTest.openChecking(theBank, u);
+        u.getAccount(0).addTransaction(5000000, "Opening deposit");
+        checking.addTransaction(1000, "Opening deposit");
+        new PostingEngine(theBank, 2, ZONE, 36500, 250).run(monthEnd);
+        long savingsBalance = u.getAccount(0).getBalance();
+        assertEquals(750, checking.getBalance());
+        theBank.getJournal().close();
+
+        // the postings and the day they were for come back from the journal, so a second run,
+        // like one started again after a crash, finds nothing left to do
+        Bank recovered = this.open();
+        PostingEngine.Result rerun = new PostingEngine(recovered, 2, ZONE, 36500, 250).run(monthEnd);
+        assertEquals(2, rerun.getSkipped());
+        assertEquals(savingsBalance, recovered.findAccount(u.getAccount(0).getUUID()).getBalance());
+        assertEquals(750, recovered.findAccount(checking.getUUID()).getBalance());
+
+        // and the same goes for a snapshot of it
+        Snapshot.write(recovered, this.dir.resolve("atm.snapshot"));
+        recovered.getJournal().close();
+        Bank fromSnapshot = this.open();
+        rerun = new PostingEngine(fromSnapshot, 2, ZONE, 36500, 250).run(monthEnd);
+        assertEquals(2, rerun.getSkipped());
+        assertEquals(savingsBalance, fromSnapshot.findAccount(u.getAccount(0).getUUID()).getBalance());
+
+        // the next day's interest is worked out from the balance brought forward: 365% a year is 1% a day
+        PostingEngine.Result next = new PostingEngine(fromSnapshot, 2, ZONE, 36500, 250).run(monthEnd.plusDays(1));
+        assertEquals(1, next.getInterestPostings());
+        assertEquals(savingsBalance / 100, next.getInterest());
+        assertEquals(savingsBalance + savingsBalance / 100, fromSnapshot.findAccount(u.getAccount(0).getUUID()).getBalance());
+        fromSnapshot.getJournal().close();
+    }
+
+    @Test
+    void daysBeforeTheSnapshotStillEarnInterest() throws IOException {
+        LocalDate yesterday = LocalDate.now(ZONE).minusDays(1);
+        long before = yesterday.minusDays(10).atStartOfDay(ZONE).toInstant().toEpochMilli();
+
+        Bank theBank = new Bank("Test");
+        Account savings = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        savings.replayTransaction(1, before, 5000000, "Opening deposit");
+
+        // posted up to three days ago, then a snapshot is taken and the bank restarted before the next run
+        new PostingEngine(theBank, 1, ZONE, 0, 0).run(yesterday.minusDays(3));
+        Snapshot.write(theBank, this.dir.resolve("atm.snapshot"));
+        Bank recovered = Snapshot.recover("Test", this.dir.resolve("atm.snapshot"), this.dir.resolve("atm.journal"));
+
+        // the days since the last posting all ended before the snapshot, with the balance it brought forward
+        PostingEngine.Result result = new PostingEngine(recovered, 1, ZONE, 36500, 0).run(yesterday);
+        assertEquals(3 * 50000, result.getInterest());
+        assertEquals(new PostingEngine(theBank, 1, ZONE, 36500, 0).run(yesterday).getInterest(), result.getInterest());
+        assertEquals(savings.getBalance(), recovered.findAccount(savings.getUUID()).getBalance());
+    }
+
+    @Test
+    void refusesToRunAlongsideTheServer() throws IOException {
+        // the server has the journal open, so a tool can't open it as well
+        Bank theBank = this.open();
+        assertThrows(IOException.class, () -> ATM.recoverBank(this.dir.resolve("atm.snapshot"), this.dir.resolve("atm.journal")));
+        theBank.getJournal().close();
+
+        // and once it's closed, it can be opened again
+        ATM.recoverBank(this.dir.resolve("atm.snapshot"), this.dir.resolve("atm.journal")).getJournal().close();
+    }
+}
@@ -0,0 +1,105 @@
+// A sharded bank answers every request, keeps the books balanced across shards, and cleans up when closed
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+class ShardedBankTest {
+    private static List<Account> fundedAccounts(Bank theBank, int count, long balance) {
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < count; i++) {
+            Account acct = theBank.addUser("Customer" + i, "Test", "1234").getAccount(0);
+            acct.addTransaction(balance, "Opening deposit");
+            accounts.add(acct);
+        }
+        return accounts;
+    }
+
+    @Test
+    void transfersAcrossShardsKeepTheBooksBalanced() {
+        Bank theBank = new Bank("Test");
+        List<Account> accounts = ShardedBankTest.fundedAccounts(theBank, 32, 10000);
+        ShardedBank sharded = new ShardedBank(theBank, 4);
+
+        // every kind of request at once, most transfers crossing shards, some overdrawing
+        Random rnd = new Random(1);
+        List<CompletableFuture<?>> results = new ArrayList<CompletableFuture<?>>();
+        long deposited = 0;
+        for (int i = 0; i < 20000; i++) {
+            String from = accounts.get(rnd.nextInt(accounts.size())).getUUID();
+            String to = accounts.get(rnd.nextInt(accounts.size())).getUUID();
+            if (i % 10 == 0) {
+                results.add(sharded.addTransaction(from, 7, "Deposit"));
+                deposited += 7;
+            } else {
+                results.add(sharded.transfer(from, to, rnd.nextInt(3000)));
+            }
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+        sharded.close();
+
+        long total = 0;
+        for (Account acct : accounts) {
+            total += acct.getBalance();
+            assertEquals(acct.replayBalance(), acct.getBalance());
+        }
+        assertEquals(32 * 10000 + deposited, total);
+    }
+
+    @Test
+    void withdrawalsAnswerWhyTheyWereRefused() {
+        Bank theBank = new Bank("Test");
+        Account acct = ShardedBankTest.fundedAccounts(theBank, 1, 1000).get(0);
+        ShardedBank sharded = new ShardedBank(theBank, 2);
+
+        assertEquals(Account.WithdrawResult.OK, sharded.withdraw(acct.getUUID(), 400, "Cash").join());
+        assertEquals(Account.WithdrawResult.INSUFFICIENT_FUNDS, sharded.withdraw(acct.getUUID(), 601, "Cash").join());
+        assertEquals(600, acct.getBalance());
+        assertThrows(IllegalArgumentException.class, () -> sharded.withdraw("nothing", 1, "Cash"));
+        sharded.close();
+    }
+
+    @Test
+    void closeWaitsForOutstandingRequestsThenRefusesNewOnes() {
+        Bank theBank = new Bank("Test");
+        Account acct = ShardedBankTest.fundedAccounts(theBank, 1, 0).get(0);
+        ShardedBank sharded = new ShardedBank(theBank, 2);
+
+        List<CompletableFuture<Long>> results = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 10000; i++) {
+            results.add(sharded.addTransaction(acct.getUUID(), 1, "Deposit"));
+        }
+        sharded.close();
+
+        // everything sent before close was answered before it returned
+        for (CompletableFuture<Long> result : results) {
+            assertTrue(result.isDone());
+        }
+        assertEquals(10000, acct.getBalance());
+        assertThrows(IllegalStateException.class, () -> sharded.addTransaction(acct.getUUID(), 1, "Deposit"));
+        sharded.close(); // again does no harm
+    }
+
+    @Test
+    void gaugesAreNamedAfterTheBankAndRemovedOnClose() {
+        ShardedBank first = new ShardedBank(new Bank("First"), 2);
+        ShardedBank second = new ShardedBank(new Bank("Second"), 2);
+        assertTrue(Metrics.dump().contains("First.shard1.queued"));
+        assertTrue(Metrics.dump().contains("Second.shard1.queued"));
+
+        // closing one leaves the other's alone
+        first.close();
+        assertFalse(Metrics.dump().contains("First.shard"));
+        assertTrue(Metrics.dump().contains("Second.shard0.queued"));
+        second.close();
+        assertFalse(Metrics.dump().contains("Second.shard"));
+    }
+}
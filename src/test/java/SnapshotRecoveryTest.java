@@ -0,0 +1,114 @@
+// Recovering a bank from its last snapshot plus the journal written since
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotRecoveryTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * Open the bank the way the ATM does, from whatever snapshot and journal are in the directory
+     */
+    private Bank open() throws IOException {
+        return Snapshot.recover("Test", this.dir.resolve("atm.snapshot"), this.dir.resolve("atm.journal"), Journal.Durability.GROUP, 0);
+    }
+
+    private static Map<String, Long> balances(Bank theBank) {
+        Map<String, Long> balances = new HashMap<String, Long>();
+        for (Account acct : theBank.getAccounts()) {
+            balances.put(acct.getUUID(), acct.getBalance());
+        }
+        return balances;
+    }
+
+    @Test
+    void recoversSnapshotPlusJournalTail() throws IOException {
+        Bank theBank = this.open();
+        User alice = theBank.addUser("Alice", "Smith", "1111");
+        User bob = theBank.addUser("Bob", "Jones", "2222");
+        alice.getAccount(0).addTransaction(50000, "Opening deposit");
+        bob.getAccount(0).addTransaction(20000, "Opening deposit");
+
+        // a snapshot drops everything it covers from the journal, leaving just the file header
+        Snapshot.write(theBank, this.dir.resolve("atm.snapshot"));
+        assertEquals(20, Files.size(this.dir.resolve("atm.journal")));
+
+        // the tail: a withdrawal, a transfer and a whole new user, none of them in the snapshot
+        alice.getAccount(0).withdraw(1500, "Cash");
+        Account.transfer(alice.getAccount(0), bob.getAccount(0), 2500);
+        User carol = theBank.addUser("Carol", "White", "3333");
+        carol.getAccount(0).addTransaction(700, "Opening deposit");
+        Map<String, Long> expected = SnapshotRecoveryTest.balances(theBank);
+        theBank.getJournal().close();
+
+        Bank recovered = this.open();
+        assertEquals(3, recovered.numUsers());
+        assertEquals(expected, SnapshotRecoveryTest.balances(recovered));
+        assertNotNull(recovered.userLogin(carol.getUUID(), "3333"));
+
+        // sequence numbers carry on after the tail, so what's written now isn't skipped next time
+        recovered.findAccount(bob.getAccount(0).getUUID()).addTransaction(100, "After recovery");
+        expected.merge(bob.getAccount(0).getUUID(), 100L, Long::sum);
+        recovered.getJournal().close();
+
+        Bank again = this.open();
+        assertEquals(expected, SnapshotRecoveryTest.balances(again));
+        again.getJournal().close();
+    }
+
+    @Test
+    void cutsOffTornRecordAtEndOfJournal() throws IOException {
+        Bank theBank = this.open();
+        User alice = theBank.addUser("Alice", "Smith", "1111");
+        Snapshot.write(theBank, this.dir.resolve("atm.snapshot"));
+        alice.getAccount(0).addTransaction(12345, "Deposit");
+        theBank.getJournal().close();
+
+        // a crash part way through writing the next record
+        Files.write(this.dir.resolve("atm.journal"), new byte[] {0, 0, 0, 40, 1, 7}, StandardOpenOption.APPEND);
+
+        Bank recovered = this.open();
+        Account acct = recovered.findAccount(alice.getAccount(0).getUUID());
+        assertEquals(12345, acct.getBalance());
+
+        // the torn bytes are gone, so the next record is readable after it
+        acct.addTransaction(5, "Deposit");
+        recovered.getJournal().close();
+        Bank again = this.open();
+        assertEquals(12350, again.findAccount(acct.getUUID()).getBalance());
+        again.getJournal().close();
+    }
+
+    @Test
+    void refusesFileThatIsNotAJournal() throws IOException {
+        // records with no header in front of them, or anything else
+        Files.write(this.dir.resolve("atm.journal"), new byte[] {0, 0, 0, 40, 1, 7, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        assertThrows(IOException.class, () -> this.open());
+    }
+
+    @Test
+    void refusesCorruptSnapshot() throws IOException {
+        Bank theBank = this.open();
+        theBank.addUser("Alice", "Smith", "1111");
+        Snapshot.write(theBank, this.dir.resolve("atm.snapshot"));
+        theBank.getJournal().close();
+
+        // flip one byte in the middle, which the checksum catches
+        byte[] bytes = Files.readAllBytes(this.dir.resolve("atm.snapshot"));
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(this.dir.resolve("atm.snapshot"), bytes);
+        assertThrows(IOException.class, () -> this.open());
+    }
+}
@@ -0,0 +1,101 @@
+// Every user's statement for a day is written to files, and only covers history the bank still has
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StatementEngineTest {
+    @TempDir
+    Path dir;
+
+    private static final LocalDate DAY = LocalDate.of(2026, 1, 5);
+
+    private static long at(int hour, int minute) {
+        return DAY.atTime(hour, minute).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private String read(String file) throws IOException {
+        return new String(Files.readAllBytes(this.dir.resolve("out").resolve(file)), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void writesOpeningTransactionsAndClosingForTheDay() throws IOException {
+        Bank theBank = new Bank("Test");
+        User alice = theBank.addUser("Alice", "Smith", "1234");
+        Account acct = alice.getAccount(0);
+        acct.replayTransaction(1, StatementEngineTest.at(0, 0) - 1, 10000, "Yesterday");
+        acct.replayTransaction(2, StatementEngineTest.at(9, 5), -2550, "Cash");
+        acct.replayTransaction(3, StatementEngineTest.at(17, 30), 100, "Refund");
+        acct.replayTransaction(4, StatementEngineTest.at(0, 0) + 86400000L, 999, "Tomorrow");
+
+        StatementEngine.Result result = new StatementEngine(theBank, this.dir.resolve("out"), 2, ZoneOffset.UTC).run(DAY);
+        assertEquals(1, result.getFiles());
+        assertEquals(1, result.getStatements());
+        assertEquals(2, result.getTransactions());
+
+        String text = this.read("statements-00000.txt");
+        assertEquals(result.getBytes(), text.getBytes(StandardCharsets.UTF_8).length);
+        assertTrue(text.startsWith("Statement for Smith, Alice (user " + alice.getUUID() + ")\n"
+                + "Period: 2026-01-05 00:00:00 to 2026-01-06 00:00:00\n"), text);
+        assertTrue(text.contains("  Opening balance    $100.00\n"
+                + "  2026-01-05 09:05:00  $(-25.50)  Cash\n"
+                + "  2026-01-05 17:30:00  $1.00  Refund\n"
+                + "  Closing balance    $75.50\n"), text);
+        assertFalse(text.contains("Tomorrow"));
+    }
+
+    @Test
+    void splitsUsersIntoFiles() throws IOException {
+        Bank theBank = new Bank("Test");
+        for (int i = 0; i < StatementEngine.USERS_PER_FILE + 1; i++) {
+            theBank.addUser("User" + i, "Test", "1234");
+        }
+
+        StatementEngine.Result result = new StatementEngine(theBank, this.dir.resolve("out"), 4, ZoneOffset.UTC).run(DAY);
+        assertEquals(2, result.getFiles());
+        assertEquals(StatementEngine.USERS_PER_FILE + 1, result.getStatements());
+        assertTrue(this.read("statements-00001.txt").startsWith("Statement for Test, User" + StatementEngine.USERS_PER_FILE + " "));
+    }
+
+    @Test
+    void recoveredBankOnlyCoversHistorySinceTheSnapshot() throws IOException {
+        Path snapshot = this.dir.resolve("atm.snapshot");
+        Path journal = this.dir.resolve("atm.journal");
+        Bank theBank = ATM.recoverBank(snapshot, journal);
+        Account acct = theBank.addUser("Alice", "Smith", "1234").getAccount(0);
+        acct.addTransaction(5000, "Before the snapshot");
+        Snapshot.write(theBank, snapshot);
+        theBank.getJournal().close();
+
+        // a tool's recovery adds nothing to the bank and builds no index
+        Bank recovered = ATM.recoverBank(snapshot, journal);
+        assertEquals(1, recovered.numUsers());
+        assertNull(recovered.getIndex());
+        long historyStart = recovered.getHistoryStart();
+        assertTrue(historyStart > 0);
+
+        // the period is cut to start at the snapshot, where the balance is brought forward from
+        StatementEngine engine = new StatementEngine(recovered, this.dir.resolve("out"), 1, ZoneOffset.UTC);
+        StatementEngine.Result result = engine.run(historyStart - 3600000, historyStart + 3600000);
+        assertEquals(1, result.getTransactions());
+        String text = this.read("statements-00000.txt");
+        assertTrue(text.contains("  Opening balance    $0.00\n"), text);
+        assertTrue(text.contains("  $50.00  Balance brought forward\n  Closing balance    $50.00\n"), text);
+        assertFalse(text.contains("Before the snapshot"));
+
+        assertThrows(IllegalArgumentException.class, () -> engine.run(historyStart - 3600000, historyStart));
+        recovered.getJournal().close();
+    }
+}
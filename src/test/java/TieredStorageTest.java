@@ -0,0 +1,103 @@
+// History pages written out of memory come back exactly as they went
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TieredStorageTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void evictedPagesFaultBackInUnchanged() throws IOException {
+        Bank theBank = new Bank("Test");
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 4; i++) {
+            accounts.add(theBank.addUser("Customer" + i, "Test", "1234").getAccount(0));
+        }
+
+        // some history from before the switch, which gets moved into pages too
+        for (Account acct : accounts) {
+            acct.addTransaction(100000, "Opening deposit");
+        }
+        int maxPages = 4;
+        theBank.setTieredStorage(this.dir.resolve("pages"), maxPages);
+
+        // many more pages of deposits, withdrawals and transfers than fit in memory, interleaved
+        // across the accounts so every account's pages get evicted
+        Random rnd = new Random(1);
+        for (int i = 0; i < 4000; i++) {
+            Account acct = accounts.get(rnd.nextInt(accounts.size()));
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    acct.addTransaction(1 + rnd.nextInt(1000), "Deposit " + (i % 7));
+                    break;
+                case 1:
+                    acct.withdraw(1 + rnd.nextInt(1000), "Cash " + (i % 5));
+                    break;
+                default:
+                    Account.transfer(acct, accounts.get(rnd.nextInt(accounts.size())), 1 + rnd.nextInt(1000));
+            }
+        }
+
+        PageCache cache = theBank.getPageCache();
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.residentPages() <= maxPages);
+
+        // read every transaction back, oldest first, which faults the old pages in
+        long faultsBefore = cache.getFaults();
+        for (Account acct : accounts) {
+            long balance = 0;
+            for (int i = 0; i < acct.numTransactions(); i++) {
+                Transaction t = acct.getTransaction(i);
+                balance += t.getAmount();
+                Transaction other = t.getLinkedTransaction();
+                if (t.getMemo().startsWith("Transfer")) {
+                    assertEquals(-t.getAmount(), other.getAmount());
+                    assertEquals(t.getTimestamp(), other.getTimestamp());
+                } else {
+                    assertNull(other);
+                }
+            }
+            assertEquals(acct.getBalance(), balance);
+            assertEquals(acct.getBalance(), acct.replayBalance());
+        }
+        assertTrue(cache.getFaults() > faultsBefore);
+        assertTrue(cache.residentPages() <= maxPages);
+    }
+
+    @Test
+    void faultedPageKeepsEveryField() throws IOException {
+        Bank theBank = new Bank("Test");
+        theBank.setTieredStorage(this.dir.resolve("pages"), 1);
+        Account first = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        Account second = theBank.addUser("Bob", "Test", "1234").getAccount(0);
+
+        // fill a page of the first account, then push it out with a page of the second
+        List<Transaction> written = new ArrayList<Transaction>();
+        for (int i = 0; i < PagedHistory.PAGE_SIZE; i++) {
+            written.add(first.addTransaction(100 + i, "Deposit number " + i));
+        }
+        for (int i = 0; i < PagedHistory.PAGE_SIZE; i++) {
+            second.addTransaction(1, "Filler");
+        }
+        assertTrue(theBank.getPageCache().getEvictions() > 0);
+
+        for (int i = 0; i < written.size(); i++) {
+            Transaction t = first.getTransaction(i);
+            assertEquals(written.get(i).getAmount(), t.getAmount());
+            assertEquals(written.get(i).getMemo(), t.getMemo());
+            assertEquals(written.get(i).getTimestamp(), t.getTimestamp());
+        }
+        assertTrue(theBank.getPageCache().getFaults() > 0);
+    }
+}
@@ -0,0 +1,85 @@
+// Searches of the whole bank walk only the shortest list of candidates the index has for them
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TransactionSearchTest {
+    private static final long START = 1767571200000L; // 2026-01-05 00:00 UTC
+    private static final long MINUTE = TransactionIndex.TIME_BUCKET_MILLIS;
+
+    private Bank bank;
+    private Account alice;
+    private Account carol;
+
+    @BeforeEach
+    void fillBank() {
+        this.bank = new Bank("Test");
+        this.bank.enableIndex();
+        this.alice = this.bank.addUser("Alice", "Test", "1234").getAccount(0);
+        this.bank.addUser("Bob", "Test", "1234");
+        this.carol = this.bank.addUser("Carol", "Test", "1234").getAccount(0);
+
+        // a payroll deposit a minute, then a few transfers to Carol and one big withdrawal, all now
+        for (int i = 0; i < 200; i++) {
+            this.alice.replayTransaction(i + 1, START + i * MINUTE, 1000, "Payroll deposit");
+        }
+        for (int i = 0; i < 3; i++) {
+            Account.transfer(this.alice, this.carol, 500);
+        }
+        this.alice.withdraw(77777, "Rent");
+    }
+
+    @Test
+    void wordAloneWalksItsOwnList() {
+        TransactionSearch search = this.bank.search().memoContains("Payroll");
+        assertEquals(200, search.count());
+        assertEquals(200, search.getExamined());
+
+        List<Transaction> newest = search.newest(2);
+        assertEquals(START + 199 * MINUTE, newest.get(0).getTimestamp().getTime());
+        assertEquals(START + 198 * MINUTE, newest.get(1).getTimestamp().getTime());
+    }
+
+    @Test
+    void counterpartyIsShorterThanTheWord() {
+        TransactionSearch search = this.bank.search().memoContains("payroll").counterparty(this.carol.getUUID());
+        assertEquals(0, search.count());
+        assertEquals(3, search.getExamined());
+
+        search = this.bank.search().counterparty(this.carol.getUUID()).amountBetween(-600, -400);
+        assertEquals(3, search.count());
+        assertEquals(3, search.getExamined());
+    }
+
+    @Test
+    void timeWindowIsShorterThanTheWord() {
+        TransactionSearch search = this.bank.search().memoContains("payroll")
+                .between(new Date(START + 10 * MINUTE), new Date(START + 13 * MINUTE));
+        assertEquals(3, search.count());
+        assertEquals(3, search.getExamined());
+    }
+
+    @Test
+    void amountRangeWalksOnlyItsBuckets() {
+        TransactionSearch search = this.bank.search().amountBetween(-80000, -70000);
+        assertEquals(1, search.count());
+        assertEquals(1, search.getExamined());
+        assertEquals("Rent", search.newest(5).get(0).getMemo());
+    }
+
+    @Test
+    void unknownWordOrAccountMatchesNothingWithoutLooking() {
+        TransactionSearch search = this.bank.search().memoContains("bonus");
+        assertEquals(0, search.count());
+        assertEquals(0, search.getExamined());
+
+        search = this.bank.search().counterparty("nobody");
+        assertEquals(0, search.count());
+        assertEquals(0, search.getExamined());
+    }
+}
@@ -0,0 +1,170 @@
+// Transfers move money between two accounts all at once, and come back the same from the journal
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TransferTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * Make a user with a checking account as well as the savings account every user gets, both funded
+     */
+    private static User fundedUser(Bank theBank, String name, long balance) {
+        User u = theBank.addUser(name, "Test", "1234");
+        Account checking = new Account("Checking", u, theBank);
+        u.addAccount(checking);
+        theBank.addAccount(checking);
+        u.getAccount(0).addTransaction(balance, "Opening deposit");
+        checking.addTransaction(balance, "Opening deposit");
+        return u;
+    }
+
+    /**
+     * Check every transfer leg in an account's history is linked both ways to a leg of the opposite amount
+     */
+    private static void assertLegsLinked(Account acct) {
+        for (int i = 0; i < acct.numTransactions(); i++) {
+            Transaction t = acct.getTransaction(i);
+            Transaction other = t.getLinkedTransaction();
+            if (t.getMemo().startsWith("Transfer")) {
+                assertEquals(-t.getAmount(), other.getAmount(), "leg " + i + " of " + acct.getUUID());
+                assertEquals(t.getAmount(), other.getLinkedTransaction().getAmount());
+            } else {
+                assertNull(other);
+            }
+        }
+    }
+
+    @Test
+    void refusedTransferLeavesBothAccountsUntouched() {
+        Bank theBank = new Bank("Test");
+        User u = TransferTest.fundedUser(theBank, "Alice", 1000);
+        Account from = u.getAccount(0);
+        Account to = u.getAccount(1);
+
+        assertNull(Account.transfer(from, to, 1001));
+        assertEquals(1000, from.getBalance());
+        assertEquals(1000, to.getBalance());
+        assertEquals(1, from.numTransactions());
+        assertEquals(1, to.numTransactions());
+    }
+
+    @Test
+    void transfersBetweenCustomersByAccountId() {
+        Bank theBank = new Bank("Test");
+        Account alice = TransferTest.fundedUser(theBank, "Alice", 1000).getAccount(0);
+        Account bob = TransferTest.fundedUser(theBank, "Bob", 1000).getAccount(1);
+
+        Transaction debit = theBank.transfer(alice.getUUID(), bob.getUUID(), 400);
+        assertEquals(-400, debit.getAmount());
+        assertEquals(400, debit.getLinkedTransaction().getAmount());
+        assertSame(bob, debit.getLinkedTransaction().getAccount());
+        assertEquals(600, alice.getBalance());
+        assertEquals(1400, bob.getBalance());
+        assertEquals(debit.getTimestamp(), debit.getLinkedTransaction().getTimestamp());
+
+        assertThrows(IllegalArgumentException.class, () -> theBank.transfer(alice.getUUID(), "nothing", 1));
+        assertThrows(IllegalArgumentException.class, () -> theBank.transfer(alice.getUUID(), bob.getUUID(), -1));
+        assertEquals(600, alice.getBalance());
+    }
+
+    @Test
+    void concurrentTransfersKeepTheBooksBalanced() throws InterruptedException {
+        Bank theBank = new Bank("Test");
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 4; i++) {
+            User u = TransferTest.fundedUser(theBank, "Customer" + i, 10000);
+            accounts.add(u.getAccount(0));
+            accounts.add(u.getAccount(1));
+        }
+        long total = 8 * 10000;
+
+        // random transfers in every direction at once, including ones that overdraw and are refused
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            long seed = t;
+            threads[t] = new Thread(() -> {
+                Random rnd = new Random(seed);
+                for (int i = 0; i < 5000; i++) {
+                    Account from = accounts.get(rnd.nextInt(accounts.size()));
+                    Account to = accounts.get(rnd.nextInt(accounts.size()));
+                    Account.transfer(from, to, rnd.nextInt(3000));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long sum = 0;
+        for (Account acct : accounts) {
+            sum += acct.getBalance();
+            assertEquals(acct.replayBalance(), acct.getBalance());
+            TransferTest.assertLegsLinked(acct);
+        }
+        assertEquals(total, sum);
+    }
+
+    @Test
+    void replayedTransfersAreLinkedLikeLiveOnes() throws IOException {
+        Path journal = this.dir.resolve("atm.journal");
+        Bank theBank = Snapshot.recover("Test", this.dir.resolve("atm.snapshot"), journal, Journal.Durability.GROUP, 0);
+        User alice = TransferTest.fundedUser(theBank, "Alice", 5000);
+        User bob = TransferTest.fundedUser(theBank, "Bob", 5000);
+        Account.transfer(alice.getAccount(0), bob.getAccount(1), 700);
+        Account.transfer(alice.getAccount(1), alice.getAccount(1), 300); // to the same account
+        Account.transfer(bob.getAccount(1), alice.getAccount(0), 200);
+        theBank.getJournal().close();
+
+        // no snapshot, so the whole history comes back from the journal
+        Bank recovered = Snapshot.recover("Test", this.dir.resolve("atm.snapshot"), journal, Journal.Durability.GROUP, 0);
+        for (Account acct : theBank.getAccounts()) {
+            Account copy = recovered.findAccount(acct.getUUID());
+            assertEquals(acct.getBalance(), copy.getBalance());
+            assertEquals(acct.numTransactions(), copy.numTransactions());
+            for (int i = 0; i < acct.numTransactions(); i++) {
+                assertEquals(acct.getTransaction(i).getAmount(), copy.getTransaction(i).getAmount());
+                assertEquals(acct.getTransaction(i).getMemo(), copy.getTransaction(i).getMemo());
+            }
+            TransferTest.assertLegsLinked(copy);
+        }
+
+        recovered.getJournal().close();
+    }
+
+    @Test
+    void replayedTransferToSameAccountLinksBothLegs() {
+        // a columnar history keeps its own links by index, rather than relying on the Transaction objects
+        Bank theBank = new Bank("Test");
+        theBank.setColumnarHistory(true);
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        long time = System.currentTimeMillis();
+        acct.replayTransaction(1, time, 1000, "Opening deposit");
+        Account.replayTransfer(acct, acct, 2, time, 300, "Transfer to self", "Transfer from self");
+
+        // both legs link to each other, not the credit twice
+        Transaction debit = acct.getTransaction(1);
+        Transaction credit = acct.getTransaction(2);
+        assertEquals(-300, debit.getAmount());
+        assertEquals("Transfer from self", debit.getLinkedTransaction().getMemo());
+        assertEquals("Transfer to self", credit.getLinkedTransaction().getMemo());
+        assertEquals(1000, acct.getBalance());
+
+        // and replaying the same record again changes nothing
+        Account.replayTransfer(acct, acct, 2, time, 300, "Transfer to self", "Transfer from self");
+        assertEquals(3, acct.numTransactions());
+    }
+}
@@ -0,0 +1,100 @@
+// Withdrawals are refused once they'd go past the daily, window or velocity limit
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class WithdrawalLimitsTest {
+    private static final long NOON = LocalDate.of(2026, 1, 5).atTime(12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static WithdrawalLimits.Usage usage(long daily, long window, int maxWithdrawals) {
+        return new WithdrawalLimits(daily, window, HOUR, maxWithdrawals, 10 * MINUTE, ZoneOffset.UTC).newUsage();
+    }
+
+    @Test
+    void dailyLimitStartsAgainAtMidnight() {
+        WithdrawalLimits.Usage usage = WithdrawalLimitsTest.usage(100000, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(Account.WithdrawResult.OK, usage.check(NOON, 60000));
+        usage.record(NOON, 60000);
+        assertEquals(Account.WithdrawResult.OK, usage.check(NOON + 5 * HOUR, 40000));
+        assertEquals(Account.WithdrawResult.DAILY_LIMIT, usage.check(NOON + 5 * HOUR, 40001));
+
+        // a minute after midnight the whole limit is there again
+        assertEquals(Account.WithdrawResult.OK, usage.check(NOON + 12 * HOUR + MINUTE, 100000));
+        assertEquals(Account.WithdrawResult.DAILY_LIMIT, usage.check(NOON + 12 * HOUR + MINUTE, 100001));
+    }
+
+    @Test
+    void windowLimitSlides() {
+        WithdrawalLimits.Usage usage = WithdrawalLimitsTest.usage(Long.MAX_VALUE, 50000, Integer.MAX_VALUE);
+        usage.record(NOON, 30000);
+        usage.record(NOON + 30 * MINUTE, 20000);
+        assertEquals(Account.WithdrawResult.WINDOW_LIMIT, usage.check(NOON + 45 * MINUTE, 1));
+
+        // once the first withdrawal is out of the hour, its amount is free again, but not the second's
+        assertEquals(Account.WithdrawResult.OK, usage.check(NOON + 70 * MINUTE, 30000));
+        assertEquals(Account.WithdrawResult.WINDOW_LIMIT, usage.check(NOON + 70 * MINUTE, 30001));
+        assertEquals(Account.WithdrawResult.OK, usage.check(NOON + 100 * MINUTE, 50000));
+    }
+
+    @Test
+    void velocityLimitCountsWithdrawalsNotAmounts() {
+        WithdrawalLimits.Usage usage = WithdrawalLimitsTest.usage(Long.MAX_VALUE, Long.MAX_VALUE, 3);
+        usage.record(NOON, 1);
+        usage.record(NOON + MINUTE, 1);
+        usage.record(NOON + 2 * MINUTE, 1);
+        assertEquals(Account.WithdrawResult.TOO_MANY_WITHDRAWALS, usage.check(NOON + 9 * MINUTE, 1));
+
+        // ten minutes after the first, there's room for one more
+        assertEquals(Account.WithdrawResult.OK, usage.check(NOON + 10 * MINUTE, 1));
+        usage.record(NOON + 10 * MINUTE, 1);
+        assertEquals(Account.WithdrawResult.TOO_MANY_WITHDRAWALS, usage.check(NOON + 10 * MINUTE, 1));
+
+        // and none at all when the limit is zero
+        assertEquals(Account.WithdrawResult.TOO_MANY_WITHDRAWALS, WithdrawalLimitsTest.usage(Long.MAX_VALUE, Long.MAX_VALUE, 0).check(NOON, 1));
+    }
+
+    @Test
+    void refusedWithdrawalTakesNothing() {
+        Bank theBank = new Bank("Test");
+        theBank.setWithdrawalLimits(new WithdrawalLimits(10000, Long.MAX_VALUE, HOUR, Integer.MAX_VALUE, MINUTE, ZoneOffset.UTC));
+        Account acct = theBank.addUser("Alice", "Test", "1234").getAccount(0);
+        acct.addTransaction(50000, "Deposit");
+
+        assertEquals(Account.WithdrawResult.OK, acct.withdraw(6000, "Cash"));
+        assertEquals(Account.WithdrawResult.DAILY_LIMIT, acct.withdraw(5000, "Cash"));
+        assertEquals(44000, acct.getBalance());
+        assertEquals(2, acct.numTransactions());
+
+        // an account's own limits replace the bank's
+        acct.setWithdrawalLimits(WithdrawalLimits.NONE);
+        assertEquals(Account.WithdrawResult.OK, acct.withdraw(20000, "Cash"));
+    }
+
+    @Test
+    void transfersCountOnlyWhenMoneyLeavesTheCustomer() {
+        Bank theBank = new Bank("Test");
+        theBank.setWithdrawalLimits(new WithdrawalLimits(10000, Long.MAX_VALUE, HOUR, Integer.MAX_VALUE, MINUTE, ZoneOffset.UTC));
+        User alice = theBank.addUser("Alice", "Test", "1234");
+        Account savings = alice.getAccount(0);
+        Account checking = new Account("Checking", alice, theBank);
+        alice.addAccount(checking);
+        theBank.addAccount(checking);
+        Account bob = theBank.addUser("Bob", "Test", "1234").getAccount(0);
+        savings.addTransaction(50000, "Deposit");
+
+        assertNotNull(Account.transfer(savings, checking, 30000));
+        assertNotNull(Account.transfer(savings, bob, 10000));
+        assertNull(Account.transfer(savings, bob, 1));
+        assertEquals(Account.WithdrawResult.DAILY_LIMIT, Account.transferFunds(savings, bob, 1));
+        assertEquals(10000, savings.getBalance());
+    }
+}